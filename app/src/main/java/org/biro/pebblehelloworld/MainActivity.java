@@ -30,10 +30,9 @@ public class MainActivity extends ActionBarActivity {
             mPebble.registerHandlers(getApplicationContext());
 
             // Set up the pebbles stuff and turn it on.
-            mPebbleWindow = PebbleWindow.getRootWindow();
+            mPebbleWindow = mPebble.getRootWindow();
             mPebbleTextLayer = new PebbleTextLayer();
 
-            mPebbleWindow.setParent(mPebble);
             mPebbleTextLayer.setText("Hello, World!");
 
             mPebbleWindow.addLayer(mPebbleTextLayer);
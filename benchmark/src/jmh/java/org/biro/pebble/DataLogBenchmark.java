@@ -0,0 +1,56 @@
+package org.biro.pebble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * A burst of data logging records going into PebbleDataLog: what the
+ * receiving thread pays per record, including waiting on the writer when
+ * it falls a ring behind.  Run with the gc profiler to check nothing is
+ * allocated per record.
+ */
+@State(Scope.Thread)
+public class DataLogBenchmark {
+    private static final UUID LOG = UUID.randomUUID();
+    private static final long TIMESTAMP = 1430000000L;
+    private static final long TAG = 1;
+
+    @Param({"4096", "16384"})
+    int ringSize;
+
+    private File file;
+    private PebbleDataLog log;
+    private final byte[] sample = new byte[12];
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("pebble", ".datalog");
+        log = new PebbleDataLog(file, ringSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        log.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void receiveUint() {
+        log.receiveUint(LOG, TIMESTAMP, TAG, next++);
+    }
+
+    @Benchmark
+    public void receiveBytes() {
+        sample[0] = (byte) next++;
+        log.receiveBytes(LOG, TIMESTAMP, TAG, sample);
+    }
+}
@@ -0,0 +1,68 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of getting a call through Pebble.sendMessage, out over the transport
+ * and its response back through receiveData to the callback, with
+ * nothing else going on.  burst calls are queued before the link is
+ * pumped, so burst > 1 exercises the send window and batching.  compact
+ * has the link offer the compact encoding.
+ */
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    @Param({"1", "10"})
+    int burst;
+
+    @Param({"0", "512"})
+    int inboxSize;
+
+    @Param({"false", "true"})
+    boolean compact;
+
+    private Pebble pebble;
+    private LoopbackTransport link;
+    private Blackhole bh;
+
+    private final Pebble.PebbleFinishedCallback done = new Pebble.PebbleFinishedCallback() {
+        @Override
+        public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                    PebbleDictionary req) {
+            bh.consume(resp);
+        }
+    };
+
+    @Setup
+    public void setup(Blackhole bh) {
+        this.bh = bh;
+        link = new LoopbackTransport();
+        pebble = new Pebble();
+        pebble.setTransport(link);
+        pebble.setExecutor(LoopbackTransport.DIRECT);
+        pebble.registerHandlers(null);
+        link.started(inboxSize, compact);
+    }
+
+    @Benchmark
+    public int sendAndReceive() {
+        for (int i = 0; i < burst; i++) {
+            PebbleDictionary pd = new PebbleDictionary();
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
+            pd.addUint32(Pebble.KEY_WINDOW_ID, 1);
+            pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, 2 + i);
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_FG_COLOR, Pebble.COLOR_WHITE);
+            pebble.sendMessage(null, done, pd);
+        }
+        return link.pump();
+    }
+}
@@ -0,0 +1,155 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * A zero latency watch for measuring the phone side on its own.  Messages
+ * queue up until pump() answers them, on the caller's thread, so a
+ * benchmark measures encoding and dispatch without any thread hand off.
+ * Every call succeeds; new windows and layers get fresh handles.
+ */
+class LoopbackTransport implements PebbleTransport {
+    private static class Sent {
+        final PebbleDictionary data;
+        final int tid;
+
+        Sent(PebbleDictionary data, int tid) {
+            this.data = data;
+            this.tid = tid;
+        }
+    }
+
+    // Runs the Pebble's work (window steps, draining, responses) on the
+    // caller's thread, for the same reason.
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private final ArrayDeque<Sent> queue = new ArrayDeque<>();
+    private Pebble pebble;
+    private int nextHandle = 1;
+    private int ptid = 0;
+
+    @Override
+    public void register(Context ctx, UUID appUuid, Pebble pebble) {
+        this.pebble = pebble;
+    }
+
+    @Override
+    public void unregister(Context ctx) {
+        queue.clear();
+    }
+
+    @Override
+    public boolean isConnected(Context ctx) {
+        return true;
+    }
+
+    @Override
+    public void sendData(Context ctx, UUID appUuid, PebbleDictionary data, int tid) {
+        queue.add(new Sent(data, tid));
+    }
+
+    @Override
+    public void sendAck(Context ctx, int tid) {
+    }
+
+    @Override
+    public void sendNack(Context ctx, int tid) {
+    }
+
+    @Override
+    public void startApp(Context ctx, UUID appUuid) {
+        started(0);
+    }
+
+    @Override
+    public void stopApp(Context ctx, UUID appUuid) {
+    }
+
+    // Tells the Pebble the watch is up, with inboxSize > 0 turning on
+    // batching.
+    void started(int inboxSize) {
+        started(inboxSize, false);
+    }
+
+    // compact offers the compact encoding.
+    void started(int inboxSize, boolean compact) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_STARTED);
+        if (compact) {
+            pd.addUint32(Pebble.KEY_API_VERSION, Pebble.API_VERSION_COMPACT);
+        }
+        if (inboxSize > 0) {
+            pd.addUint32(Pebble.KEY_INBOX_SIZE, inboxSize);
+        }
+        pebble.receiveData(null, ptid++, pd);
+    }
+
+    // Answers everything sent so far, and everything sent while answering,
+    // until the link is idle.  Returns how many messages went over it.
+    int pump() {
+        int n = 0;
+        Sent s;
+        while ((s = queue.poll()) != null) {
+            pebble.receiveData(null, ptid++, answer(s.data));
+            n++;
+        }
+        return n;
+    }
+
+    private PebbleDictionary answer(PebbleDictionary req) {
+        if (PebbleCompact.isCompact(req)) {
+            return PebbleCompact.encode(answer(PebbleCompact.decode(req)));
+        }
+        if (!PebbleBatch.isBatch(req)) {
+            return answerCall(req);
+        }
+
+        int count = PebbleBatch.count(req);
+        PebbleDictionary resp = new PebbleDictionary();
+        resp.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_OK);
+        resp.addUint32(Pebble.KEY_TRANSACTION_ID,
+                req.getUnsignedIntegerAsLong(Pebble.KEY_TRANSACTION_ID).intValue());
+        resp.addUint32(Pebble.KEY_BATCH_COUNT, count);
+        for (int i = 0; i < count; i++) {
+            PebbleDictionary call = new PebbleDictionary();
+            PebbleBatch.copy(req, call, PebbleBatch.keyOffset(i), 0);
+            PebbleBatch.copy(answerCall(call), resp, 0, PebbleBatch.keyOffset(i));
+        }
+        return resp;
+    }
+
+    private PebbleDictionary answerCall(PebbleDictionary req) {
+        PebbleDictionary resp = new PebbleDictionary();
+        resp.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_OK);
+        resp.addUint32(Pebble.KEY_TRANSACTION_ID,
+                req.getUnsignedIntegerAsLong(Pebble.KEY_TRANSACTION_ID).intValue());
+
+        switch (req.getUnsignedIntegerAsLong(Pebble.KEY_METHOD_ID).intValue()) {
+            case Pebble.FUNC_NEW_WINDOW:
+                resp.addUint32(Pebble.KEY_WINDOW_ID, nextHandle++);
+                break;
+
+            case Pebble.FUNC_NEW_TEXT_LAYER:
+                resp.addUint32(Pebble.KEY_TEXT_LAYER_ID, nextHandle++);
+                break;
+
+            case Pebble.FUNC_NEW_TEXT_LAYERS:
+                int count = req.getUnsignedIntegerAsLong(Pebble.KEY_LAYER_COUNT).intValue();
+                resp.addUint32(Pebble.KEY_TEXT_LAYER_ID, nextHandle);
+                nextHandle += count;
+                break;
+        }
+        return resp;
+    }
+}
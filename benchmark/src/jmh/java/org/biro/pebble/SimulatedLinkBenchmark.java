@@ -0,0 +1,123 @@
+package org.biro.pebble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End to end: time from changing every layer of a window to the simulated
+ * watch having acknowledged all of them, over a link with the given one way
+ * latency.  Sample mode gives the latency percentiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SimulatedLinkBenchmark {
+
+    @Param({"10"})
+    int layerCount;
+
+    @Param({"0", "10000"})
+    long latencyMicros;
+
+    @Param({"1", "4"})
+    int sendWindow;
+
+    private SimulatedPebble watch;
+    // The watch's replies and the Pebble's timers both arrive on other
+    // threads, so the Pebble gets a real executor to keep them in order.
+    private ExecutorService io;
+    private Pebble pebble;
+    private PebbleWindow window;
+    private PebbleTextLayer[] layers;
+    private int frame = 0;
+
+    // There's no render scheduler off Android, so each frame asks for the
+    // update itself.  It's queued behind the layers' changes, which are
+    // made on the executor too, so it sees all of them.
+    private final Runnable update = new Runnable() {
+        @Override
+        public void run() {
+            window.update(null);
+        }
+    };
+
+    // Asked on the executor, where the layers live, so what it sees is
+    // current.
+    private final Callable<Boolean> idle = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            for (PebbleTextLayer l : layers) {
+                if (l.changed()) {
+                    return false;
+                }
+            }
+            return pebble.getInflightCount() == 0 && pebble.getQueuedCount() == 0;
+        }
+    };
+
+    @Setup
+    public void setup() throws Exception {
+        watch = new SimulatedPebble(42);
+        watch.setLatency(latencyMicros);
+
+        pebble = new Pebble();
+        pebble.setTransport(watch);
+        io = Executors.newSingleThreadExecutor();
+        pebble.setExecutor(io);
+        pebble.registerHandlers(null);
+        pebble.setSendWindow(sendWindow);
+        pebble.start(null);
+        while (!pebble.isStarted()) {
+            Thread.sleep(1);
+        }
+
+        window = new PebbleWindow();
+        window.setParent(pebble);
+        // never pushed; made on the watch as soon as it's updated.
+        window.setLazy(false);
+        layers = new PebbleTextLayer[layerCount];
+        for (int i = 0; i < layerCount; i++) {
+            layers[i] = new PebbleTextLayer();
+            layers[i].setText("row " + i);
+            window.addLayer(layers[i]);
+        }
+        io.execute(update);
+        awaitIdle();
+    }
+
+    @TearDown
+    public void tearDown() {
+        watch.shutdown();
+        pebble.shutdown();
+        io.shutdownNow();
+    }
+
+    private void awaitIdle() throws Exception {
+        while (!io.submit(idle).get()) {
+            LockSupport.parkNanos(20000);
+        }
+    }
+
+    @Benchmark
+    public void frame() throws Exception {
+        frame++;
+        for (int i = 0; i < layerCount; i++) {
+            layers[i].setText(Integer.toString(frame + i));
+        }
+        io.execute(update);
+        awaitIdle();
+    }
+}
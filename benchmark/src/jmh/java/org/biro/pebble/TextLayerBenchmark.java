@@ -0,0 +1,59 @@
+package org.biro.pebble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * One ticker style text layer changing every operation: encoding the new
+ * text in PebbleTextLayer.update, sending it, and the updateChanged
+ * comparison when it's acknowledged.  Run with the gc profiler to see
+ * allocation per update.
+ */
+@State(Scope.Thread)
+public class TextLayerBenchmark {
+    private static final int VALUES = 64;
+
+    private final String[] values = new String[VALUES];
+    private int next = 0;
+
+    private LoopbackTransport link;
+    private PebbleWindow window;
+    private PebbleTextLayer layer;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = String.format("%02d:%02d:%02d  %d.%02d km", i / 60, i % 60, (i * 7) % 60,
+                    i / 10, i % 100);
+        }
+
+        link = new LoopbackTransport();
+        Pebble pebble = new Pebble();
+        pebble.setTransport(link);
+        pebble.setExecutor(LoopbackTransport.DIRECT);
+        pebble.registerHandlers(null);
+        link.started(0);
+
+        window = new PebbleWindow();
+        window.setParent(pebble);
+        // never pushed; made on the watch as soon as it's updated.
+        window.setLazy(false);
+        layer = new PebbleTextLayer();
+        layer.setText(values[VALUES - 1]);
+        window.addLayer(layer);
+
+        // get the window and layer handles out of the way.
+        window.update(null);
+        link.pump();
+    }
+
+    @Benchmark
+    public int updateText() {
+        layer.setText(values[next]);
+        next = (next + 1) % VALUES;
+        window.update(null);
+        return link.pump();
+    }
+}
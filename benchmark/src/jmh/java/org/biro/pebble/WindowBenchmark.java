@@ -0,0 +1,66 @@
+package org.biro.pebble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A whole frame of a dashboard: every layer of a window changes, then
+ * PebbleWindow.update runs its state machine until everything has been
+ * acknowledged.  Shows how per-frame cost scales with the number of layers
+ * and the send window.
+ */
+@State(Scope.Thread)
+public class WindowBenchmark {
+
+    @Param({"1", "10"})
+    int layerCount;
+
+    @Param({"1", "4"})
+    int sendWindow;
+
+    @Param({"0", "512"})
+    int inboxSize;
+
+    private LoopbackTransport link;
+    private PebbleWindow window;
+    private PebbleTextLayer[] layers;
+    private int frame = 0;
+
+    @Setup
+    public void setup() {
+        link = new LoopbackTransport();
+        Pebble pebble = new Pebble();
+        pebble.setTransport(link);
+        pebble.setExecutor(LoopbackTransport.DIRECT);
+        pebble.registerHandlers(null);
+        pebble.setSendWindow(sendWindow);
+        link.started(inboxSize);
+
+        window = new PebbleWindow();
+        window.setParent(pebble);
+        // never pushed; made on the watch as soon as it's updated.
+        window.setLazy(false);
+        layers = new PebbleTextLayer[layerCount];
+        for (int i = 0; i < layerCount; i++) {
+            layers[i] = new PebbleTextLayer();
+            layers[i].setText("row " + i);
+            window.addLayer(layers[i]);
+        }
+
+        window.update(null);
+        link.pump();
+    }
+
+    @Benchmark
+    public int frame() {
+        frame++;
+        for (int i = 0; i < layerCount; i++) {
+            layers[i].setText(Integer.toString(frame + i));
+        }
+        window.update(null);
+        return link.pump();
+    }
+}
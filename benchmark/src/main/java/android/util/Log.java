@@ -0,0 +1,33 @@
+package android.util;
+
+/**
+ * JVM stand in for android.util.Log so the library can run in benchmarks.
+ * Debug output is dropped so it doesn't show up in the timings; errors go
+ * to stderr.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println(tag + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + msg);
+        return 0;
+    }
+}
@@ -0,0 +1,616 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * A watch that lives entirely in this process, for measuring and tuning the
+ * protocol without a phone or a Pebble.  It runs the same methods the watch
+ * app does against an in-memory window and layer table, on its own thread,
+ * with a configurable one way latency, loss rate, inbox size and layer
+ * limit.  What it sends back goes through the Pebble's executor, as it
+ * does from PebbleKitTransport.
+ * <p/>
+ * Nothing in here calls into Android (Context is only passed through), so
+ * it runs on a plain JVM.  It lives with the benchmarks and tests rather
+ * than in the library, in the library's package since it speaks its
+ * package-private wire helpers.
+ */
+public class SimulatedPebble implements PebbleTransport {
+    public static final int DEFAULT_INBOX_SIZE = 512;
+    public static final int DEFAULT_MAX_LAYERS = 64;
+    public static final int API_VERSION = Pebble.API_VERSION_WINDOW_STACK;
+    public static final int INTERN_BUDGET = PebbleInternTable.DEFAULT_BUDGET;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Window {
+        final ArrayList<Integer> layers = new ArrayList<>();
+    }
+
+    private static class TextLayer {
+        int window;
+        int fg = Pebble.COLOR_BLACK;
+        int bg = Pebble.COLOR_WHITE;
+        int alignment = Pebble.TEXT_ALIGNMENT_LEFT;
+        String font = "";
+        byte[] text = new byte[0];
+        byte[] rect;
+
+        TextLayer(int window) {
+            this.window = window;
+        }
+    }
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Random random;
+
+    private volatile long latencyMicros = 0;
+    private volatile double lossRate = 0.0;
+    private volatile int inboxSize = DEFAULT_INBOX_SIZE;
+    private volatile int maxLayers = DEFAULT_MAX_LAYERS;
+    private volatile boolean connected = true;
+
+    private Pebble pebble;
+    // Between register and unregister; outside it nothing's delivered.
+    private volatile boolean registered = false;
+
+    // Watch state.  Only touched on the executor thread, or with this
+    // locked for the getters.
+    private boolean running = false;
+    private int ptid = 0;
+    private int nextHandle;
+    // new each time the app starts; never PebbleSessionCache.NO_SESSION.
+    private int sessionId;
+    private final HashMap<Integer, Window> windows = new HashMap<>();
+    private final HashMap<Integer, TextLayer> layers = new HashMap<>();
+    private final ArrayList<Integer> windowStack = new ArrayList<>();
+    // interned fonts (String) and text (byte[]) by id.
+    private final HashMap<Integer, Object> interned = new HashMap<>();
+
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong messagesDropped = new AtomicLong();
+    private final AtomicLong messagesNacked = new AtomicLong();
+    private final AtomicLong acksReceived = new AtomicLong();
+
+    public SimulatedPebble() {
+        this(System.nanoTime());
+    }
+
+    public SimulatedPebble(long seed) {
+        random = new Random(seed);
+        reset();
+    }
+
+    public void setLatency(long micros) {
+        latencyMicros = micros;
+    }
+
+    public void setLossRate(double rate) {
+        lossRate = rate;
+    }
+
+    public void setInboxSize(int size) {
+        inboxSize = size;
+    }
+
+    public void setMaxLayers(int max) {
+        maxLayers = max;
+    }
+
+    // Drops or restores the link, telling the Pebble as PebbleKit's
+    // broadcasts would.  While it's down whatever's sent is lost.
+    public void setConnected(boolean connected) {
+        this.connected = connected;
+        if (!registered) {
+            return;
+        }
+        if (connected) {
+            pebble.linkUp(null);
+        } else {
+            pebble.linkDown(null);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void register(Context ctx, UUID appUuid, Pebble pebble) {
+        this.pebble = pebble;
+        registered = true;
+    }
+
+    @Override
+    public void unregister(Context ctx) {
+        registered = false;
+    }
+
+    @Override
+    public boolean isConnected(Context ctx) {
+        return connected;
+    }
+
+    @Override
+    public void sendData(final Context ctx, UUID appUuid, final PebbleDictionary data, final int tid) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(PebbleBatch.encodedSize(data));
+
+        later(new Runnable() {
+            @Override
+            public void run() {
+                // Lost on the way out: nothing comes back at all.
+                if (!connected || lost()) {
+                    messagesDropped.incrementAndGet();
+                    return;
+                }
+
+                if (!running || PebbleBatch.encodedSize(data) > inboxSize) {
+                    messagesNacked.incrementAndGet();
+                    reply(new Runnable() {
+                        @Override
+                        public void run() {
+                            pebble.receiveNack(ctx, tid);
+                        }
+                    });
+                    return;
+                }
+
+                final PebbleDictionary resp;
+                final int id;
+                synchronized (SimulatedPebble.this) {
+                    // answer in whichever encoding we were spoken to in.
+                    if (PebbleCompact.isCompact(data)) {
+                        resp = PebbleCompact.encode(handle(PebbleCompact.decode(data)));
+                    } else {
+                        resp = handle(data);
+                    }
+                    id = ptid++ & 0xff;
+                }
+
+                final boolean lost = lost();
+                reply(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (lost) {
+                            messagesDropped.incrementAndGet();
+                            return;
+                        }
+                        pebble.receiveData(ctx, id, resp);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void sendAck(Context ctx, int tid) {
+        acksReceived.incrementAndGet();
+    }
+
+    @Override
+    public void sendNack(Context ctx, int tid) {
+    }
+
+    @Override
+    public void startApp(final Context ctx, UUID appUuid) {
+        later(new Runnable() {
+            @Override
+            public void run() {
+                int id;
+                synchronized (SimulatedPebble.this) {
+                    reset();
+                    running = true;
+                    id = ptid++ & 0xff;
+                }
+
+                PebbleDictionary pd = new PebbleDictionary();
+                pd.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_STARTED);
+                pd.addUint32(Pebble.KEY_API_VERSION, API_VERSION);
+                pd.addUint32(Pebble.KEY_INBOX_SIZE, inboxSize);
+                pd.addUint32(Pebble.KEY_SESSION_ID, sessionId);
+                pd.addUint32(Pebble.KEY_INTERN_BUDGET, INTERN_BUDGET);
+                deliver(ctx, id, pd);
+            }
+        });
+    }
+
+    @Override
+    public void stopApp(final Context ctx, UUID appUuid) {
+        later(new Runnable() {
+            @Override
+            public void run() {
+                int id;
+                synchronized (SimulatedPebble.this) {
+                    running = false;
+                    id = ptid++ & 0xff;
+                }
+
+                PebbleDictionary pd = new PebbleDictionary();
+                pd.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_STOPPED);
+                deliver(ctx, id, pd);
+            }
+        });
+    }
+
+    private void later(Runnable r) {
+        if (latencyMicros <= 0) {
+            executor.execute(r);
+        } else {
+            executor.schedule(r, latencyMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    // Sends r's message back after the latency.  Like PebbleKitTransport,
+    // it's handed to the Pebble's executor rather than called from our
+    // thread.  Anything on its way when the link drops is lost.
+    private void reply(final Runnable r) {
+        later(new Runnable() {
+            @Override
+            public void run() {
+                if (!connected || !registered) {
+                    messagesDropped.incrementAndGet();
+                    return;
+                }
+                pebble.getExecutor().execute(r);
+            }
+        });
+    }
+
+    private void deliver(final Context ctx, final int id, final PebbleDictionary pd) {
+        if (!registered) {
+            return;
+        }
+        pebble.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                pebble.receiveData(ctx, id, pd);
+            }
+        });
+    }
+
+    private boolean lost() {
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+
+    // must be called with this locked.
+    private void reset() {
+        windows.clear();
+        layers.clear();
+        windowStack.clear();
+        interned.clear();
+        windows.put(Pebble.ROOT_WINDOW_HANDLE, new Window());
+        nextHandle = Pebble.ROOT_WINDOW_HANDLE + 1;
+        sessionId = random.nextInt() | 1;
+    }
+
+    // must be called with this locked.
+    private PebbleDictionary handle(PebbleDictionary req) {
+        if (PebbleBatch.isBatch(req)) {
+            return handleBatch(req);
+        }
+        return handleCall(req);
+    }
+
+    private PebbleDictionary handleBatch(PebbleDictionary req) {
+        int count = PebbleBatch.count(req);
+        PebbleDictionary resp = new PebbleDictionary();
+        resp.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_OK);
+        resp.addUint32(Pebble.KEY_TRANSACTION_ID, getInt(req, Pebble.KEY_TRANSACTION_ID));
+        resp.addUint32(Pebble.KEY_BATCH_COUNT, count);
+
+        for (int i = 0; i < count; i++) {
+            PebbleDictionary call = new PebbleDictionary();
+            PebbleBatch.copy(req, call, PebbleBatch.keyOffset(i), 0);
+            PebbleBatch.copy(handleCall(call), resp, 0, PebbleBatch.keyOffset(i));
+        }
+        return resp;
+    }
+
+    private PebbleDictionary handleCall(PebbleDictionary req) {
+        PebbleDictionary resp = new PebbleDictionary();
+        if (req.contains(Pebble.KEY_TRANSACTION_ID)) {
+            resp.addUint32(Pebble.KEY_TRANSACTION_ID, getInt(req, Pebble.KEY_TRANSACTION_ID));
+        }
+
+        if (!req.contains(Pebble.KEY_METHOD_ID)) {
+            return error(resp, Pebble.EINVALID_OP);
+        }
+
+        int wh;
+        Window w;
+        TextLayer tl;
+        switch (getInt(req, Pebble.KEY_METHOD_ID)) {
+            case Pebble.FUNC_NEW_WINDOW:
+                wh = nextHandle++;
+                windows.put(wh, new Window());
+                resp.addUint32(Pebble.KEY_WINDOW_ID, wh);
+                return ok(resp);
+
+            case Pebble.FUNC_NEW_TEXT_LAYER:
+                wh = getInt(req, Pebble.KEY_WINDOW_ID);
+                w = windows.get(wh);
+                if (w == null) {
+                    return error(resp, Pebble.ENOWINDOW);
+                }
+                if (layers.size() >= maxLayers) {
+                    return error(resp, Pebble.ENOMEM);
+                }
+                int tlh = nextHandle++;
+                layers.put(tlh, new TextLayer(wh));
+                w.layers.add(tlh);
+                resp.addUint32(Pebble.KEY_WINDOW_ID, wh);
+                resp.addUint32(Pebble.KEY_TEXT_LAYER_ID, tlh);
+                return ok(resp);
+
+            case Pebble.FUNC_NEW_TEXT_LAYERS:
+                wh = getInt(req, Pebble.KEY_WINDOW_ID);
+                w = windows.get(wh);
+                if (w == null) {
+                    return error(resp, Pebble.ENOWINDOW);
+                }
+                int count = getInt(req, Pebble.KEY_LAYER_COUNT);
+                if (count < 1 || layers.size() + count > maxLayers) {
+                    return error(resp, Pebble.ENOMEM);
+                }
+                int first = nextHandle;
+                for (int i = 0; i < count; i++) {
+                    layers.put(nextHandle, new TextLayer(wh));
+                    w.layers.add(nextHandle);
+                    nextHandle++;
+                }
+                resp.addUint32(Pebble.KEY_WINDOW_ID, wh);
+                resp.addUint32(Pebble.KEY_TEXT_LAYER_ID, first);
+                resp.addUint16(Pebble.KEY_LAYER_COUNT, (short) count);
+                return ok(resp);
+
+            case Pebble.FUNC_APPLY_ATTRIBUTES:
+                tl = layers.get(getInt(req, Pebble.KEY_TEXT_LAYER_ID));
+                if (tl == null) {
+                    return error(resp, Pebble.ENOLAYER);
+                }
+                if (!applyAttributes(tl, req)) {
+                    return error(resp, Pebble.ENOINTERN);
+                }
+                return ok(resp);
+
+            case Pebble.FUNC_APPLY_TEXT_DELTA:
+                tl = layers.get(getInt(req, Pebble.KEY_TEXT_LAYER_ID));
+                if (tl == null) {
+                    return error(resp, Pebble.ENOLAYER);
+                }
+                byte[] text = PebbleTextDelta.apply(tl.text, req);
+                if (text == null) {
+                    return error(resp, Pebble.EINVALID_OP);
+                }
+                if (!applyAttributes(tl, req)) {
+                    return error(resp, Pebble.ENOINTERN);
+                }
+                tl.text = text;
+                return ok(resp);
+
+            case Pebble.FUNC_DESTROY_LAYER:
+                int dead = getInt(req, Pebble.KEY_TEXT_LAYER_ID);
+                tl = layers.remove(dead);
+                if (tl == null) {
+                    return error(resp, Pebble.ENOLAYER);
+                }
+                w = windows.get(tl.window);
+                if (w != null) {
+                    w.layers.remove(Integer.valueOf(dead));
+                }
+                return ok(resp);
+
+            case Pebble.FUNC_DESTROY_WINDOW:
+                wh = getInt(req, Pebble.KEY_WINDOW_ID);
+                if (wh == Pebble.ROOT_WINDOW_HANDLE) {
+                    return error(resp, Pebble.EINVALID_OP);
+                }
+                w = windows.remove(wh);
+                if (w == null) {
+                    return error(resp, Pebble.ENOWINDOW);
+                }
+                for (Integer h : w.layers) {
+                    layers.remove(h);
+                }
+                windowStack.remove(Integer.valueOf(wh));
+                return ok(resp);
+
+            case Pebble.FUNC_POP_WINDOW:
+                wh = getInt(req, Pebble.KEY_WINDOW_ID);
+                if (!windows.containsKey(wh)) {
+                    return error(resp, Pebble.ENOWINDOW);
+                }
+                if (!windowStack.remove(Integer.valueOf(wh))) {
+                    return error(resp, Pebble.EINVALID_OP);
+                }
+                return ok(resp);
+
+            case Pebble.FUNC_GET_SESSION:
+                resp.addUint32(Pebble.KEY_SESSION_ID, sessionId);
+                return ok(resp);
+
+            case Pebble.FUNC_PUSH_WINDOW:
+                wh = getInt(req, Pebble.KEY_WINDOW_ID);
+                if (!windows.containsKey(wh)) {
+                    return error(resp, Pebble.ENOWINDOW);
+                }
+                // a window's on the stack once; pushing it again brings it
+                // to the top.
+                windowStack.remove(Integer.valueOf(wh));
+                windowStack.add(wh);
+                return ok(resp);
+
+            default:
+                return error(resp, Pebble.EINVALID_OP);
+        }
+    }
+
+    // Returns false, changing nothing, if req uses an intern id we don't
+    // have.
+    private boolean applyAttributes(TextLayer tl, PebbleDictionary req) {
+        Object font = intern(req, Pebble.KEY_FONT_ID, Pebble.KEY_ATTRIBUTE_FONT);
+        Object text = intern(req, Pebble.KEY_TEXT_ID, Pebble.KEY_ATTRIBUTE_TEXT);
+        if (font == null || text == null) {
+            return false;
+        }
+        if (font != req && !req.contains(Pebble.KEY_ATTRIBUTE_FONT)) {
+            tl.font = (String) font;
+        }
+        if (text != req && !req.contains(Pebble.KEY_ATTRIBUTE_TEXT)) {
+            tl.text = (byte[]) text;
+        }
+
+        for (PebbleTuple t : req) {
+            switch (t.key) {
+                case Pebble.KEY_ATTRIBUTE_FG_COLOR:
+                    tl.fg = ((Long) t.value).intValue();
+                    break;
+
+                case Pebble.KEY_ATTRIBUTE_BG_COLOR:
+                    tl.bg = ((Long) t.value).intValue();
+                    break;
+
+                case Pebble.KEY_ATTRIBUTE_ALIGNMENT:
+                    tl.alignment = ((Long) t.value).intValue();
+                    break;
+
+                case Pebble.KEY_ATTRIBUTE_FONT:
+                    tl.font = (String) t.value;
+                    break;
+
+                case Pebble.KEY_ATTRIBUTE_TEXT:
+                    if (t.value instanceof String) {
+                        tl.text = ((String) t.value).getBytes(UTF8);
+                    } else {
+                        tl.text = (byte[]) t.value;
+                    }
+                    break;
+
+                case Pebble.KEY_ATTRIBUTE_RECT:
+                    tl.rect = (byte[]) t.value;
+                    break;
+            }
+        }
+        return true;
+    }
+
+    // must be called with this locked.  Defines the id under idKey if req
+    // also carries the value, and returns the value it stands for; null if
+    // the id is unknown, or req itself if there's no id.
+    private Object intern(PebbleDictionary req, int idKey, int valueKey) {
+        int id = getInt(req, idKey);
+        if (id < 0) {
+            return req;
+        }
+        if (req.contains(valueKey)) {
+            Object v = idKey == Pebble.KEY_FONT_ID
+                    ? req.getString(valueKey) : req.getBytes(valueKey);
+            interned.put(id, v);
+            return v;
+        }
+        return interned.get(id);
+    }
+
+    private static int getInt(PebbleDictionary pd, int key) {
+        if (!pd.contains(key)) {
+            return -1;
+        }
+        return pd.getUnsignedIntegerAsLong(key).intValue();
+    }
+
+    private static PebbleDictionary ok(PebbleDictionary resp) {
+        resp.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_OK);
+        return resp;
+    }
+
+    private static PebbleDictionary error(PebbleDictionary resp, int code) {
+        resp.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_ERR);
+        resp.addUint32(Pebble.KEY_ERROR_CODE, code);
+        return resp;
+    }
+
+    // Inspection, for checking what the watch would be showing.
+
+    public synchronized String getText(int tlh) {
+        TextLayer tl = layers.get(tlh);
+        return tl == null ? null : new String(tl.text, UTF8);
+    }
+
+    public synchronized String getFont(int tlh) {
+        TextLayer tl = layers.get(tlh);
+        return tl == null ? null : tl.font;
+    }
+
+    public synchronized int getLayerCount() {
+        return layers.size();
+    }
+
+    public synchronized int getWindowCount() {
+        return windows.size();
+    }
+
+    public synchronized int getTopWindow() {
+        if (windowStack.isEmpty()) {
+            return -1;
+        }
+        return windowStack.get(windowStack.size() - 1);
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getMessagesDropped() {
+        return messagesDropped.get();
+    }
+
+    public long getMessagesNacked() {
+        return messagesNacked.get();
+    }
+
+    public long getAcksReceived() {
+        return acksReceived.get();
+    }
+}
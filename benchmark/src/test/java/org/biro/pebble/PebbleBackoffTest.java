@@ -0,0 +1,122 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleBackoffTest {
+    private SimulatedWatch sw;
+    private PebbleWindow window;
+    // Owned by the executor, like a layer's.
+    private final PebbleBackoff backoff = new PebbleBackoff();
+
+    @Before
+    public void setUp() throws Exception {
+        sw = new SimulatedWatch().start();
+        sw.awaitIdle();
+        window = new PebbleWindow();
+        window.setParent(sw.pebble);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        window.release(null);
+        sw.shutdown();
+    }
+
+    private void fail(final int error) throws Exception {
+        sw.run(new Runnable() {
+            @Override
+            public void run() {
+                backoff.failed(window, error);
+            }
+        });
+    }
+
+    private boolean waiting() throws Exception {
+        return sw.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return backoff.isWaiting();
+            }
+        });
+    }
+
+    private void awaitRetry() throws Exception {
+        sw.await(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return !backoff.isWaiting();
+            }
+        });
+    }
+
+    @Test
+    public void waitsOutAFailure() throws Exception {
+        fail(Pebble.ENOMEM);
+        assertTrue(waiting());
+        awaitRetry();
+        assertFalse(backoff.gaveUp());
+    }
+
+    @Test
+    public void errorsHandledElsewhereDontCount() throws Exception {
+        int[] errors = {Pebble.ENOLAYER, Pebble.ENOWINDOW, Pebble.ENOINTERN,
+                Pebble.ENOTCONN, Pebble.ETIMEDOUT};
+        for (int i = 0; i < Pebble.MAX_ATTEMPTS; i++) {
+            for (int error : errors) {
+                fail(error);
+            }
+        }
+        assertFalse(waiting());
+        assertFalse(backoff.gaveUp());
+    }
+
+    @Test
+    public void givesUpUntilChanged() throws Exception {
+        for (int i = 1; i < Pebble.MAX_ATTEMPTS; i++) {
+            fail(Pebble.ENOMEM);
+            awaitRetry();
+        }
+        fail(Pebble.ENOMEM);
+        assertTrue(backoff.gaveUp());
+        assertFalse(waiting());
+
+        backoff.changed();
+        assertFalse(backoff.gaveUp());
+    }
+
+    @Test
+    public void successStartsTheCountAgain() throws Exception {
+        for (int i = 1; i < Pebble.MAX_ATTEMPTS; i++) {
+            fail(Pebble.ENOMEM);
+            awaitRetry();
+        }
+        backoff.succeeded();
+        fail(Pebble.ENOMEM);
+        assertFalse(backoff.gaveUp());
+        assertTrue(waiting());
+    }
+
+    @Test
+    public void resetStartsOver() throws Exception {
+        for (int i = 1; i < Pebble.MAX_ATTEMPTS; i++) {
+            fail(Pebble.ENOMEM);
+            awaitRetry();
+        }
+        fail(Pebble.ENOMEM);
+        sw.run(new Runnable() {
+            @Override
+            public void run() {
+                backoff.reset();
+            }
+        });
+        assertFalse(waiting());
+        assertFalse(backoff.gaveUp());
+    }
+}
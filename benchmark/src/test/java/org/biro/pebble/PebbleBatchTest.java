@@ -0,0 +1,210 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import android.content.Context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleBatchTest {
+    private SimulatedWatch sw;
+
+    @After
+    public void tearDown() throws Exception {
+        if (sw != null) {
+            sw.shutdown();
+        }
+    }
+
+    private static PebbleDictionary call(int method, int tid, int layer) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, method);
+        pd.addUint32(Pebble.KEY_TRANSACTION_ID, tid);
+        pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, layer);
+        return pd;
+    }
+
+    private static int getInt(PebbleDictionary pd, int key) {
+        return pd.getUnsignedIntegerAsLong(key).intValue();
+    }
+
+    @Test
+    public void packShiftsEachCallsKeys() {
+        PebbleDictionary batch = PebbleBatch.newBatch(100, 2);
+        PebbleBatch.pack(batch, 0, call(Pebble.FUNC_APPLY_ATTRIBUTES, 7, 3));
+        PebbleBatch.pack(batch, 1, call(Pebble.FUNC_NEW_TEXT_LAYER, 8, 4));
+
+        assertEquals(Pebble.FUNC_BATCH, getInt(batch, Pebble.KEY_METHOD_ID));
+        assertEquals(100, getInt(batch, Pebble.KEY_TRANSACTION_ID));
+        assertEquals(2, PebbleBatch.count(batch));
+
+        int k0 = PebbleBatch.KEY_BATCH_BASE;
+        int k1 = PebbleBatch.KEY_BATCH_BASE + PebbleBatch.KEY_BATCH_STRIDE;
+        assertEquals(k0, PebbleBatch.keyOffset(0));
+        assertEquals(k1, PebbleBatch.keyOffset(1));
+        assertEquals(Pebble.FUNC_APPLY_ATTRIBUTES, getInt(batch, k0 + Pebble.KEY_METHOD_ID));
+        assertEquals(7, getInt(batch, k0 + Pebble.KEY_TRANSACTION_ID));
+        assertEquals(3, getInt(batch, k0 + Pebble.KEY_TEXT_LAYER_ID));
+        assertEquals(Pebble.FUNC_NEW_TEXT_LAYER, getInt(batch, k1 + Pebble.KEY_METHOD_ID));
+        assertEquals(8, getInt(batch, k1 + Pebble.KEY_TRANSACTION_ID));
+        assertEquals(4, getInt(batch, k1 + Pebble.KEY_TEXT_LAYER_ID));
+    }
+
+    @Test
+    public void unpackShiftsTheKeysBack() {
+        PebbleDictionary resp = PebbleBatch.newBatch(100, 2);
+        resp.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_OK);
+        PebbleDictionary sub = new PebbleDictionary();
+        sub.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_ERR);
+        sub.addUint32(Pebble.KEY_ERROR_CODE, Pebble.ENOLAYER);
+        sub.addUint32(Pebble.KEY_TRANSACTION_ID, 8);
+        PebbleBatch.pack(resp, 1, sub);
+
+        PebbleDictionary one = PebbleBatch.unpack(resp, 1);
+        assertEquals(Pebble.STATUS_ERR, getInt(one, Pebble.KEY_STATUS));
+        assertEquals(Pebble.ENOLAYER, getInt(one, Pebble.KEY_ERROR_CODE));
+        assertEquals(8, getInt(one, Pebble.KEY_TRANSACTION_ID));
+        assertFalse(PebbleBatch.isBatch(one));
+
+        // No sub-response: the call gets the batch's own status.
+        PebbleDictionary zero = PebbleBatch.unpack(resp, 0);
+        assertEquals(Pebble.STATUS_OK, getInt(zero, Pebble.KEY_STATUS));
+        assertFalse(zero.contains(Pebble.KEY_ERROR_CODE));
+    }
+
+    @Test
+    public void packedSizeAddsUp() {
+        PebbleDictionary a = call(Pebble.FUNC_APPLY_ATTRIBUTES, 7, 3);
+        a.addString(Pebble.KEY_ATTRIBUTE_FONT, "RESOURCE_ID_GOTHIC_18");
+        PebbleDictionary b = call(Pebble.FUNC_NEW_TEXT_LAYER, 8, 4);
+
+        PebbleDictionary batch = PebbleBatch.newBatch(100, 2);
+        PebbleBatch.pack(batch, 0, a);
+        PebbleBatch.pack(batch, 1, b);
+        assertEquals(PebbleBatch.headerSize() + PebbleBatch.packedSize(a)
+                + PebbleBatch.packedSize(b), PebbleBatch.encodedSize(batch));
+    }
+
+    // Records how many calls went out in each message.
+    private static class Recorder implements PebbleTransport {
+        final SimulatedPebble watch;
+        final List<Integer> sizes = new ArrayList<>();
+
+        Recorder(SimulatedPebble watch) {
+            this.watch = watch;
+        }
+
+        @Override
+        public void register(Context ctx, UUID appUuid, Pebble pebble) {
+            watch.register(ctx, appUuid, pebble);
+        }
+
+        @Override
+        public void unregister(Context ctx) {
+            watch.unregister(ctx);
+        }
+
+        @Override
+        public boolean isConnected(Context ctx) {
+            return watch.isConnected(ctx);
+        }
+
+        @Override
+        public void sendData(Context ctx, UUID appUuid, PebbleDictionary data, int tid) {
+            PebbleDictionary pd = PebbleCompact.decode(data);
+            synchronized (sizes) {
+                sizes.add(PebbleBatch.isBatch(pd) ? PebbleBatch.count(pd) : 1);
+            }
+            watch.sendData(ctx, appUuid, data, tid);
+        }
+
+        @Override
+        public void sendAck(Context ctx, int tid) {
+            watch.sendAck(ctx, tid);
+        }
+
+        @Override
+        public void sendNack(Context ctx, int tid) {
+            watch.sendNack(ctx, tid);
+        }
+
+        @Override
+        public void startApp(Context ctx, UUID appUuid) {
+            watch.startApp(ctx, appUuid);
+        }
+
+        @Override
+        public void stopApp(Context ctx, UUID appUuid) {
+            watch.stopApp(ctx, appUuid);
+        }
+    }
+
+    @Test
+    public void batchesHoldAtMostMaxBatchCalls() throws Exception {
+        final int n = 3 * PebbleBatch.MAX_BATCH_CALLS;
+        SimulatedPebble watch = new SimulatedPebble(42);
+        // Slow enough that everything's queued behind the first message.
+        watch.setLatency(20000);
+        Recorder rec = new Recorder(watch);
+        sw = new SimulatedWatch(watch, rec);
+        sw.start();
+        sw.awaitIdle();
+        sw.pebble.setSendWindow(1);
+        // Only count our own calls, not the session check.
+        synchronized (rec.sizes) {
+            rec.sizes.clear();
+        }
+
+        final int[] answered = new int[1];
+        final Pebble.PebbleFinishedCallback done = new Pebble.PebbleFinishedCallback() {
+            @Override
+            public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                        PebbleDictionary req) {
+                if (getInt(resp, Pebble.KEY_STATUS) == Pebble.STATUS_OK) {
+                    answered[0]++;
+                }
+            }
+        };
+        sw.run(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < n; i++) {
+                    PebbleDictionary pd = new PebbleDictionary();
+                    pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_WINDOW);
+                    sw.pebble.sendMessage(null, done, pd);
+                }
+            }
+        });
+        sw.awaitIdle();
+
+        assertEquals(n, sw.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return answered[0];
+            }
+        }).intValue());
+
+        int total = 0;
+        int largest = 0;
+        synchronized (rec.sizes) {
+            for (int size : rec.sizes) {
+                assertTrue("batch of " + size, size <= PebbleBatch.MAX_BATCH_CALLS);
+                total += size;
+                largest = Math.max(largest, size);
+            }
+        }
+        assertEquals(n, total);
+        assertEquals(PebbleBatch.MAX_BATCH_CALLS, largest);
+        assertEquals(n + 1, watch.getWindowCount());
+    }
+}
@@ -0,0 +1,120 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleCompactTest {
+    // A call using every type, with integers either side of each varint
+    // length and a byte array long enough to need two length bytes.
+    private static PebbleDictionary call(int tid) {
+        byte[] text = new byte[300];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) i;
+        }
+
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
+        pd.addUint32(Pebble.KEY_TRANSACTION_ID, tid);
+        pd.addUint32(Pebble.KEY_WINDOW_ID, 0);
+        pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, 31);
+        pd.addUint16(Pebble.KEY_FONT_ID, (short) 0xffff);
+        pd.addInt16(Pebble.KEY_DELTA_OFFSET, (short) -5);
+        pd.addInt32(Pebble.KEY_DELTA_LENGTH, Integer.MIN_VALUE);
+        pd.addUint32(Pebble.KEY_DELTA_BASE, 0xdeadbeef);
+        pd.addUint8(Pebble.KEY_ATTRIBUTE_ALIGNMENT, (byte) 0x80);
+        pd.addInt8(Pebble.KEY_LAYER_COUNT, (byte) -1);
+        pd.addString(Pebble.KEY_ATTRIBUTE_FONT, "RESOURCE_ID_GOTHIC_18 é");
+        pd.addBytes(Pebble.KEY_ATTRIBUTE_TEXT, text);
+        return pd;
+    }
+
+    private static Map<Integer, PebbleTuple> tuples(PebbleDictionary pd) {
+        Map<Integer, PebbleTuple> m = new HashMap<>();
+        for (PebbleTuple t : pd) {
+            m.put(t.key, t);
+        }
+        return m;
+    }
+
+    // Same keys, and each with the same type, width and value.
+    private static void assertSameTuples(PebbleDictionary expected, PebbleDictionary actual) {
+        assertEquals(expected.size(), actual.size());
+        Map<Integer, PebbleTuple> got = tuples(actual);
+        for (PebbleTuple t : expected) {
+            PebbleTuple u = got.get(t.key);
+            String key = "key " + t.key;
+            assertNotNull(key, u);
+            assertEquals(key, t.value.getClass(), u.value.getClass());
+            assertEquals(key, t.length, u.length);
+            if (t.value instanceof byte[]) {
+                assertArrayEquals(key, (byte[]) t.value, (byte[]) u.value);
+            } else {
+                assertEquals(key, t.value, u.value);
+            }
+            if (t.value instanceof Long) {
+                assertEquals(key, PebbleBatch.isSigned(expected, t.key),
+                        PebbleBatch.isSigned(actual, t.key));
+            }
+        }
+    }
+
+    @Test
+    public void callRoundTrips() {
+        PebbleDictionary pd = call(-2);
+        PebbleDictionary wire = PebbleCompact.encode(pd);
+
+        assertTrue(PebbleCompact.isCompact(wire));
+        assertEquals(1, wire.size());
+        assertSameTuples(pd, PebbleCompact.decode(wire));
+    }
+
+    @Test
+    public void batchRoundTrips() {
+        PebbleDictionary batch = PebbleBatch.newBatch(1000, 2);
+        PebbleBatch.pack(batch, 0, call(127));
+        PebbleBatch.pack(batch, 1, call(128));
+        PebbleDictionary wire = PebbleCompact.encode(batch);
+
+        assertEquals(3, wire.size());
+        assertSameTuples(batch, PebbleCompact.decode(wire));
+    }
+
+    @Test
+    public void sizesMatchTheEncoding() {
+        PebbleDictionary a = call(1);
+        PebbleDictionary b = call(1 << 20);
+        // A single call is the dictionary's count byte and its one tuple.
+        assertEquals(1 + PebbleCompact.packedSize(a),
+                PebbleBatch.encodedSize(PebbleCompact.encode(a)));
+
+        PebbleDictionary empty = PebbleBatch.newBatch(-1, 2);
+        PebbleDictionary batch = PebbleBatch.newBatch(-1, 2);
+        PebbleBatch.pack(batch, 0, a);
+        PebbleBatch.pack(batch, 1, b);
+        int header = PebbleBatch.encodedSize(PebbleCompact.encode(empty));
+        assertTrue(header <= PebbleCompact.headerSize());
+        assertEquals(header + PebbleCompact.packedSize(a) + PebbleCompact.packedSize(b),
+                PebbleBatch.encodedSize(PebbleCompact.encode(batch)));
+        assertTrue(PebbleBatch.encodedSize(PebbleCompact.encode(batch))
+                < PebbleBatch.encodedSize(batch));
+    }
+
+    @Test
+    public void plainPassesThrough() {
+        PebbleDictionary pd = call(1);
+        assertFalse(PebbleCompact.isCompact(pd));
+        assertSame(pd, PebbleCompact.decode(pd));
+    }
+}
@@ -0,0 +1,153 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleDataLogTest {
+    private static final UUID A = new UUID(1, 2);
+    private static final UUID B = new UUID(3, 4);
+
+    private File file;
+    private PebbleDataLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("pebble", ".datalog");
+        log = new PebbleDataLog(file, 64);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+        file.delete();
+    }
+
+    @Test
+    public void fileFormat() throws IOException {
+        log.receiveUint(A, 1000, 7, 0x01020304);
+        log.receiveBytes(A, 1000, 7, new byte[] {9, 8});
+        log.finishSession(A, 1000, 7);
+        log.close();
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals('D', in.readByte());
+            assertEquals(1, in.readLong());
+            assertEquals(2, in.readLong());
+            assertEquals(7, in.readInt());
+            assertEquals(1000, in.readInt());
+            assertEquals(5 + 5, in.readInt());
+            // type, then the value little endian.
+            assertEquals(PebbleDataLog.TYPE_UINT, in.readByte());
+            assertEquals(0x04030201, in.readInt());
+            // type, two byte length, data.
+            assertEquals(PebbleDataLog.TYPE_BYTES, in.readByte());
+            assertEquals(2, in.readByte());
+            assertEquals(0, in.readByte());
+            assertEquals(9, in.readByte());
+            assertEquals(8, in.readByte());
+
+            assertEquals('C', in.readByte());
+            assertEquals(1, in.readLong());
+            assertEquals(2, in.readLong());
+            assertEquals(7, in.readInt());
+            assertEquals(1000, in.readInt());
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void readsCommittedRecords() throws IOException {
+        log.receiveUint(A, 1000, 7, -1);
+        log.receiveInt(A, 1000, 7, -1);
+        log.receiveBytes(A, 1000, 7, new byte[] {1, 2, 3});
+        log.finishSession(A, 1000, 7);
+        log.flush();
+        assertEquals(3, log.getReceived());
+        assertEquals(0, log.getDropped());
+
+        PebbleDataLog.Reader r = log.read();
+        try {
+            assertTrue(r.next());
+            assertEquals(A, r.getLogUuid());
+            assertEquals(7, r.getTag());
+            assertEquals(1000, r.getTimestamp());
+            assertEquals(PebbleDataLog.TYPE_UINT, r.getType());
+            assertEquals(0xffffffffL, r.getValue());
+            assertTrue(r.next());
+            assertEquals(PebbleDataLog.TYPE_INT, r.getType());
+            assertEquals(-1, r.getValue());
+            assertTrue(r.next());
+            assertEquals(PebbleDataLog.TYPE_BYTES, r.getType());
+            assertArrayEquals(new byte[] {1, 2, 3}, r.getBytes());
+            assertFalse(r.next());
+            assertEquals(file.length(), r.getOffset());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void offsetStopsAtAnOpenSession() throws IOException {
+        log.receiveUint(A, 1000, 7, 1);
+        log.finishSession(A, 1000, 7);
+        log.flush();
+        long open = file.length();
+        // B's block is written but B isn't finished.
+        log.receiveUint(B, 2000, 8, 2);
+        log.flush();
+
+        PebbleDataLog.Reader r = log.read();
+        long offset;
+        try {
+            assertTrue(r.next());
+            assertEquals(A, r.getLogUuid());
+            assertEquals(1, r.getValue());
+            assertFalse(r.next());
+            offset = r.getOffset();
+        } finally {
+            r.close();
+        }
+        assertEquals(open, offset);
+
+        log.finishSession(B, 2000, 8);
+        log.flush();
+        r = log.read(offset);
+        try {
+            assertTrue(r.next());
+            assertEquals(B, r.getLogUuid());
+            assertEquals(2, r.getValue());
+            assertFalse(r.next());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void dropsWhatCantBeKept() throws IOException {
+        // More than half the ring.
+        log.receiveBytes(A, 1000, 7, new byte[40]);
+        assertEquals(1, log.getDropped());
+
+        log.close();
+        log.receiveUint(A, 1000, 7, 1);
+        log.finishSession(A, 1000, 7);
+        assertEquals(2, log.getReceived());
+        assertEquals(2, log.getDropped());
+        assertEquals(0, file.length());
+    }
+}
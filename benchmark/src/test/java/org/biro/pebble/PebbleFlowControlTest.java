@@ -0,0 +1,109 @@
+package org.biro.pebble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleFlowControlTest {
+    private static final long RTT_US = 50000;
+
+    // Answers n messages, each after rtt.
+    private static void answer(PebbleFlowControl flow, int n, long rttMicros) {
+        for (int i = 0; i < n; i++) {
+            flow.answered(rttMicros, true);
+        }
+    }
+
+    @Test
+    public void growsByAboutOneARoundTrip() {
+        PebbleFlowControl flow = new PebbleFlowControl(2, 8);
+        assertEquals(2, flow.window());
+        // About a window's worth of answers opens it by one.
+        answer(flow, 3, RTT_US);
+        assertEquals(3, flow.window());
+        answer(flow, 3, RTT_US);
+        assertEquals(4, flow.window());
+
+        answer(flow, 1000, RTT_US);
+        assertEquals(8, flow.window());
+        assertFalse(flow.isCongested());
+    }
+
+    @Test
+    public void aNackHalvesItOnceARoundTrip() {
+        PebbleFlowControl flow = new PebbleFlowControl(8, 8);
+        answer(flow, 1, RTT_US);
+        flow.nacked();
+        assertEquals(4, flow.window());
+        // The same bunch of losses.
+        flow.nacked();
+        assertEquals(4, flow.window());
+        assertTrue(flow.isCongested());
+    }
+
+    @Test
+    public void aTimeoutShutsItToOne() {
+        PebbleFlowControl flow = new PebbleFlowControl(8, 8);
+        flow.timedOut();
+        assertEquals(1, flow.window());
+        assertTrue(flow.isCongested());
+    }
+
+    @Test
+    public void queueingStopsTheGrowth() {
+        PebbleFlowControl flow = new PebbleFlowControl(2, 8);
+        answer(flow, 1, RTT_US);
+        // Round trips climbing well past the best one.
+        answer(flow, 50, 10 * RTT_US);
+        assertTrue(flow.isCongested());
+        int window = flow.window();
+        answer(flow, 50, 10 * RTT_US);
+        assertEquals(window, flow.window());
+    }
+
+    @Test
+    public void smoothsRoundTripsAsTcpDoes() {
+        PebbleFlowControl flow = new PebbleFlowControl(2, 8);
+        assertEquals(0, flow.getSrttMicros());
+        assertEquals(1000, flow.timeoutMillis(1000));
+
+        flow.answered(80000, true);
+        assertEquals(80000, flow.getSrttMicros());
+        // srtt + 4 * srtt / 2.
+        assertEquals(240, flow.timeoutMillis(10));
+
+        flow.answered(160000, true);
+        assertEquals(90000, flow.getSrttMicros());
+        // Resent ones say nothing about the link.
+        flow.answered(1000000, false);
+        assertEquals(90000, flow.getSrttMicros());
+
+        // Frames no faster than the link answers.
+        assertEquals(90, flow.frameIntervalMillis(10));
+        assertEquals(100, flow.frameIntervalMillis(100));
+    }
+
+    @Test
+    public void fixedWindowStaysPut() {
+        PebbleFlowControl flow = new PebbleFlowControl(2, 8);
+        flow.configure(false, 5);
+        assertEquals(5, flow.window());
+        answer(flow, 100, RTT_US);
+        flow.nacked();
+        flow.timedOut();
+        assertEquals(5, flow.window());
+    }
+
+    @Test
+    public void resetForgetsTheLink() {
+        PebbleFlowControl flow = new PebbleFlowControl(2, 8);
+        answer(flow, 100, RTT_US);
+        flow.timedOut();
+        flow.reset();
+        assertEquals(2, flow.window());
+        assertEquals(0, flow.getSrttMicros());
+        assertFalse(flow.isCongested());
+    }
+}
@@ -0,0 +1,73 @@
+package org.biro.pebble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleHistogramTest {
+    // Each bucket is a sixteenth of its power of two.
+    private static final double ERROR = 1.0 / 16;
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(expected + " vs " + actual,
+                actual >= expected && actual <= expected + expected * ERROR);
+    }
+
+    @Test
+    public void empty() {
+        PebbleHistogram h = new PebbleHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getMean(), 0);
+        assertEquals(0, h.getPercentile(0.5));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        PebbleHistogram h = new PebbleHistogram();
+        for (int v = 0; v < 16; v++) {
+            h.record(v);
+        }
+        assertEquals(16, h.getCount());
+        assertEquals(15, h.getMax());
+        assertEquals(7.5, h.getMean(), 1e-9);
+        assertEquals(7, h.getPercentile(0.5));
+        assertEquals(0, h.getPercentile(0));
+        assertEquals(15, h.getPercentile(1));
+    }
+
+    @Test
+    public void percentilesWithinABucket() {
+        PebbleHistogram h = new PebbleHistogram();
+        for (int v = 1; v <= 100000; v++) {
+            h.record(v);
+        }
+        assertNear(50000, h.getPercentile(0.50));
+        assertNear(90000, h.getPercentile(0.90));
+        assertNear(99000, h.getPercentile(0.99));
+        // Never past what was seen.
+        assertEquals(100000, h.getPercentile(1));
+        assertEquals(100000, h.getMax());
+    }
+
+    @Test
+    public void outOfRangeIsClamped() {
+        PebbleHistogram h = new PebbleHistogram();
+        h.record(-5);
+        assertEquals(0, h.getMax());
+        h.record(Long.MAX_VALUE);
+        assertEquals((1L << 40) - 1, h.getMax());
+        assertEquals(2, h.getCount());
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        PebbleHistogram h = new PebbleHistogram();
+        h.record(1000);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getPercentile(0.99));
+    }
+}
@@ -0,0 +1,133 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleInternTableTest {
+    private static final int VALUE = Pebble.KEY_ATTRIBUTE_FONT;
+    private static final int ID = Pebble.KEY_FONT_ID;
+
+    private final PebbleInternTable table = new PebbleInternTable();
+    private PebbleDictionary pd;
+
+    @Before
+    public void setUp() {
+        table.reset(PebbleInternTable.DEFAULT_BUDGET);
+    }
+
+    private int add(String value, boolean text) {
+        pd = new PebbleDictionary();
+        return table.add(pd, VALUE, ID, value, null, text);
+    }
+
+    // Adds value and has the watch take it.
+    private int define(String value) {
+        int id = add(value, false);
+        table.done(id, true, pd.contains(VALUE));
+        return id;
+    }
+
+    private boolean sentValue() {
+        return pd.contains(VALUE);
+    }
+
+    private int sentId() {
+        return pd.contains(ID) ? pd.getUnsignedIntegerAsLong(ID).intValue() : -1;
+    }
+
+    @Test
+    public void definedOnceThenJustTheId() {
+        int id = add("font", false);
+        assertTrue(id >= 0);
+        assertTrue(sentValue());
+        assertEquals(id, sentId());
+
+        // Not answered yet: the value goes again.
+        assertEquals(id, add("font", false));
+        assertTrue(sentValue());
+
+        table.done(id, true, true);
+        table.done(id, true, true);
+        assertEquals(id, add("font", false));
+        assertFalse(sentValue());
+        assertEquals(id, sentId());
+    }
+
+    @Test
+    public void textGetsAnIdTheSecondTime() {
+        assertEquals(-1, add("hello", true));
+        assertTrue(sentValue());
+        assertEquals(-1, sentId());
+
+        int id = add("hello", true);
+        assertTrue(id >= 0);
+        assertEquals(id, sentId());
+    }
+
+    @Test
+    public void longTextIsNeverInterned() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= PebbleInternTable.MAX_TEXT; i++) {
+            sb.append('x');
+        }
+        String s = sb.toString();
+        assertEquals(-1, add(s, true));
+        assertEquals(-1, add(s, true));
+        assertTrue(sentValue());
+    }
+
+    @Test
+    public void aFailureSendsTheValueAgain() {
+        int id = add("font", false);
+        table.done(id, false, true);
+        assertEquals(id, add("font", false));
+        assertTrue(sentValue());
+    }
+
+    @Test
+    public void leastRecentlyUsedMakesRoom() {
+        table.reset(10);
+        int a = define("aaaaa");
+        define("bbbbb");
+        // a is the older, and nothing's using it.
+        int c = define("ccccc");
+        assertEquals(a, c);
+
+        add("aaaaa", false);
+        assertTrue(sentValue());
+    }
+
+    @Test
+    public void valuesInUseAreKept() {
+        table.reset(5);
+        int a = add("aaaaa", false);
+        assertEquals(-1, add("bbbbb", false));
+        assertTrue(sentValue());
+
+        // Superseded, so it'll never be answered; now b can have the room.
+        table.release(a);
+        assertTrue(add("bbbbb", false) >= 0);
+    }
+
+    @Test
+    public void noBudgetNoIds() {
+        table.reset(0);
+        assertEquals(-1, add("font", false));
+        assertEquals(-1, add("font", false));
+        assertTrue(sentValue());
+    }
+
+    @Test
+    public void aNewSessionStartsOver() {
+        define("font");
+        table.reset(PebbleInternTable.DEFAULT_BUDGET);
+        add("font", false);
+        assertTrue(sentValue());
+    }
+}
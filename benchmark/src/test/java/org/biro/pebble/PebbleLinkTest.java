@@ -0,0 +1,144 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PebbleLinkTest {
+    private SimulatedWatch sw;
+
+    // Keeps the answer, which arrives on the executor.
+    private static class Answer implements Pebble.PebbleFinishedCallback {
+        volatile PebbleDictionary resp;
+
+        @Override
+        public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                    PebbleDictionary req) {
+            this.resp = resp;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        sw = new SimulatedWatch().start();
+        sw.awaitIdle();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    private void setConnected(final boolean connected) throws Exception {
+        sw.watch.setConnected(connected);
+        sw.await(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return sw.pebble.isLinkDown() != connected;
+            }
+        });
+    }
+
+    private Answer send() throws Exception {
+        final Answer answer = new Answer();
+        sw.run(new Runnable() {
+            @Override
+            public void run() {
+                PebbleDictionary pd = new PebbleDictionary();
+                pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_WINDOW);
+                sw.pebble.sendMessage(null, answer, pd);
+            }
+        });
+        return answer;
+    }
+
+    private void awaitAnswer(final Answer answer) throws Exception {
+        sw.await(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return answer.resp != null;
+            }
+        });
+    }
+
+    private static int get(Answer answer, int key) {
+        return answer.resp.getUnsignedIntegerAsLong(key).intValue();
+    }
+
+    private static PebbleLayout layout(String text) {
+        PebbleLayout l = new PebbleLayout();
+        l.text("title").setText(text);
+        return l;
+    }
+
+    @Test
+    public void changesWhileDownGoAsOne() throws Exception {
+        PebbleWindow pw = new PebbleWindow();
+        pw.setLayout(layout("0"));
+        sw.pebble.getWindowStack().push(null, pw);
+        pw.release(null);
+        sw.awaitIdle();
+
+        setConnected(false);
+        long before = sw.watch.getMessagesReceived();
+        for (int i = 1; i <= 10; i++) {
+            pw.setLayout(layout(Integer.toString(i)));
+            sw.update(pw);
+        }
+        sw.awaitIdle();
+        // Parked, not queued.
+        assertEquals(before, sw.watch.getMessagesReceived());
+
+        setConnected(true);
+        sw.awaitIdle();
+        assertEquals(1, sw.watch.getMessagesReceived() - before);
+        assertEquals("10", sw.watch.getText(sw.watch.getTopWindow() + 1));
+    }
+
+    @Test
+    public void queuedMessagesWaitForTheLink() throws Exception {
+        setConnected(false);
+        long before = sw.watch.getMessagesReceived();
+        Answer answer = send();
+        Thread.sleep(50);
+        assertEquals(1, (int) sw.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return sw.pebble.getQueuedCount();
+            }
+        }));
+        assertNull(answer.resp);
+        assertEquals(before, sw.watch.getMessagesReceived());
+
+        setConnected(true);
+        awaitAnswer(answer);
+        assertEquals(Pebble.STATUS_OK, get(answer, Pebble.KEY_STATUS));
+    }
+
+    @Test
+    public void inFlightFailsWhenTheLinkGoes() throws Exception {
+        // Long enough to still be in flight when the link goes.
+        sw.watch.setLatency(SimulatedWatch.TIMEOUT_MS * 1000 / 4);
+        Answer answer = send();
+        sw.await(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return sw.pebble.getInflightCount() == 1;
+            }
+        });
+        setConnected(false);
+        awaitAnswer(answer);
+        assertEquals(Pebble.STATUS_ERR, get(answer, Pebble.KEY_STATUS));
+        assertEquals(Pebble.ENOTCONN, get(answer, Pebble.KEY_ERROR_CODE));
+        assertEquals(0, sw.pebble.getInflightCount());
+    }
+}
@@ -0,0 +1,134 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleListLayerTest {
+    private static final int ITEMS = 100;
+    private static final int VISIBLE = 4;
+    private static final int PREFETCH = 2;
+
+    private RecordingTransport rec;
+    private SimulatedWatch sw;
+    private PebbleWindow window;
+    private PebbleListLayer list;
+
+    @Before
+    public void setUp() throws Exception {
+        rec = new RecordingTransport();
+        sw = new SimulatedWatch(rec.watch, rec).start();
+        sw.awaitIdle();
+
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < ITEMS; i++) {
+            items.add("item " + i);
+        }
+        list = new PebbleListLayer(0, 0, 144, 20, VISIBLE, PREFETCH);
+        list.setItems(items);
+        window = new PebbleWindow();
+        window.addLayer(list);
+        sw.pebble.getWindowStack().push(null, window);
+        window.release(null);
+        sw.awaitIdle();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    // What the pool's layers show; they follow the window's handle.
+    private Set<String> watchTexts() {
+        Set<String> texts = new HashSet<>();
+        int top = sw.watch.getTopWindow();
+        for (int i = 1; i <= VISIBLE + PREFETCH; i++) {
+            texts.add(sw.watch.getText(top + i));
+        }
+        return texts;
+    }
+
+    private Set<String> items(int from, int to) {
+        Set<String> s = new HashSet<>();
+        for (int i = from; i < to; i++) {
+            s.add("item " + i);
+        }
+        return s;
+    }
+
+    private void scrollBy(int rows) throws Exception {
+        list.scrollBy(rows);
+        sw.update(window);
+        sw.awaitIdle();
+    }
+
+    // true if s went out anywhere since the last clear.  Text goes as
+    // UTF-8 bytes.
+    private boolean sent(String s) {
+        byte[] utf8 = PebbleUtf8.encode(s);
+        for (PebbleDictionary pd : rec.sent()) {
+            for (PebbleTuple t : pd) {
+                if (s.equals(t.value)
+                        || t.value instanceof byte[] && Arrays.equals(utf8, (byte[]) t.value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void onlyThePoolIsOnTheWatch() throws Exception {
+        assertEquals(VISIBLE + PREFETCH, sw.watch.getLayerCount());
+        // What's on screen, and the rows after it.
+        assertEquals(items(0, VISIBLE + PREFETCH), watchTexts());
+
+        list.scrollTo(50);
+        sw.update(window);
+        sw.awaitIdle();
+        assertEquals(VISIBLE + PREFETCH, sw.watch.getLayerCount());
+        assertEquals(50, list.getFirstVisible());
+        assertEquals(items(50, 50 + VISIBLE + PREFETCH), watchTexts());
+    }
+
+    @Test
+    public void scrollingShowsWhatWasPrefetched() throws Exception {
+        rec.clear();
+        scrollBy(1);
+        // The row coming on screen was already there; the one after the
+        // spares is fetched.
+        assertFalse(sent("item " + VISIBLE));
+        assertTrue(sent("item " + (VISIBLE + PREFETCH)));
+        assertTrue(watchTexts().containsAll(items(1, 1 + VISIBLE)));
+    }
+
+    @Test
+    public void scrollingUpPrefetchesAbove() throws Exception {
+        list.scrollTo(50);
+        sw.update(window);
+        sw.awaitIdle();
+        scrollBy(-1);
+        assertEquals(items(49 - PREFETCH, 49 + VISIBLE), watchTexts());
+    }
+
+    @Test
+    public void scrollingStopsAtTheEnds() throws Exception {
+        scrollBy(-5);
+        assertEquals(0, list.getFirstVisible());
+        scrollBy(ITEMS * 2);
+        assertEquals(ITEMS - VISIBLE, list.getFirstVisible());
+    }
+}
@@ -0,0 +1,90 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleMetricsTest {
+    private SimulatedWatch sw;
+    private PebbleMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        sw = new SimulatedWatch().start();
+        sw.awaitIdle();
+        metrics = sw.pebble.enableMetrics();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    @Test
+    public void batchedKeysCountAsTheirOwn() {
+        metrics.recordSent(Pebble.KEY_ATTRIBUTE_TEXT, 10);
+        metrics.recordSent(PebbleBatch.keyOffset(0) + Pebble.KEY_ATTRIBUTE_TEXT, 5);
+        metrics.recordSent(PebbleBatch.keyOffset(3) + Pebble.KEY_ATTRIBUTE_TEXT, 1);
+        assertEquals(16, metrics.snapshot().keyBytes[Pebble.KEY_ATTRIBUTE_TEXT]);
+    }
+
+    @Test
+    public void layerUpdatesPerLayer() {
+        long a = (1L << 32) | 2;
+        long b = (1L << 32) | 3;
+        metrics.recordLayerUpdate(a);
+        metrics.recordLayerUpdate(b);
+        metrics.recordLayerUpdate(a);
+
+        PebbleMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(2, s.layerKeys.length);
+        for (int i = 0; i < s.layerKeys.length; i++) {
+            assertEquals(s.layerKeys[i] == a ? 2 : 1, s.layerUpdates[i]);
+        }
+        assertEquals(0, s.otherLayerUpdates);
+    }
+
+    @Test
+    public void tooManyLayersShareACount() {
+        for (int i = 0; i <= PebbleMetrics.LAYERS; i++) {
+            metrics.recordLayerUpdate((1L << 32) | i);
+        }
+        PebbleMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(PebbleMetrics.LAYERS, s.layerKeys.length);
+        assertEquals(1, s.otherLayerUpdates);
+    }
+
+    @Test
+    public void queueDepthKeepsTheMost() {
+        metrics.recordQueued(3);
+        metrics.recordQueued(7);
+        metrics.recordQueued(2);
+        assertEquals(7, metrics.snapshot().maxQueued);
+    }
+
+    @Test
+    public void theLinkIsMeasured() throws Exception {
+        PebbleWindow pw = new PebbleWindow();
+        PebbleLayout l = new PebbleLayout();
+        l.text("title").setText("measured");
+        pw.setLayout(l);
+        sw.pebble.getWindowStack().push(null, pw);
+        pw.release(null);
+        sw.awaitIdle();
+
+        PebbleMetrics.Snapshot s = metrics.snapshot();
+        assertTrue(s.messagesSent > 0);
+        assertEquals(s.messagesSent, s.messagesReceived);
+        assertTrue(s.bytesSent > 0);
+        assertTrue(s.keyBytes[Pebble.KEY_ATTRIBUTE_TEXT] >= "measured".length());
+        assertEquals(1, s.rttCount[Pebble.FUNC_NEW_WINDOW]);
+        assertEquals(0, s.inflight);
+        assertEquals(0, s.queued);
+        // Nothing's been retried on a perfect link.
+        assertEquals(0, s.retries);
+        assertTrue(s.toString().startsWith("uptime "));
+    }
+}
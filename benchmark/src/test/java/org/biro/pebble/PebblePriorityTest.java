@@ -0,0 +1,143 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PebblePriorityTest {
+    private SimulatedWatch sw;
+    private RecordingTransport rec;
+
+    @Before
+    public void setUp() throws Exception {
+        rec = new RecordingTransport();
+        sw = new SimulatedWatch(rec.watch, rec);
+        sw.start();
+        sw.awaitIdle();
+        // One at a time and unbatched, so the order on the wire is the
+        // order they were taken off the queues.
+        sw.pebble.setBatching(false);
+        sw.pebble.setAdaptiveFlowControl(false);
+        sw.pebble.setSendWindow(1);
+        rec.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    // A message for window w's layer l, or for no handle when w < 0.
+    private static PebbleDictionary message(int w, int l) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
+        if (w >= 0) {
+            pd.addUint32(Pebble.KEY_WINDOW_ID, w);
+            pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, l);
+        }
+        return pd;
+    }
+
+    private int send(PebbleDictionary pd, int priority) {
+        return sw.pebble.sendMessage(null, null, pd, priority);
+    }
+
+    // Everything queued by sends runs before the drainer, which is posted
+    // behind it.
+    private int[] sendAll(final Callable<int[]> sends) throws Exception {
+        int[] tids = sw.call(sends);
+        sw.awaitIdle();
+        return tids;
+    }
+
+    @Test
+    public void mostUrgentFirst() throws Exception {
+        int[] tids = sendAll(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return new int[] {
+                        send(message(-1, 0), Pebble.PRIORITY_BACKGROUND),
+                        send(message(-1, 0), Pebble.PRIORITY_VISIBLE),
+                        send(message(-1, 0), Pebble.PRIORITY_BACKGROUND),
+                        send(message(-1, 0), Pebble.PRIORITY_PUSH),
+                        send(message(-1, 0), Pebble.PRIORITY_VISIBLE),
+                };
+            }
+        });
+        assertEquals(Arrays.asList(tids[3], tids[1], tids[4], tids[0], tids[2]), rec.tids());
+    }
+
+    @Test
+    public void oneHandlesMessagesKeepTheirOrder() throws Exception {
+        int[] tids = sendAll(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return new int[] {
+                        send(message(1, 2), Pebble.PRIORITY_BACKGROUND),
+                        send(message(1, 3), Pebble.PRIORITY_BACKGROUND),
+                        send(message(1, 2), Pebble.PRIORITY_VISIBLE),
+                        send(message(1, 4), Pebble.PRIORITY_VISIBLE),
+                };
+            }
+        });
+        // Layer 2's visible message waits for its background one, then
+        // goes ahead of layer 3's; layer 4 goes ahead of everything.
+        assertEquals(Arrays.asList(tids[3], tids[0], tids[2], tids[1]), rec.tids());
+    }
+
+    @Test
+    public void supersedeReplacesWhatsQueued() throws Exception {
+        final PebbleDictionary newer = message(1, 2);
+        newer.addString(Pebble.KEY_ATTRIBUTE_TEXT, "newer");
+        final boolean[] replaced = new boolean[2];
+        final int[] tids = sendAll(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                int a = send(message(1, 2), Pebble.PRIORITY_BACKGROUND);
+                int b = send(message(-1, 0), Pebble.PRIORITY_BACKGROUND);
+                replaced[0] = sw.pebble.isQueued(a);
+                replaced[1] = sw.pebble.supersede(null, a, null, newer,
+                        Pebble.PRIORITY_BACKGROUND);
+                return new int[] {a, b};
+            }
+        });
+        assertTrue(replaced[0]);
+        assertTrue(replaced[1]);
+        // Sent once, in its old place, with the new data.
+        assertEquals(Arrays.asList(tids[0], tids[1]), rec.tids());
+        assertEquals("newer", rec.sent().get(0).getString(Pebble.KEY_ATTRIBUTE_TEXT));
+
+        // Too late once it's gone.
+        assertFalse(sw.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return sw.pebble.isQueued(tids[0])
+                        || sw.pebble.supersede(null, tids[0], null, message(1, 2),
+                        Pebble.PRIORITY_BACKGROUND);
+            }
+        }));
+    }
+
+    @Test
+    public void supersedeCanRaiseThePriority() throws Exception {
+        int[] tids = sendAll(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                int a = send(message(-1, 0), Pebble.PRIORITY_BACKGROUND);
+                int b = send(message(-1, 0), Pebble.PRIORITY_BACKGROUND);
+                sw.pebble.supersede(null, b, null, message(-1, 0), Pebble.PRIORITY_PUSH);
+                return new int[] {a, b};
+            }
+        });
+        assertEquals(Arrays.asList(tids[1], tids[0]), rec.tids());
+    }
+}
@@ -0,0 +1,104 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PebbleReconcilerTest {
+    private SimulatedWatch sw;
+    private PebbleWindow window;
+
+    @Before
+    public void setUp() throws Exception {
+        sw = new SimulatedWatch().start();
+        sw.awaitIdle();
+        sw.run(new Runnable() {
+            @Override
+            public void run() {
+                window = new PebbleWindow();
+                window.setParent(sw.pebble);
+                window.setLazy(false);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    // key, text, key, text...
+    private static PebbleLayout layout(String... kv) {
+        PebbleLayout l = new PebbleLayout();
+        for (int i = 0; i < kv.length; i += 2) {
+            PebbleLayout.Text t = l.text(kv[i]);
+            t.setText(kv[i + 1]);
+            t.setRect(0, i * 10, 144, 20);
+        }
+        return l;
+    }
+
+    // Sets the layout and waits for the watch to have it.  Returns how many
+    // messages that took.
+    private long render(PebbleLayout layout) throws Exception {
+        long before = sw.watch.getMessagesReceived();
+        window.setLayout(layout);
+        sw.update(window);
+        sw.awaitIdle();
+        return sw.watch.getMessagesReceived() - before;
+    }
+
+    // The text of every layer on the watch, by handle.
+    private List<String> texts() {
+        List<String> texts = new ArrayList<>();
+        for (int h = 0; texts.size() < sw.watch.getLayerCount(); h++) {
+            String text = sw.watch.getText(h);
+            if (text != null) {
+                texts.add(text);
+            }
+        }
+        return texts;
+    }
+
+    @Test
+    public void makesEachKeysLayer() throws Exception {
+        render(layout("a", "one", "b", "two", "c", "three"));
+        assertEquals(Arrays.asList("one", "two", "three"), texts());
+    }
+
+    @Test
+    public void sameLayoutSendsNothing() throws Exception {
+        render(layout("a", "one", "b", "two"));
+        assertEquals(0, render(layout("a", "one", "b", "two")));
+        assertEquals(Arrays.asList("one", "two"), texts());
+    }
+
+    @Test
+    public void sendsOnlyTheLayersThatChanged() throws Exception {
+        render(layout("a", "one", "b", "two", "c", "three"));
+        assertEquals(1, render(layout("a", "one", "b", "TWO", "c", "three")));
+        assertEquals(Arrays.asList("one", "TWO", "three"), texts());
+    }
+
+    @Test
+    public void newKeyTakesALeavingKeysLayer() throws Exception {
+        render(layout("a", "one", "b", "two", "c", "three"));
+        // d reuses b's layer rather than making one, so nothing's created.
+        render(layout("a", "one", "d", "four", "c", "three"));
+        assertEquals(3, sw.watch.getLayerCount());
+        assertEquals(Arrays.asList("one", "four", "three"), texts());
+    }
+
+    @Test
+    public void destroysLayersNobodyTakes() throws Exception {
+        render(layout("a", "one", "b", "two", "c", "three"));
+        render(layout("a", "ONE"));
+        assertEquals(Arrays.asList("ONE"), texts());
+    }
+}
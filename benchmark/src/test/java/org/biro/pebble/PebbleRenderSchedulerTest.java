@@ -0,0 +1,144 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+public class PebbleRenderSchedulerTest {
+    private static final long FRAME_MS = 1000;
+
+    // Runs frames when the test says the time has come.
+    private static class ManualHost implements PebbleRenderScheduler.Host {
+        private static class Posted {
+            final Runnable r;
+            final long due;
+
+            Posted(Runnable r, long due) {
+                this.r = r;
+                this.due = due;
+            }
+        }
+
+        private final ArrayList<Posted> posted = new ArrayList<>();
+        private long now = 100000;
+
+        @Override
+        public synchronized long uptimeMillis() {
+            return now;
+        }
+
+        @Override
+        public synchronized void postDelayed(Runnable r, long delayMillis) {
+            posted.add(new Posted(r, now + delayMillis));
+        }
+
+        synchronized int pending() {
+            return posted.size();
+        }
+
+        synchronized long nextDue() {
+            return posted.get(0).due;
+        }
+
+        // Moves the clock on and runs whatever's come due, on this thread.
+        void advance(long ms) {
+            ArrayList<Runnable> due = new ArrayList<>();
+            synchronized (this) {
+                now += ms;
+                for (int i = 0; i < posted.size(); ) {
+                    if (posted.get(i).due <= now) {
+                        due.add(posted.remove(i).r);
+                    } else {
+                        i++;
+                    }
+                }
+            }
+            for (Runnable r : due) {
+                r.run();
+            }
+        }
+    }
+
+    private SimulatedWatch sw;
+    private ManualHost host;
+    private PebbleWindow window;
+
+    private static PebbleLayout layout(String text) {
+        PebbleLayout l = new PebbleLayout();
+        l.text("title").setText(text);
+        return l;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        sw = new SimulatedWatch().start();
+        sw.awaitIdle();
+        host = new ManualHost();
+        PebbleRenderScheduler scheduler = sw.pebble.getScheduler();
+        scheduler.setHost(host);
+        scheduler.setFrameRate((int) (1000 / FRAME_MS));
+
+        window = new PebbleWindow();
+        window.setLayout(layout("0"));
+        sw.pebble.getWindowStack().push(null, window);
+        window.release(null);
+        sw.awaitIdle();
+        // Whatever the push left for the first frame.
+        host.advance(0);
+        sw.awaitIdle();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    private String watchText() {
+        return sw.watch.getText(sw.watch.getTopWindow() + 1);
+    }
+
+    @Test
+    public void changesBetweenFramesAreCoalesced() throws Exception {
+        long before = sw.watch.getMessagesReceived();
+        for (int i = 1; i <= 5; i++) {
+            window.setLayout(layout(Integer.toString(i)));
+        }
+        sw.awaitIdle();
+        // One frame for all five, and nothing sent until it runs.
+        assertEquals(1, host.pending());
+        assertEquals(before, sw.watch.getMessagesReceived());
+
+        host.advance(FRAME_MS);
+        sw.awaitIdle();
+        assertEquals("5", watchText());
+        assertEquals(1, sw.watch.getMessagesReceived() - before);
+        assertEquals(0, host.pending());
+    }
+
+    @Test
+    public void framesAreAFrameApart() throws Exception {
+        window.setLayout(layout("1"));
+        sw.awaitIdle();
+        host.advance(FRAME_MS);
+        sw.awaitIdle();
+        long frame = host.uptimeMillis();
+
+        // Soon after a frame, the next waits out the rest of the interval.
+        host.advance(300);
+        window.setLayout(layout("2"));
+        sw.awaitIdle();
+        assertEquals(1, host.pending());
+        assertEquals(frame + FRAME_MS, host.nextDue());
+
+        host.advance(FRAME_MS - 300 - 1);
+        sw.awaitIdle();
+        assertEquals("1", watchText());
+        host.advance(1);
+        sw.awaitIdle();
+        assertEquals("2", watchText());
+    }
+}
@@ -0,0 +1,119 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleRetryTest {
+    private SimulatedWatch sw;
+    private long nacked;
+    private long received;
+
+    // Keeps the answer, which arrives on the executor.
+    private static class Answer implements Pebble.PebbleFinishedCallback {
+        volatile PebbleDictionary resp;
+
+        @Override
+        public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                    PebbleDictionary req) {
+            this.resp = resp;
+        }
+
+        int get(int key) {
+            return resp.getUnsignedIntegerAsLong(key).intValue();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // Not started: the watch nacks everything it's sent.  Let the
+        // session check give up first, so it's only our message.
+        sw = new SimulatedWatch();
+        sw.awaitIdle();
+        nacked = sw.watch.getMessagesNacked();
+        received = sw.watch.getMessagesReceived();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    private Answer send() throws Exception {
+        final Answer answer = new Answer();
+        sw.run(new Runnable() {
+            @Override
+            public void run() {
+                PebbleDictionary pd = new PebbleDictionary();
+                pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_WINDOW);
+                sw.pebble.sendMessage(null, answer, pd);
+            }
+        });
+        return answer;
+    }
+
+    private void awaitAnswer(final Answer answer) throws Exception {
+        sw.await(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return answer.resp != null;
+            }
+        });
+    }
+
+    @Test
+    public void backoffDoubles() {
+        assertEquals(Pebble.NACK_BACKOFF_MS, Pebble.backoff(0));
+        assertEquals(Pebble.NACK_BACKOFF_MS, Pebble.backoff(1));
+        assertEquals(2 * Pebble.NACK_BACKOFF_MS, Pebble.backoff(2));
+        assertEquals(4 * Pebble.NACK_BACKOFF_MS, Pebble.backoff(3));
+        assertEquals(Pebble.MAX_NACK_BACKOFF_MS, Pebble.backoff(20));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        long start = System.nanoTime();
+        Answer answer = send();
+        awaitAnswer(answer);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(Pebble.STATUS_ERR, answer.get(Pebble.KEY_STATUS));
+        assertEquals(Pebble.ETIMEDOUT, answer.get(Pebble.KEY_ERROR_CODE));
+        assertEquals(Pebble.MAX_ATTEMPTS, sw.watch.getMessagesNacked() - nacked);
+        assertEquals(Pebble.MAX_ATTEMPTS, sw.watch.getMessagesReceived() - received);
+
+        long backoff = 0;
+        for (int attempt = 1; attempt < Pebble.MAX_ATTEMPTS; attempt++) {
+            backoff += Pebble.backoff(attempt);
+        }
+        assertTrue("gave up after " + elapsedMs + "ms", elapsedMs >= backoff);
+        sw.awaitIdle();
+    }
+
+    @Test
+    public void retriesUntilAccepted() throws Exception {
+        Answer answer = send();
+        sw.await(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return sw.watch.getMessagesNacked() > nacked;
+            }
+        });
+        sw.start();
+        awaitAnswer(answer);
+
+        assertEquals(Pebble.STATUS_OK, answer.get(Pebble.KEY_STATUS));
+        assertTrue(sw.watch.getMessagesNacked() - nacked < Pebble.MAX_ATTEMPTS);
+        assertEquals(2, sw.watch.getWindowCount());
+        sw.awaitIdle();
+    }
+}
@@ -0,0 +1,181 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleSessionCacheTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("pebble", ".session");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    // A cache for session 7 holding one window, saved to file.
+    private void saveOne() {
+        PebbleSessionCache c = new PebbleSessionCache(file);
+        c.confirm(7);
+        c.putHandle("w", 3);
+        c.putAttr("w", PebbleSessionCache.ATTR_TEXT, 99);
+        assertTrue(c.isChanged());
+        c.save();
+        assertFalse(c.isChanged());
+    }
+
+    private PebbleSessionCache load() {
+        PebbleSessionCache c = new PebbleSessionCache(file);
+        c.load();
+        return c;
+    }
+
+    @Test
+    public void fileFormat() throws IOException {
+        saveOne();
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals(0x5042534e, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals(7, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals("w", in.readUTF());
+            assertEquals(3, in.readInt());
+            assertEquals(1 << PebbleSessionCache.ATTR_TEXT, in.readInt());
+            for (int a = 0; a < PebbleSessionCache.ATTRS; a++) {
+                assertEquals(a == PebbleSessionCache.ATTR_TEXT ? 99 : 0, in.readInt());
+            }
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void sameSessionKeepsTheHandles() {
+        saveOne();
+        PebbleSessionCache c = load();
+        // Nothing comes out until the watch has said which session it's in.
+        assertTrue(c.needsCheck());
+        assertNull(c.get("w"));
+
+        final boolean[] woken = {false};
+        c.checking();
+        assertTrue(c.waitFor(new Runnable() {
+            @Override
+            public void run() {
+                woken[0] = true;
+            }
+        }));
+        c.confirm(7);
+        assertTrue(woken[0]);
+        assertFalse(c.needsCheck());
+
+        PebbleSessionCache.Entry e = c.get("w");
+        assertEquals(3, e.handle);
+        assertTrue(e.matches(PebbleSessionCache.ATTR_TEXT, 99));
+        assertFalse(e.matches(PebbleSessionCache.ATTR_TEXT, 98));
+        assertFalse(e.matches(PebbleSessionCache.ATTR_FONT, 0));
+    }
+
+    @Test
+    public void anotherSessionDropsEverything() {
+        saveOne();
+        PebbleSessionCache c = load();
+        c.checking();
+        c.confirm(8);
+        assertNull(c.get("w"));
+
+        c = load();
+        c.checking();
+        c.confirm(PebbleSessionCache.NO_SESSION);
+        assertNull(c.get("w"));
+
+        // And a restart, whatever the session.
+        c = load();
+        c.restarted(7);
+        assertNull(c.get("w"));
+    }
+
+    @Test
+    public void newHandleForgetsTheAttributes() {
+        PebbleSessionCache c = new PebbleSessionCache(file);
+        c.confirm(7);
+        c.putHandle("w", 3);
+        c.putAttr("w", PebbleSessionCache.ATTR_FG, 1);
+        c.putHandle("w", 4);
+        assertFalse(c.get("w").matches(PebbleSessionCache.ATTR_FG, 1));
+        // Only for keys with a handle.
+        c.putAttr("x", PebbleSessionCache.ATTR_FG, 1);
+        assertNull(c.get("x"));
+    }
+
+    private void write(int magic, int version, boolean truncated) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(7);
+            out.writeInt(2);
+            out.writeUTF("w");
+            out.writeInt(3);
+            if (!truncated) {
+                out.writeInt(0);
+                for (int a = 0; a < PebbleSessionCache.ATTRS; a++) {
+                    out.writeInt(0);
+                }
+                out.writeUTF("x");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void ignoresBadFiles() throws IOException {
+        write(0x12345678, 1, false);
+        assertFalse(load().needsCheck());
+
+        write(0x5042534e, 2, false);
+        assertFalse(load().needsCheck());
+
+        // Cut off part way through: nothing of it is kept.
+        write(0x5042534e, 1, true);
+        assertFalse(load().needsCheck());
+        write(0x5042534e, 1, false);
+        assertFalse(load().needsCheck());
+    }
+
+    @Test
+    public void savesOnlyWithASession() {
+        PebbleSessionCache c = new PebbleSessionCache(file);
+        c.putHandle("w", 3);
+        c.save();
+        assertFalse(file.exists());
+
+        // Nor without a file.
+        c = new PebbleSessionCache(null);
+        c.confirm(7);
+        c.putHandle("w", 3);
+        c.save();
+        c.load();
+        assertNull(c.get("w"));
+    }
+}
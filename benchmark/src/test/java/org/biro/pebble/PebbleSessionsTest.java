@@ -0,0 +1,143 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PebbleSessionsTest {
+    private static final UUID APP = new UUID(1, 2);
+    private static final UUID OTHER_APP = new UUID(3, 4);
+
+    // A watch per session.
+    private final ArrayList<SimulatedPebble> watches = new ArrayList<>();
+    // Every session's, since there's no Android I/O thread here.
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+    private PebbleSessions sessions;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (sessions != null) {
+            for (Pebble p : sessions.getSessions()) {
+                p.shutdown();
+            }
+        }
+        io.shutdownNow();
+        io.awaitTermination(SimulatedWatch.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        for (SimulatedPebble w : watches) {
+            w.shutdown();
+        }
+    }
+
+    private PebbleSessions sessions(PebbleSessions.TransportFactory factory) {
+        return new PebbleSessions(factory) {
+            @Override
+            Pebble newPebble(UUID appUuid) {
+                Pebble p = super.newPebble(appUuid);
+                p.setExecutor(io);
+                return p;
+            }
+        };
+    }
+
+    private PebbleSessions simulated() {
+        return sessions(new PebbleSessions.TransportFactory() {
+            @Override
+            public PebbleTransport newTransport(String device, UUID appUuid) {
+                SimulatedPebble w = new SimulatedPebble(42);
+                watches.add(w);
+                return w;
+            }
+        });
+    }
+
+    // Stands in for PebbleKit, which needs a real Context.
+    private static class FakePebbleKit extends PebbleKitTransport {
+        @Override
+        public void register(Context ctx, UUID appUuid, Pebble pebble) {
+        }
+
+        @Override
+        public void unregister(Context ctx) {
+        }
+
+        @Override
+        public boolean isConnected(Context ctx) {
+            return true;
+        }
+
+        @Override
+        public void sendData(Context ctx, UUID appUuid, PebbleDictionary data, int tid) {
+        }
+    }
+
+    @Test
+    public void oneSessionPerDeviceAndApp() throws Exception {
+        sessions = simulated();
+        Pebble a = sessions.get(null, "a", APP);
+        Pebble b = sessions.get(null, "b", APP);
+        assertNotSame(a, b);
+        assertNotSame(a.getTransport(), b.getTransport());
+        assertSame(a, sessions.get(null, "a", APP));
+        assertSame(a, sessions.find("a", APP));
+        assertNull(sessions.find("a", OTHER_APP));
+        assertEquals(2, sessions.getSessions().size());
+    }
+
+    @Test
+    public void removeShutsTheSessionDown() throws Exception {
+        sessions = simulated();
+        Pebble a = sessions.get(null, "a", APP);
+        assertSame(a, sessions.remove("a", APP));
+        assertNull(sessions.find("a", APP));
+        assertNull(sessions.remove("a", APP));
+
+        // Shut down, so nothing more runs for it.
+        final boolean[] ran = {false};
+        a.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        assertFalse(ran[0]);
+        assertNotSame(a, sessions.get(null, "a", APP));
+    }
+
+    @Test
+    public void onePebbleKitSessionPerApp() throws Exception {
+        sessions = sessions(new PebbleSessions.TransportFactory() {
+            @Override
+            public PebbleTransport newTransport(String device, UUID appUuid) {
+                return new FakePebbleKit();
+            }
+        });
+        sessions.get(null, "a", APP);
+        sessions.get(null, "b", OTHER_APP);
+        try {
+            sessions.get(null, "b", APP);
+            fail("two PebbleKit sessions for one app");
+        } catch (PebbleException pe) {
+            // expected.
+        }
+
+        // Once it's gone another device can have it.
+        sessions.remove("a", APP);
+        sessions.get(null, "b", APP);
+    }
+}
@@ -0,0 +1,66 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class PebbleShutdownTest {
+    private SimulatedWatch sw;
+
+    @Before
+    public void setUp() throws Exception {
+        sw = new SimulatedWatch().start();
+        sw.awaitIdle();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    @Test
+    public void nothingRunsAfterShutdown() throws Exception {
+        sw.pebble.shutdown();
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        };
+        sw.pebble.getExecutor().execute(r);
+        // On the shut down timer wheel: dropped, not thrown.
+        sw.pebble.schedule(0, r);
+        Thread.sleep(2 * PebbleTimerWheel.DEFAULT_TICK_MS);
+        assertFalse(ran.get());
+        // The same do-nothing executor each time, not a new I/O thread.
+        assertSame(sw.pebble.getExecutor(), sw.pebble.getExecutor());
+
+        // Shutting down twice is fine.
+        sw.pebble.shutdown();
+    }
+
+    @Test
+    public void theWatchIsUnregistered() throws Exception {
+        long before = sw.watch.getMessagesReceived();
+        sw.pebble.shutdown();
+
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_WINDOW);
+        sw.pebble.sendMessage(null, null, pd);
+        // Would have told the Pebble before.
+        sw.watch.setConnected(false);
+        Thread.sleep(50);
+        assertEquals(before, sw.watch.getMessagesReceived());
+        assertFalse(sw.pebble.isLinkDown());
+    }
+}
@@ -0,0 +1,78 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleTextDeltaTest {
+    private static final String BASE =
+            "Distance 4.21 km  Pace 5:32 /km  Time 23:18  Heart rate 152 bpm";
+
+    private static byte[] utf8(String s) {
+        return PebbleUtf8.encode(s);
+    }
+
+    private static void roundTrip(String from, String to) {
+        byte[] base = utf8(from);
+        byte[] text = utf8(to);
+        PebbleDictionary pd = new PebbleDictionary();
+        assertTrue(PebbleTextDelta.add(pd, base, text));
+        assertArrayEquals(text, PebbleTextDelta.apply(base, pd));
+    }
+
+    @Test
+    public void roundTrips() {
+        roundTrip(BASE, BASE.replace("4.21", "4.22"));
+        roundTrip(BASE, BASE.replace("Time 23:18", "Time 23:19:05"));
+        roundTrip(BASE, BASE.replace("  Heart rate 152 bpm", ""));
+        roundTrip(BASE, "> " + BASE);
+        roundTrip(BASE, BASE + " \u2764");
+    }
+
+    @Test
+    public void sendsOnlyTheChange() {
+        byte[] base = utf8(BASE);
+        PebbleDictionary pd = new PebbleDictionary();
+        assertTrue(PebbleTextDelta.add(pd, base, utf8(BASE.replace("4.21", "4.29"))));
+
+        assertEquals(BASE.indexOf("4.21") + 3,
+                pd.getUnsignedIntegerAsLong(Pebble.KEY_DELTA_OFFSET).intValue());
+        assertEquals(1, pd.getUnsignedIntegerAsLong(Pebble.KEY_DELTA_LENGTH).intValue());
+        assertArrayEquals(utf8("9"), pd.getBytes(Pebble.KEY_ATTRIBUTE_TEXT));
+        assertEquals(PebbleTextDelta.fingerprint(base),
+                pd.getUnsignedIntegerAsLong(Pebble.KEY_DELTA_BASE).intValue());
+    }
+
+    @Test
+    public void refusesTheWrongBase() {
+        byte[] base = utf8(BASE);
+        byte[] text = utf8(BASE.replace("152", "153"));
+        PebbleDictionary pd = new PebbleDictionary();
+        assertTrue(PebbleTextDelta.add(pd, base, text));
+
+        assertNull(PebbleTextDelta.apply(utf8(BASE.replace("152", "160")), pd));
+        // Resent after it was applied: the watch already has text.
+        assertNull(PebbleTextDelta.apply(text, pd));
+    }
+
+    @Test
+    public void fingerprintIsFnv1a() {
+        assertEquals(0x811c9dc5, PebbleTextDelta.fingerprint(new byte[0]));
+        assertEquals(0xe40c292c, PebbleTextDelta.fingerprint(utf8("a")));
+        assertFalse(PebbleTextDelta.fingerprint(utf8("ab"))
+                == PebbleTextDelta.fingerprint(utf8("ba")));
+    }
+
+    @Test
+    public void sendsShortTextWhole() {
+        PebbleDictionary pd = new PebbleDictionary();
+        assertFalse(PebbleTextDelta.add(pd, utf8("12:00"), utf8("12:01")));
+        assertEquals(0, pd.size());
+    }
+}
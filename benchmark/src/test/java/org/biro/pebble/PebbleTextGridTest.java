@@ -0,0 +1,83 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PebbleTextGridTest {
+    private static final int ROWS = 3;
+    private static final int COLUMNS = 2;
+
+    private RecordingTransport rec;
+    private SimulatedWatch sw;
+    private PebbleWindow window;
+    private PebbleTextGrid grid;
+
+    @Before
+    public void setUp() throws Exception {
+        rec = new RecordingTransport();
+        sw = new SimulatedWatch(rec.watch, rec).start();
+        sw.awaitIdle();
+        rec.clear();
+
+        grid = new PebbleTextGrid(ROWS, COLUMNS, 0, 0, 72, 20);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLUMNS; c++) {
+                grid.setText(r, c, r + "," + c);
+            }
+        }
+        window = new PebbleWindow();
+        window.addLayer(grid);
+        sw.pebble.getWindowStack().push(null, window);
+        window.release(null);
+        sw.awaitIdle();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    // The watch hands out handles in order: the window's, then the cells'.
+    private String watchText(int row, int column) {
+        return sw.watch.getText(sw.watch.getTopWindow() + 1 + row * COLUMNS + column);
+    }
+
+    @Test
+    public void oneCallMakesEveryCell() throws Exception {
+        assertEquals(1, rec.calls(Pebble.FUNC_NEW_TEXT_LAYERS));
+        assertEquals(0, rec.calls(Pebble.FUNC_NEW_TEXT_LAYER));
+        assertEquals(ROWS * COLUMNS, sw.watch.getLayerCount());
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLUMNS; c++) {
+                assertEquals(r + "," + c, watchText(r, c));
+            }
+        }
+    }
+
+    @Test
+    public void onlyChangedCellsAreSent() throws Exception {
+        rec.clear();
+        grid.setText(1, 1, "changed");
+        // The same text again is no change.
+        grid.setText(2, 0, "2,0");
+        sw.update(window);
+        sw.awaitIdle();
+        assertEquals(1, rec.calls(Pebble.FUNC_APPLY_ATTRIBUTES));
+        assertEquals("changed", watchText(1, 1));
+        assertEquals("changed", grid.getText(1, 1));
+    }
+
+    @Test
+    public void backgroundCellsGoWhenThereIsRoom() throws Exception {
+        grid.setBackground(0, 0, true);
+        grid.setText(0, 0, "later");
+        grid.setText(0, 1, "now");
+        sw.update(window);
+        sw.awaitIdle();
+        assertEquals("later", watchText(0, 0));
+        assertEquals("now", watchText(0, 1));
+    }
+}
@@ -0,0 +1,99 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleTimerWheelTest {
+    private static final long TICK_MS = 5;
+    // Few enough that a short delay goes round the wheel more than once.
+    private static final int SLOTS = 4;
+
+    private final PebbleTimerWheel wheel = new PebbleTimerWheel(TICK_MS, SLOTS);
+    private final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    private PebbleTimerWheel.Timeout schedule(long delayMillis, final int id,
+                                              final CountDownLatch done) {
+        return wheel.schedule(delayMillis, new Runnable() {
+            @Override
+            public void run() {
+                ran.add(id);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void runsInDeadlineOrder() throws Exception {
+        CountDownLatch done = new CountDownLatch(3);
+        // 2 and 3 are further out than the wheel goes round.
+        schedule(SLOTS * TICK_MS * 3, 3, done);
+        schedule(TICK_MS, 1, done);
+        schedule(SLOTS * TICK_MS + TICK_MS, 2, done);
+        assertTrue(done.await(SimulatedWatch.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(3, ran.size());
+        assertEquals(1, (int) ran.get(0));
+        assertEquals(2, (int) ran.get(1));
+        assertEquals(3, (int) ran.get(2));
+    }
+
+    @Test
+    public void notBeforeItsDeadline() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        schedule(SLOTS * TICK_MS * 2, 1, done);
+        assertTrue(done.await(SimulatedWatch.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        long waited = (System.nanoTime() - start) / 1000000;
+        assertTrue("ran after " + waited + "ms", waited >= SLOTS * TICK_MS * 2 - 1);
+    }
+
+    @Test
+    public void cancelledNeverRuns() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        schedule(TICK_MS, 1, null).cancel();
+        schedule(SLOTS * TICK_MS * 2, 2, null).cancel();
+        // Outlasts both.
+        schedule(SLOTS * TICK_MS * 3, 3, done);
+        assertTrue(done.await(SimulatedWatch.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList(3), ran);
+    }
+
+    @Test
+    public void tasksCanScheduleAgain() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(TICK_MS, new Runnable() {
+            @Override
+            public void run() {
+                ran.add(1);
+                schedule(TICK_MS, 2, done);
+            }
+        });
+        assertTrue(done.await(SimulatedWatch.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, ran.size());
+    }
+
+    @Test
+    public void nothingRunsAfterShutdown() throws Exception {
+        schedule(TICK_MS, 1, null);
+        wheel.shutdown();
+        schedule(TICK_MS, 2, null);
+        Thread.sleep(SLOTS * TICK_MS * 2);
+        assertFalse(ran.contains(2));
+    }
+}
@@ -0,0 +1,119 @@
+package org.biro.pebble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleTransactionTableTest {
+    private static class Tx implements PebbleTransactionTable.Entry {
+        final int tid;
+
+        Tx(int tid) {
+            this.tid = tid;
+        }
+
+        @Override
+        public int transactionId() {
+            return tid;
+        }
+    }
+
+    @Test
+    public void capacityIsAPowerOfTwo() {
+        assertEquals(8, new PebbleTransactionTable<Tx>(5).capacity());
+        assertEquals(8, new PebbleTransactionTable<Tx>(8).capacity());
+        assertEquals(2, new PebbleTransactionTable<Tx>(0).capacity());
+    }
+
+    @Test
+    public void findsWhatWasPut() {
+        PebbleTransactionTable<Tx> table = new PebbleTransactionTable<>(8);
+        Tx a = new Tx(-3);
+        Tx b = new Tx(12);
+        assertTrue(table.put(a));
+        assertTrue(table.put(b));
+
+        assertEquals(2, table.size());
+        assertSame(a, table.get(-3));
+        assertSame(b, table.get(12));
+        assertNull(table.get(4));
+
+        assertSame(a, table.remove(-3));
+        assertNull(table.remove(-3));
+        assertNull(table.get(-3));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void probesPastTombstones() {
+        PebbleTransactionTable<Tx> table = new PebbleTransactionTable<>(4);
+        // All four want slot 1, so each probes past the ones before it.
+        Tx[] tx = {new Tx(1), new Tx(5), new Tx(9), new Tx(13)};
+        for (Tx t : tx) {
+            assertTrue(table.put(t));
+        }
+
+        assertSame(tx[0], table.remove(1));
+        assertSame(tx[1], table.remove(5));
+        assertSame(tx[2], table.get(9));
+        assertSame(tx[3], table.get(13));
+        assertNull(table.at(1));
+    }
+
+    @Test
+    public void reusesTombstones() {
+        PebbleTransactionTable<Tx> table = new PebbleTransactionTable<>(4);
+        for (int tid = 0; tid < 4; tid++) {
+            assertTrue(table.put(new Tx(tid)));
+        }
+        assertFalse(table.put(new Tx(4)));
+
+        assertSame(table.at(2), table.remove(2));
+        Tx t = new Tx(6);
+        assertTrue(table.put(t));
+        assertSame(t, table.at(2));
+        assertSame(t, table.get(6));
+        assertEquals(4, table.size());
+
+        // Churn well past the capacity through the one free slot: it
+        // never fills up with tombstones.
+        assertSame(t, table.remove(6));
+        for (int tid = 10; tid < 1000; tid++) {
+            assertTrue(table.put(new Tx(tid)));
+            assertEquals(tid, table.remove(tid).tid);
+        }
+        assertEquals(3, table.size());
+        assertEquals(0, table.get(0).tid);
+        assertEquals(1, table.get(1).tid);
+        assertEquals(3, table.get(3).tid);
+    }
+
+    @Test
+    public void clearsTombstonesOnceEmpty() {
+        PebbleTransactionTable<Tx> table = new PebbleTransactionTable<>(4);
+        for (int tid = 0; tid < 4; tid++) {
+            assertTrue(table.put(new Tx(tid)));
+        }
+        for (int tid = 0; tid < 3; tid++) {
+            table.remove(tid);
+        }
+        assertEquals(3, table.tombstones());
+
+        // Not empty: the tombstones stay for put to reuse.
+        assertTrue(table.put(new Tx(4)));
+        assertEquals(2, table.tombstones());
+
+        table.remove(3);
+        table.remove(4);
+        assertEquals(0, table.size());
+        assertEquals(4, table.tombstones());
+        assertTrue(table.put(new Tx(9)));
+        assertEquals(0, table.tombstones());
+        assertEquals(9, table.at(1).tid);
+        assertNull(table.get(5));
+    }
+}
@@ -0,0 +1,151 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleWindowStackTest {
+    private SimulatedWatch sw;
+    private PebbleWindowStack stack;
+
+    @Before
+    public void setUp() throws Exception {
+        sw = new SimulatedWatch().start();
+        sw.awaitIdle();
+        stack = sw.pebble.getWindowStack();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    // A window with two layers, held only by the stack once it's on it.
+    private PebbleWindow window(String text) {
+        PebbleWindow pw = new PebbleWindow();
+        PebbleLayout l = new PebbleLayout();
+        l.text("title").setText(text);
+        l.text("body").setText(text + "!");
+        pw.setLayout(l);
+        return pw;
+    }
+
+    private void settle() throws Exception {
+        sw.awaitIdle();
+    }
+
+    private int size() throws Exception {
+        return sw.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return stack.size();
+            }
+        });
+    }
+
+    private PebbleWindow top() throws Exception {
+        return sw.call(new Callable<PebbleWindow>() {
+            @Override
+            public PebbleWindow call() {
+                return stack.getTop();
+            }
+        });
+    }
+
+    @Test
+    public void pushAndPop() throws Exception {
+        PebbleWindow one = window("one");
+        stack.push(null, one);
+        one.release(null);
+        settle();
+        assertEquals(1, size());
+        assertSame(one, top());
+        assertTrue(one.isVisible());
+        assertEquals(2, sw.watch.getWindowCount());
+        assertEquals(2, sw.watch.getLayerCount());
+        // The watch numbers its handles in order, so one's layers follow it.
+        assertEquals("one", sw.watch.getText(sw.watch.getTopWindow() + 1));
+
+        PebbleWindow two = window("two");
+        stack.push(null, two);
+        two.release(null);
+        settle();
+        assertEquals(2, size());
+        assertTrue(two.isVisible());
+        assertFalse(one.isVisible());
+        assertEquals(3, sw.watch.getWindowCount());
+
+        // Popped, and destroyed since nobody else holds it.
+        stack.pop(null);
+        settle();
+        assertEquals(1, size());
+        assertTrue(one.isVisible());
+        assertEquals(2, sw.watch.getWindowCount());
+        assertEquals(2, sw.watch.getLayerCount());
+
+        stack.pop(null);
+        settle();
+        assertEquals(0, size());
+        assertTrue(sw.pebble.getRootWindow().isVisible());
+        assertEquals(1, sw.watch.getWindowCount());
+        assertEquals(0, sw.watch.getLayerCount());
+    }
+
+    @Test
+    public void pushAPreloadedWindow() throws Exception {
+        PebbleWindow one = window("one");
+        stack.push(null, one);
+        one.release(null);
+        PebbleWindow two = window("two");
+        stack.preload(null, two);
+        two.release(null);
+        settle();
+        assertFalse(two.isVisible());
+        assertEquals(3, sw.watch.getWindowCount());
+        assertEquals(4, sw.watch.getLayerCount());
+        int top = sw.watch.getTopWindow();
+
+        // It's all on the watch already, so pushing it is one message.
+        long before = sw.watch.getMessagesReceived();
+        stack.push(null, two);
+        settle();
+        assertEquals(1, sw.watch.getMessagesReceived() - before);
+        assertTrue(two.isVisible());
+        assertTrue(sw.watch.getTopWindow() != top);
+    }
+
+    @Test
+    public void replaceTakesTheTopsPlace() throws Exception {
+        PebbleWindow one = window("one");
+        stack.push(null, one);
+        one.release(null);
+        PebbleWindow two = window("two");
+        stack.push(null, two);
+        two.release(null);
+        settle();
+
+        PebbleWindow three = window("three");
+        stack.replace(null, three);
+        three.release(null);
+        settle();
+        assertEquals(2, size());
+        assertSame(three, top());
+        assertTrue(three.isVisible());
+        // two's gone from the watch, layers and all.
+        assertEquals(3, sw.watch.getWindowCount());
+        assertEquals(4, sw.watch.getLayerCount());
+
+        stack.pop(null);
+        settle();
+        assertSame(one, top());
+        assertTrue(one.isVisible());
+        assertEquals(2, sw.watch.getWindowCount());
+    }
+}
@@ -0,0 +1,141 @@
+package org.biro.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PebbleWindowTest {
+    private SimulatedWatch sw;
+
+    @Before
+    public void setUp() throws Exception {
+        sw = new SimulatedWatch().start();
+        sw.awaitIdle();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sw.shutdown();
+    }
+
+    private static PebbleLayout layout(String text) {
+        PebbleLayout l = new PebbleLayout();
+        l.text("title").setText(text);
+        return l;
+    }
+
+    private PebbleWindow window(String text) {
+        PebbleWindow pw = new PebbleWindow();
+        pw.setParent(sw.pebble);
+        pw.setLayout(layout(text));
+        return pw;
+    }
+
+    // Asks n times on the executor, so the window only gets to look once
+    // they've all been asked.
+    private void push(final PebbleWindow pw, final int n) throws Exception {
+        sw.run(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < n; i++) {
+                    pw.push(null);
+                }
+            }
+        });
+        sw.awaitIdle();
+    }
+
+    @Test
+    public void pushingTwiceIsPushingOnce() throws Exception {
+        long before = sw.watch.getMessagesReceived();
+        PebbleWindow once = window("once");
+        push(once, 1);
+        long sent = sw.watch.getMessagesReceived() - before;
+
+        before = sw.watch.getMessagesReceived();
+        PebbleWindow many = window("many");
+        push(many, 10);
+        assertEquals(sent, sw.watch.getMessagesReceived() - before);
+        assertTrue(many.isVisible());
+        assertEquals(3, sw.watch.getWindowCount());
+    }
+
+    @Test
+    public void updatesCollapseIntoTheLatest() throws Exception {
+        final PebbleWindow pw = window("0");
+        push(pw, 1);
+        long before = sw.watch.getMessagesReceived();
+
+        sw.run(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 20; i++) {
+                    pw.setLayout(layout(Integer.toString(i)));
+                    pw.update(null);
+                }
+            }
+        });
+        sw.awaitIdle();
+        assertEquals(1, sw.watch.getMessagesReceived() - before);
+        assertEquals("20", sw.watch.getText(sw.watch.getTopWindow() + 1));
+    }
+
+    @Test
+    public void aLazyWindowWaitsForItsPush() throws Exception {
+        long before = sw.watch.getMessagesReceived();
+        PebbleWindow pw = window("lazy");
+        sw.update(pw);
+        sw.awaitIdle();
+        assertEquals(before, sw.watch.getMessagesReceived());
+        assertEquals(1, sw.watch.getWindowCount());
+
+        push(pw, 1);
+        assertEquals(2, sw.watch.getWindowCount());
+        assertEquals("lazy", sw.watch.getText(sw.watch.getTopWindow() + 1));
+    }
+
+    // Made on the watch but not pushed.
+    private PebbleWindow made(String text) throws Exception {
+        PebbleWindow pw = window(text);
+        pw.setLazy(false);
+        sw.update(pw);
+        sw.awaitIdle();
+        assertEquals(2, sw.watch.getWindowCount());
+        assertEquals(1, sw.watch.getLayerCount());
+        return pw;
+    }
+
+    @Test
+    public void theLastReleaseDestroys() throws Exception {
+        PebbleWindow pw = made("eager");
+        pw.retain();
+        pw.release(null);
+        sw.awaitIdle();
+        assertEquals(2, sw.watch.getWindowCount());
+
+        pw.release(null);
+        sw.awaitIdle();
+        assertEquals(1, sw.watch.getWindowCount());
+        assertEquals(0, sw.watch.getLayerCount());
+        // Once only.
+        pw.release(null);
+        sw.awaitIdle();
+        assertEquals(1, sw.watch.getWindowCount());
+    }
+
+    @Test
+    public void aDestroyedWindowIsMadeAgain() throws Exception {
+        PebbleWindow pw = made("again");
+        pw.destroy(null);
+        sw.awaitIdle();
+        assertEquals(1, sw.watch.getWindowCount());
+
+        push(pw, 1);
+        assertTrue(pw.isVisible());
+        assertEquals(2, sw.watch.getWindowCount());
+        assertEquals("again", sw.watch.getText(sw.watch.getTopWindow() + 1));
+    }
+}
@@ -0,0 +1,103 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A SimulatedPebble that keeps what was sent to it, in order, for the
+ * tests to look over.  Messages are kept decoded, as the watch reads them.
+ */
+class RecordingTransport implements PebbleTransport {
+    final SimulatedPebble watch;
+    private final List<Integer> tids = new ArrayList<>();
+    private final List<PebbleDictionary> sent = new ArrayList<>();
+
+    RecordingTransport() {
+        this(new SimulatedPebble(42));
+    }
+
+    RecordingTransport(SimulatedPebble watch) {
+        this.watch = watch;
+    }
+
+    @Override
+    public void register(Context ctx, UUID appUuid, Pebble pebble) {
+        watch.register(ctx, appUuid, pebble);
+    }
+
+    @Override
+    public void unregister(Context ctx) {
+        watch.unregister(ctx);
+    }
+
+    @Override
+    public boolean isConnected(Context ctx) {
+        return watch.isConnected(ctx);
+    }
+
+    @Override
+    public void sendData(Context ctx, UUID appUuid, PebbleDictionary data, int tid) {
+        synchronized (this) {
+            tids.add(tid);
+            sent.add(PebbleCompact.decode(data));
+        }
+        watch.sendData(ctx, appUuid, data, tid);
+    }
+
+    @Override
+    public void sendAck(Context ctx, int tid) {
+        watch.sendAck(ctx, tid);
+    }
+
+    @Override
+    public void sendNack(Context ctx, int tid) {
+        watch.sendNack(ctx, tid);
+    }
+
+    @Override
+    public void startApp(Context ctx, UUID appUuid) {
+        watch.startApp(ctx, appUuid);
+    }
+
+    @Override
+    public void stopApp(Context ctx, UUID appUuid) {
+        watch.stopApp(ctx, appUuid);
+    }
+
+    synchronized void clear() {
+        tids.clear();
+        sent.clear();
+    }
+
+    // The transaction ids of the messages sent, batches as one.
+    synchronized List<Integer> tids() {
+        return new ArrayList<>(tids);
+    }
+
+    synchronized List<PebbleDictionary> sent() {
+        return new ArrayList<>(sent);
+    }
+
+    // How many calls of method went, in batches or not.
+    synchronized int calls(int method) {
+        int n = 0;
+        for (PebbleDictionary pd : sent) {
+            if (PebbleBatch.isBatch(pd)) {
+                for (int i = 0; i < PebbleBatch.count(pd); i++) {
+                    int key = PebbleBatch.keyOffset(i) + Pebble.KEY_METHOD_ID;
+                    if (pd.getUnsignedIntegerAsLong(key).intValue() == method) {
+                        n++;
+                    }
+                }
+            } else if (pd.getUnsignedIntegerAsLong(Pebble.KEY_METHOD_ID).intValue() == method) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
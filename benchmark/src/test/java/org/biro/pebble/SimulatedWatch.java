@@ -0,0 +1,132 @@
+package org.biro.pebble;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Pebble talking to a SimulatedPebble, for the tests.  The Pebble gets a
+ * single-thread executor of its own, as it would on Android, and the test
+ * reaches into it only through run and call, so it sees the state the
+ * executor does.  Render frames run on a timer thread of their own, where
+ * Android would use the main looper.
+ */
+class SimulatedWatch {
+    static final long TIMEOUT_MS = 10000;
+
+    final SimulatedPebble watch;
+    final Pebble pebble;
+    // Single-threaded, and a ThreadPoolExecutor so awaitIdle can see what's
+    // waiting to run.
+    private final ThreadPoolExecutor io = new ThreadPoolExecutor(1, 1,
+            0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    private final ScheduledExecutorService frames = Executors.newSingleThreadScheduledExecutor();
+    // frames posted and not yet run.
+    private final AtomicInteger framesPending = new AtomicInteger();
+
+    SimulatedWatch() {
+        this(new SimulatedPebble(42));
+    }
+
+    SimulatedWatch(SimulatedPebble watch) {
+        this(watch, watch);
+    }
+
+    // transport is watch, or something that passes everything on to it.
+    SimulatedWatch(SimulatedPebble watch, PebbleTransport transport) {
+        this.watch = watch;
+        pebble = new Pebble();
+        pebble.setTransport(transport);
+        pebble.setExecutor(io);
+        pebble.getScheduler().setHost(new PebbleRenderScheduler.Host() {
+            @Override
+            public long uptimeMillis() {
+                return System.nanoTime() / 1000000;
+            }
+
+            @Override
+            public void postDelayed(final Runnable r, long delayMillis) {
+                framesPending.incrementAndGet();
+                frames.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            framesPending.decrementAndGet();
+                        }
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+        pebble.registerHandlers(null);
+    }
+
+    // Starts the watch app and waits for it to say so.
+    SimulatedWatch start() throws Exception {
+        pebble.start(null);
+        await(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return pebble.isStarted();
+            }
+        });
+        return this;
+    }
+
+    void run(Runnable r) throws Exception {
+        io.submit(r).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    <T> T call(Callable<T> c) throws Exception {
+        return io.submit(c).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Asks for an update now rather than on the next frame.  Queued behind
+    // whatever the test changed before it.
+    void update(final PebbleWindow pw) throws Exception {
+        run(new Runnable() {
+            @Override
+            public void run() {
+                pw.update(null);
+            }
+        });
+    }
+
+    // Waits, asking on the executor, until done says so.
+    void await(Callable<Boolean> done) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!call(done)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    // Waits until nothing's queued or in flight, and nothing's waiting to
+    // run on the executor, or in a frame, that might send more.
+    void awaitIdle() throws Exception {
+        await(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return io.getQueue().isEmpty() && framesPending.get() == 0
+                        && pebble.getInflightCount() == 0 && pebble.getQueuedCount() == 0;
+            }
+        });
+    }
+
+    // The Pebble's executor goes before the watch, so nothing's sent to a
+    // watch that's gone.
+    void shutdown() throws InterruptedException {
+        pebble.shutdown();
+        frames.shutdownNow();
+        io.shutdownNow();
+        io.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        watch.shutdown();
+    }
+}
@@ -1,14 +1,29 @@
 package org.biro.pebble;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
-import android.util.SparseArray;
 
-import com.getpebble.android.kit.PebbleKit;
 import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * AndroidRun, basic runner's android application. Calculates distance, speed
@@ -42,6 +57,15 @@ public class Pebble {
     public static final int FUNC_NEW_TEXT_LAYER = 2;
     public static final int FUNC_APPLY_ATTRIBUTES = 3;
     public static final int FUNC_PUSH_WINDOW = 4;
+    public static final int FUNC_BATCH = 5;
+    public static final int FUNC_APPLY_TEXT_DELTA = 6;
+    public static final int FUNC_GET_SESSION = 7;
+    public static final int FUNC_NEW_TEXT_LAYERS = 8;
+    public static final int FUNC_DESTROY_LAYER = 9;
+    // takes the window's layers with it.
+    public static final int FUNC_DESTROY_WINDOW = 10;
+    // takes the window off the stack, keeping it for the next push.
+    public static final int FUNC_POP_WINDOW = 11;
 
     public static final int KEY_STATUS = 0;
     public static final int KEY_API_VERSION = 1;
@@ -57,12 +81,36 @@ public class Pebble {
     public static final int KEY_ATTRIBUTE_TEXT = 11;
     public static final int KEY_ATTRIBUTE_ALIGNMENT = 12;
     public static final int KEY_ATTRIBUTE_RECT = 13;
+    public static final int KEY_BATCH_COUNT = 14;
+    public static final int KEY_INBOX_SIZE = 15;
+    public static final int KEY_DELTA_OFFSET = 16;
+    public static final int KEY_DELTA_LENGTH = 17;
+    public static final int KEY_DELTA_BASE = 18;
+    public static final int KEY_SESSION_ID = 19;
+    public static final int KEY_LAYER_COUNT = 20;
+    public static final int KEY_FONT_ID = 21;
+    public static final int KEY_TEXT_ID = 22;
+    public static final int KEY_INTERN_BUDGET = 23;
+    // a call's tuples, packed by PebbleCompact.
+    public static final int KEY_COMPACT = 24;
 
     public static final int STATUS_OK = 0;
     public static final int STATUS_ERR = 1;
     public static final int STATUS_STARTED = 2;
     public static final int STATUS_STOPPED = 3;
 
+    // KEY_API_VERSION values the watch can report in STATUS_STARTED.  Each
+    // version understands everything the ones before it do.
+    public static final int API_VERSION_BASE = 1;
+    public static final int API_VERSION_TEXT_DELTA = 2;
+    public static final int API_VERSION_SESSION = 3;
+    public static final int API_VERSION_LAYER_BLOCK = 4;
+    public static final int API_VERSION_INTERN = 5;
+    public static final int API_VERSION_COMPACT = 6;
+    // FUNC_DESTROY_LAYER and FUNC_DESTROY_WINDOW.
+    public static final int API_VERSION_DESTROY = 7;
+    public static final int API_VERSION_WINDOW_STACK = 8;
+
     public static final int ROOT_WINDOW_HANDLE = 0;
 
     public static final int ENOMEM = 1;
@@ -70,6 +118,20 @@ public class Pebble {
     public static final int ENOLAYER = 3;
     public static final int EINVALID_OP = 4;
     public static final int EINVALID_TRANSACTION = 5;
+    // never sent by the watch: we gave up waiting for an answer.
+    public static final int ETIMEDOUT = 6;
+    // a KEY_FONT_ID or KEY_TEXT_ID the watch doesn't have.
+    public static final int ENOINTERN = 7;
+    // never sent by the watch: the link went down, or the watch app
+    // restarted, before it answered.
+    public static final int ENOTCONN = 8;
+
+    // Where the link to the watch is.  Nothing is sent while it's down;
+    // windows hold their changes until it's back.
+    public static final int LINK_DOWN = 0;
+    public static final int LINK_UP = 1;
+    // up, and our app on the watch has said it's running.
+    public static final int LINK_STARTED = 2;
 
     public static final int COLOR_BLACK = 0;
     public static final int COLOR_WHITE = 1;
@@ -79,186 +141,1409 @@ public class Pebble {
     public static final int TEXT_ALIGNMENT_CENTER = 1;
     public static final int TEXT_ALIGNMENT_RIGHT = 2;
 
+    // How many transactions may be outstanding at once.  The watch queues
+    // incoming AppMessages, but only a handful, so the window is capped.
+    // Flow control starts at the default and finds its own way from there,
+    // up to the cap; see PebbleFlowControl.
+    public static final int DEFAULT_SEND_WINDOW = 4;
+    public static final int MAX_SEND_WINDOW = 8;
+
+    // How long we wait for the answer to a message before sending it
+    // again, and how many times we send it before giving up.  A nack is
+    // retried after NACK_BACKOFF_MS, doubling each time.
+    public static final long RESPONSE_TIMEOUT_MS = 2000;
+    public static final int MAX_ATTEMPTS = 4;
+    public static final long NACK_BACKOFF_MS = 100;
+    public static final long MAX_NACK_BACKOFF_MS = 1600;
+
+    // Send priorities, most urgent first.  Queued messages go out in
+    // priority order, except that messages for the same window/layer
+    // always go in the order they were sent.
+    public static final int PRIORITY_PUSH = 0;
+    public static final int PRIORITY_VISIBLE = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+    private static final int PRIORITY_LEVELS = 3;
+
+    // Messages that don't touch an existing window or layer have no
+    // ordering requirements.
+    private static final long NO_ORDER_KEY = Long.MIN_VALUE;
+
+    // Called on the Pebble's executor; see setExecutor.
     public interface PebbleFinishedCallback {
         public void processIncoming(Context ctx, int tid,
                                     PebbleDictionary resp, PebbleDictionary req);
     };
 
-    private class PacketInfo {
+    // Retry bookkeeping (attempts, timeout) and the queue state (w, data,
+    // taken, superseded) are guarded by the PacketInfo itself.
+    private class PacketInfo implements PebbleTransactionTable.Entry {
+        int tid;
         PebbleFinishedCallback w;
         PebbleDictionary data;
+        long orderKey;
+        // queue order; messages for one handle never overtake each other.
+        long seq;
+        int priority;
+        // taken off the queue to be sent; too late to supersede.
+        boolean taken = false;
+        // replaced by a newer message; dropped when the drainer reaches it.
+        boolean superseded = false;
+        // set when this is a FUNC_BATCH carrying other calls.
+        PacketInfo[] parts;
+        int attempts = 0;
+        PebbleTimerWheel.Timeout timeout;
+        // System.nanoTime() of the last send.
+        long sentAt = 0;
 
-        PacketInfo(PebbleFinishedCallback w, PebbleDictionary data) {
+        PacketInfo(int tid, PebbleFinishedCallback w, PebbleDictionary data, int priority) {
+            this.tid = tid;
             this.w = w;
             this.data = data;
+            this.orderKey = orderKey(data);
+            this.priority = priority;
+        }
+
+        PacketInfo(int tid, PacketInfo[] parts, PebbleDictionary data) {
+            this.tid = tid;
+            this.parts = parts;
+            this.data = data;
+            this.orderKey = NO_ORDER_KEY;
+        }
+
+        @Override
+        public int transactionId() {
+            return tid;
+        }
+
+        // true if this is for an existing window or layer.
+        boolean hasHandles() {
+            if (parts == null) {
+                return orderKey != NO_ORDER_KEY;
+            }
+
+            for (PacketInfo part : parts) {
+                if (part.orderKey != NO_ORDER_KEY) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean hasOrderKey(long key) {
+            if (parts == null) {
+                return orderKey == key;
+            }
+
+            for (PacketInfo part : parts) {
+                if (part.orderKey == key) {
+                    return true;
+                }
+            }
+            return false;
         }
     };
 
-    private final static UUID PEBBLE_APP_UUID =
+    // Messages for the same window/layer handle must reach the watch in the
+    // order they were sent, so they share a key.
+    private static long orderKey(PebbleDictionary data) {
+        if (!data.contains(KEY_WINDOW_ID)) {
+            return NO_ORDER_KEY;
+        }
+
+        long key = data.getUnsignedIntegerAsLong(KEY_WINDOW_ID) << 32;
+        if (data.contains(KEY_TEXT_LAYER_ID)) {
+            key |= data.getUnsignedIntegerAsLong(KEY_TEXT_LAYER_ID) & 0xffffffffL;
+        } else {
+            key |= 0xffffffffL;
+        }
+        return key;
+    }
+
+    public final static UUID DEFAULT_APP_UUID =
                 UUID.fromString("9312d524-6e77-47e4-96ed-e67bd11ce1d5");
 
-    private boolean started = false;
-    private boolean connected = false;
+    // Everything below is per watch app: each Pebble has its own
+    // transaction ids, windows, in-flight table and send queue, so a slow or
+    // missing watch only holds up its own updates.
+    private volatile UUID appUuid = DEFAULT_APP_UUID;
+    private PebbleWindow root = null;
+    private PebbleWindowStack windowStack = null;
+    // the last window pushed, or null for the root window.
+    private volatile PebbleWindow topWindow = null;
+    // every window attached to us, for when the watch app restarts.
+    // Guarded by itself.
+    private final Set<PebbleWindow> windows =
+            Collections.newSetFromMap(new WeakHashMap<PebbleWindow, Boolean>());
+
+    private volatile boolean started = false;
+    private volatile int apiVersion = API_VERSION_BASE;
+    // Changed only on the executor.  Up until registerHandlers asks the
+    // transport, so a Pebble that's never registered still sends.
+    private volatile int linkState = LINK_UP;
+    // what to run when the link comes back up.  Guarded by itself.
+    private final LinkedHashSet<Runnable> parked = new LinkedHashSet<>();
+
+    private PebbleTransport transport = new PebbleKitTransport();
+
+    private final PebbleRenderScheduler scheduler = new PebbleRenderScheduler(this);
 
-    private PebbleReceiver mPebbleReceiver = new PebbleReceiver(this);
+    // Where everything happens: windows build their messages, the queue
+    // drains, and responses, acks and nacks are handled.  Defaults to our
+    // own I/O thread so none of it holds up the main thread.  Set once,
+    // and read without a lock.
+    private volatile Executor executor = null;
+    private HandlerThread ioThread = null;
+    private boolean shutdown = false;
 
-    private PebbleKit.PebbleDataReceiver mPebbleDataReceiver =
-                new PebbleKit.PebbleDataReceiver(PEBBLE_APP_UUID) {
+    // What's left to run things once we're shut down: nothing.
+    private static final Executor DISCARD = new Executor() {
         @Override
-        public void receiveData(Context ctx, int ptid, final PebbleDictionary pebbleDictionary) {
-            if (pebbleDictionary.contains(KEY_STATUS)) {
-                // It's a response to something we sent or a status message.
-                switch(pebbleDictionary.getUnsignedIntegerAsLong(KEY_STATUS).intValue()) {
-                    case STATUS_OK:
-                    case STATUS_ERR:
-                        if (!pebbleDictionary.contains(KEY_TRANSACTION_ID)) {
-                            Log.d(TAG, "Packet Without Transaction ID");
-                            nack(ctx, ptid);
-                            return;
-                        }
-                        ack(ctx, ptid);
-                        int tid = pebbleDictionary.getUnsignedIntegerAsLong(KEY_TRANSACTION_ID).intValue();
-                        PacketInfo info = getPebbleFinished(tid);
-                        removeInflight(tid);
-                        if (info != null && info.w != null) {
-                            info.w.processIncoming(ctx, tid, pebbleDictionary, info.data);
-                        }
-                        return;
+        public void execute(Runnable r) {
+        }
+    };
 
-                    case STATUS_STARTED:
-                        started = true;
-                        ack(ctx, ptid);
-                        return;
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drainOnce(drainCtx);
+                missed = drainers.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    };
+    private volatile Context drainCtx;
 
-                    case STATUS_STOPPED:
-                        started = false;
-                        ack(ctx, ptid);
-                        return;
+    // Called by the transport with each message the watch sends us.
+    public void receiveData(Context ctx, int ptid, PebbleDictionary received) {
+        final PebbleDictionary pebbleDictionary = PebbleCompact.decode(received);
+        PebbleMetrics m = metrics;
+        if (m != null) {
+            m.recordReceived();
+        }
+
+        // Hearing from the watch means it's there, whatever we were told.
+        if (linkState == LINK_DOWN) {
+            setLinkUp(ctx);
+        }
 
-                    default:
+        if (pebbleDictionary.contains(KEY_STATUS)) {
+            // It's a response to something we sent or a status message.
+            switch(pebbleDictionary.getUnsignedIntegerAsLong(KEY_STATUS).intValue()) {
+                case STATUS_OK:
+                case STATUS_ERR:
+                    if (!pebbleDictionary.contains(KEY_TRANSACTION_ID)) {
+                        Log.d(TAG, "Packet Without Transaction ID");
                         nack(ctx, ptid);
-                        Log.e(TAG, "Unknown status in read: " + pebbleDictionary.getUnsignedIntegerAsLong(KEY_STATUS));
                         return;
+                    }
+                    ack(ctx, ptid);
+                    int tid = pebbleDictionary.getUnsignedIntegerAsLong(KEY_TRANSACTION_ID).intValue();
+                    PacketInfo info = removeInflight(tid);
+                    if (info != null) {
+                        recordRoundTrip(info);
+                        finish(ctx, info, pebbleDictionary);
+                    }
+                    drain(ctx);
+                    return;
+
+                case STATUS_STARTED:
+                    started = true;
+                    linkState = LINK_STARTED;
+                    apiVersion = API_VERSION_BASE;
+                    if (pebbleDictionary.contains(KEY_API_VERSION)) {
+                        apiVersion = pebbleDictionary.getUnsignedIntegerAsLong(KEY_API_VERSION).intValue();
+                    }
+                    if (pebbleDictionary.contains(KEY_INBOX_SIZE)) {
+                        setInboxSize(pebbleDictionary.getUnsignedIntegerAsLong(KEY_INBOX_SIZE).intValue());
+                    }
+                    int budget = 0;
+                    if (apiVersion >= API_VERSION_INTERN) {
+                        budget = PebbleInternTable.DEFAULT_BUDGET;
+                        if (pebbleDictionary.contains(KEY_INTERN_BUDGET)) {
+                            budget = pebbleDictionary.getUnsignedIntegerAsLong(KEY_INTERN_BUDGET).intValue();
+                        }
+                    }
+                    interns.reset(budget);
+                    // A fresh start means fresh handles.
+                    sessionCache.restarted(sessionId(pebbleDictionary));
+                    sessionCacheChanged();
+                    ack(ctx, ptid);
+                    restarted(ctx);
+                    return;
+
+                case STATUS_STOPPED:
+                    started = false;
+                    if (linkState == LINK_STARTED) {
+                        linkState = LINK_UP;
+                    }
+                    ack(ctx, ptid);
+                    return;
+
+                default:
+                    nack(ctx, ptid);
+                    Log.e(TAG, "Unknown status in read: " + pebbleDictionary.getUnsignedIntegerAsLong(KEY_STATUS));
+                    return;
+            }
+        }
+    }
+
+    // executor only.  The watch app has started, and whatever windows and
+    // layers it had went with the last one.  Every window forgets its
+    // handles and makes what it needs again, the windows that were on
+    // the watch's stack are pushed again in order, and messages for the
+    // old handles are dropped before they reach whatever the new app
+    // gives the same numbers to.
+    private void restarted(Context ctx) {
+        PebbleWindow[] live;
+        synchronized (windows) {
+            live = windows.toArray(new PebbleWindow[windows.size()]);
+        }
+
+        PebbleWindow top = topWindow;
+        topWindow = null;
+        for (PebbleWindow pw : live) {
+            pw.restarted(ctx);
+        }
+        dropStale(ctx);
+
+        PebbleWindowStack stack;
+        synchronized (this) {
+            stack = windowStack;
+        }
+        if (stack != null && stack.size() > 0) {
+            stack.replay(ctx);
+        } else if (top != null) {
+            top.push(ctx);
+        }
+        for (PebbleWindow pw : live) {
+            pw.update(ctx);
+        }
+        drain(ctx);
+    }
+
+    // executor only.  Fails every message for a window or layer handle,
+    // queued or in flight, as if the link had gone.
+    private void dropStale(Context ctx) {
+        for (int p = 0; p < PRIORITY_LEVELS; p++) {
+            for (PacketInfo pi : pending[p]) {
+                if (!pi.hasHandles()) {
+                    continue;
+                }
+                synchronized (pi) {
+                    if (pi.taken || pi.superseded) {
+                        continue;
+                    }
+                    // the drainer throws it away.
+                    pi.superseded = true;
                 }
+                fail(ctx, pi, ENOTCONN);
             }
         }
-    };
 
-    private void removeInflight(int tid) {
-        synchronized (inflight) {
-            inflight.delete(tid);
+        for (int i = 0; i < inflight.capacity(); i++) {
+            PacketInfo pi = inflight.at(i);
+            if (pi != null && pi.hasHandles() && removeInflight(pi.tid) == pi) {
+                fail(ctx, pi, ENOTCONN);
+            }
         }
     }
 
-    private PebbleKit.PebbleAckReceiver mPebbleAckReceiver =
-            new PebbleKit.PebbleAckReceiver(PEBBLE_APP_UUID) {
-        @Override
-        public void receiveAck(Context context, int i) {
+    // Hands the response to whoever sent the message.  A batch response is
+    // split back into one response per call.
+    private void finish(Context ctx, PacketInfo info, PebbleDictionary resp) {
+        if (info.parts == null) {
+            if (info.w != null) {
+                info.w.processIncoming(ctx, info.tid, resp, info.data);
+            }
+            return;
+        }
 
+        for (int i = 0; i < info.parts.length; i++) {
+            PacketInfo part = info.parts[i];
+            PebbleDictionary sub = PebbleBatch.unpack(resp, i);
+            if (sub.contains(KEY_TRANSACTION_ID)
+                    && sub.getUnsignedIntegerAsLong(KEY_TRANSACTION_ID).intValue() != part.tid) {
+                Log.e(TAG, "Batch response out of order at " + i);
+            }
+            if (part.w != null) {
+                part.w.processIncoming(ctx, part.tid, sub, part.data);
+            }
         }
-    };
+    }
 
-    private PebbleKit.PebbleNackReceiver mPebbleNackReceiver =
-            new PebbleKit.PebbleNackReceiver(PEBBLE_APP_UUID) {
-        @Override
-        public void receiveNack(Context context, int i) {
+    // Takes tid out of the in-flight table and returns it, or null if it
+    // wasn't there: a duplicate answer to a resent message, or one we've
+    // already given up on.
+    private PacketInfo removeInflight(int tid) {
+        PacketInfo pi = inflight.remove(tid);
+        if (pi != null) {
+            synchronized (pi) {
+                if (pi.timeout != null) {
+                    pi.timeout.cancel();
+                }
+            }
+        }
+        return pi;
+    }
 
+    // Called by the transport when the watch nacks one of our messages,
+    // usually because its inbox was full.  Back off and try again.
+    public void receiveNack(Context context, int i) {
+        PacketInfo pi = inflight.get(i);
+        if (pi == null) {
+            return;
         }
-    };
 
-    private PebbleKit.PebbleDataLogReceiver mPebbleLogReceiver =
-            new PebbleKit.PebbleDataLogReceiver(PEBBLE_APP_UUID) {
-        @Override
-        public void receiveData(Context context, UUID logUuid, Long timestamp, Long tag, Long data) {
-            super.receiveData(context, logUuid, timestamp, tag, data);
+        PebbleMetrics m = metrics;
+        if (m != null) {
+            m.recordNack();
         }
+        flow.nacked();
 
-        @Override
-        public void receiveData(Context context, UUID logUuid, Long timestamp, Long tag, byte[] data) {
-            super.receiveData(context, logUuid, timestamp, tag, data);
+        synchronized (pi) {
+            retryLater(pi, backoff(pi.attempts));
         }
+    }
 
-        @Override
-        public void receiveData(Context context, UUID logUuid, Long timestamp, Long tag, int data) {
-            super.receiveData(context, logUuid, timestamp, tag, data);
+    // How long to wait before the next of attempts tries, doubling each
+    // time up to MAX_NACK_BACKOFF_MS.
+    static long backoff(int attempts) {
+        long backoff = NACK_BACKOFF_MS << (attempts > 1 ? attempts - 1 : 0);
+        return backoff > MAX_NACK_BACKOFF_MS ? MAX_NACK_BACKOFF_MS : backoff;
+    }
+
+    // Runs r on the executor in about delayMillis.
+    void schedule(long delayMillis, final Runnable r) {
+        timers.schedule(delayMillis, new Runnable() {
+            @Override
+            public void run() {
+                getExecutor().execute(r);
+            }
+        });
+    }
+
+    // must be called with pi locked.
+    private void setDeadline(final PacketInfo pi, long delay, final boolean resend) {
+        if (pi.timeout != null) {
+            pi.timeout.cancel();
         }
 
-        @Override
-        public void onFinishSession(Context context, UUID logUuid, Long timestamp, Long tag) {
-            super.onFinishSession(context, logUuid, timestamp, tag);
+        final Runnable expire = new Runnable() {
+            @Override
+            public void run() {
+                expired(pi, resend);
+            }
+        };
+        // the wheel's thread only keeps time; the resend goes out from the
+        // executor like everything else.
+        pi.timeout = timers.schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                getExecutor().execute(expire);
+            }
+        });
+    }
+
+    // must be called with pi locked.
+    private void retryLater(PacketInfo pi, long delay) {
+        setDeadline(pi, delay, true);
+    }
+
+    private void expired(PacketInfo pi, boolean resend) {
+        synchronized (pi) {
+            if (inflight.get(pi.tid) != pi) {
+                return;  // answered in the meantime.
+            }
+
+            if (pi.attempts < MAX_ATTEMPTS) {
+                if (resend) {
+                    resendMessage(mContext, pi);
+                } else {
+                    // No answer in time.  Back off as for a nack.
+                    flow.timedOut();
+                    retryLater(pi, backoff(pi.attempts));
+                }
+                return;
+            }
         }
 
-    };
+        // If the answer beat us to it, it's already been delivered.
+        if (inflight.remove(pi.tid) != pi) {
+            return;
+        }
 
-    // My transaction id, not to be confused with the Pebble TID.
-    static int transaction_id;
-    static {
-        transaction_id = new Random().nextInt();
+        PebbleMetrics m = metrics;
+        if (m != null) {
+            m.recordTimeout();
+        }
+        Log.e(TAG, "Giving up on transaction " + pi.tid + " after " + pi.attempts + " attempts");
+        fail(mContext, pi, ETIMEDOUT);
+        drain(mContext);
     }
 
-    synchronized static int nextTransactionID() {
-        return ++transaction_id;
+    // Gives up on a message, telling its sender with error in place of the
+    // watch's response.
+    private void fail(Context ctx, PacketInfo pi, int error) {
+        PebbleDictionary resp = new PebbleDictionary();
+        resp.addUint32(KEY_STATUS, STATUS_ERR);
+        resp.addUint32(KEY_ERROR_CODE, error);
+        resp.addUint32(KEY_TRANSACTION_ID, pi.tid);
+        finish(ctx, pi, resp);
+    }
+
+    // My transaction id, not to be confused with the Pebble TID.
+    private final AtomicInteger transaction_id = new AtomicInteger(new Random().nextInt());
+
+    int nextTransactionID() {
+        return transaction_id.incrementAndGet();
     }
 
     private void nack(Context ctx, int transaction_id) {
-        PebbleKit.sendNackToPebble(ctx, transaction_id);
+        transport.sendNack(ctx, transaction_id);
     }
 
     private void ack(Context ctx, int transaction_id) {
-        PebbleKit.sendAckToPebble(ctx, transaction_id);
+        transport.sendAck(ctx, transaction_id);
     }
 
-    private final SparseArray<PacketInfo> inflight = new SparseArray<>();
+    // Sized well beyond MAX_SEND_WINDOW so probes stay short.
+    private final PebbleTransactionTable<PacketInfo> inflight =
+            new PebbleTransactionTable<>(4 * MAX_SEND_WINDOW);
 
-    private PacketInfo getPebbleFinished(int tid) {
-        synchronized (inflight) {
-            PacketInfo pi = inflight.get(tid);
-            return pi;
+    private final PebbleTimerWheel timers = new PebbleTimerWheel();
+
+    // How long after the last change the handle cache gets written.
+    public static final long SESSION_SAVE_DELAY_MS = 1000;
+
+    // Off until the watch says it can do it.
+    private final PebbleInternTable interns = new PebbleInternTable();
+
+    private volatile PebbleMetrics metrics = null;
+    private volatile PebbleDataLog dataLog = null;
+    private final AtomicInteger exporterGeneration = new AtomicInteger();
+
+    private volatile PebbleSessionCache sessionCache = new PebbleSessionCache(null);
+    private final AtomicBoolean sessionSaveScheduled = new AtomicBoolean();
+    private String deviceName = null;
+
+    private final Runnable saveSession = new Runnable() {
+        @Override
+        public void run() {
+            sessionSaveScheduled.set(false);
+            sessionCache.save();
         }
+    };
+    private Context mContext;
+
+    // Messages waiting for room in the send window, one queue per
+    // priority.  Anyone can add; only the thread that holds the drain
+    // removes.
+    private final ConcurrentLinkedQueue<PacketInfo>[] pending = newQueues();
+    private final AtomicInteger[] queued = new AtomicInteger[PRIORITY_LEVELS];
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    {
+        for (int i = 0; i < PRIORITY_LEVELS; i++) {
+            queued[i] = new AtomicInteger();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<PacketInfo>[] newQueues() {
+        ConcurrentLinkedQueue<PacketInfo>[] q =
+                (ConcurrentLinkedQueue<PacketInfo>[]) new ConcurrentLinkedQueue<?>[PRIORITY_LEVELS];
+        for (int i = 0; i < PRIORITY_LEVELS; i++) {
+            q[i] = new ConcurrentLinkedQueue<>();
+        }
+        return q;
     }
 
-    public void sendMessage(Context ctx,  PebbleFinishedCallback w, PebbleDictionary data) {
+    // How many drain() calls are outstanding.  Whoever takes it from zero
+    // drains, and keeps going until everyone who came along meanwhile has
+    // been covered.
+    private final AtomicInteger drainers = new AtomicInteger();
+
+    // Owned by the drainer.  Order keys (and queue order) of messages
+    // passed over during this pass, so nothing later for the same handle
+    // overtakes them, and the calls going into the current batch.
+    private long[] skipped = new long[8];
+    private long[] skippedSeq = new long[8];
+    private final ArrayList<PacketInfo> batchParts = new ArrayList<>();
+
+    private final PebbleFlowControl flow =
+            new PebbleFlowControl(DEFAULT_SEND_WINDOW, MAX_SEND_WINDOW);
+
+    // Size of the watch's AppMessage inbox.  Zero until the watch tells us
+    // in STATUS_STARTED, and we don't batch until it has.
+    private volatile int inboxSize = 0;
+    private volatile boolean batching = true;
+    private volatile boolean compactEncoding = true;
+
+    public int sendMessage(Context ctx,  PebbleFinishedCallback w, PebbleDictionary data) {
+        return sendMessage(ctx, w, data, PRIORITY_VISIBLE);
+    }
+
+    // Returns the transaction id, which supersede takes.
+    public int sendMessage(Context ctx,  PebbleFinishedCallback w, PebbleDictionary data,
+                           int priority) {
         int tid = nextTransactionID();
 
         data.addUint32(KEY_TRANSACTION_ID, tid);
-        synchronized (inflight) {
-            inflight.put(tid, new PacketInfo(w, data));
+        enqueue(new PacketInfo(tid, w, data, priority));
+
+        drain(ctx);
+        return tid;
+    }
+
+    private void enqueue(PacketInfo pi) {
+        pi.seq = sequence.incrementAndGet();
+        pending[pi.priority].add(pi);
+        queued[pi.priority].incrementAndGet();
+        int depth = pendingCount.incrementAndGet();
+
+        PebbleMetrics m = metrics;
+        if (m != null) {
+            m.recordQueued(depth);
+        }
+    }
+
+    // Replaces message tid with data if it hasn't been sent yet, so a
+    // backlog of stale updates for one layer collapses into the latest.
+    // The old message's callback is never called; w gets the answer.  When
+    // priority is unchanged the new message keeps the old one's place in
+    // the queue.  Returns false when it's too late: tid is already on its
+    // way, or done.
+    public boolean supersede(Context ctx, int tid, PebbleFinishedCallback w,
+                             PebbleDictionary data, int priority) {
+        PacketInfo old = findQueued(tid);
+        if (old == null) {
+            return false;
+        }
+
+        data.addUint32(KEY_TRANSACTION_ID, tid);
+        synchronized (old) {
+            if (old.taken || old.superseded) {
+                return false;
+            }
+
+            if (old.priority == priority) {
+                old.w = w;
+                old.data = data;
+                old.orderKey = orderKey(data);
+                return true;
+            }
+            old.superseded = true;
+        }
+
+        enqueue(new PacketInfo(tid, w, data, priority));
+        drain(ctx);
+        return true;
+    }
+
+    // true while tid is waiting to be sent and can still be superseded.
+    public boolean isQueued(int tid) {
+        return findQueued(tid) != null;
+    }
+
+    private PacketInfo findQueued(int tid) {
+        for (int p = 0; p < PRIORITY_LEVELS; p++) {
+            if (queued[p].get() == 0) {
+                continue;
+            }
+            for (PacketInfo pi : pending[p]) {
+                if (pi.tid == tid && !pi.superseded) {
+                    return pi;
+                }
+            }
+        }
+        return null;
+    }
+
+    // drainer only.  true if pi mustn't go yet because something for the
+    // same handle is ahead of it: in flight, passed over this pass, or
+    // queued earlier at a lower priority.
+    private boolean isOrderBlocked(PacketInfo pi, int nskipped) {
+        long key = pi.orderKey;
+        if (key == NO_ORDER_KEY) {
+            return false;
+        }
+
+        for (int i = 0; i < nskipped; i++) {
+            if (skipped[i] == key && skippedSeq[i] < pi.seq) {
+                return true;
+            }
+        }
+
+        for (int p = pi.priority + 1; p < PRIORITY_LEVELS; p++) {
+            if (queued[p].get() == 0) {
+                continue;
+            }
+            for (PacketInfo q : pending[p]) {
+                if (q.orderKey == key && q.seq < pi.seq && !q.superseded) {
+                    return true;
+                }
+            }
+        }
+
+        for (int i = 0; i < inflight.capacity(); i++) {
+            PacketInfo f = inflight.at(i);
+            if (f != null && f.hasOrderKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // drainer only.  Returns the new number of skipped keys.
+    private int skip(PacketInfo pi, int nskipped) {
+        if (pi.orderKey == NO_ORDER_KEY) {
+            return nskipped;
+        }
+
+        if (nskipped == skipped.length) {
+            skipped = Arrays.copyOf(skipped, nskipped * 2);
+            skippedSeq = Arrays.copyOf(skippedSeq, nskipped * 2);
+        }
+        skipped[nskipped] = pi.orderKey;
+        skippedSeq[nskipped] = pi.seq;
+        return nskipped + 1;
+    }
+
+    private static final int TAKE_DROPPED = -1;
+    private static final int TAKE_NO_ROOM = -2;
+
+    // drainer only.  Takes the iterator's current element, pi, off its
+    // queue if its packed size fits in room (MAX_VALUE to not measure).
+    // Returns the size, TAKE_NO_ROOM and leaves it queued, or TAKE_DROPPED
+    // if it had been superseded and was thrown away.  Done under pi's lock
+    // so supersede can't swap the data after it's been measured.
+    private int take(Iterator<PacketInfo> it, PacketInfo pi, int room) {
+        int size = 0;
+        synchronized (pi) {
+            if (!pi.superseded) {
+                if (room != Integer.MAX_VALUE) {
+                    size = packedSize(pi.data);
+                    if (size > room) {
+                        return TAKE_NO_ROOM;
+                    }
+                }
+                pi.taken = true;
+            } else {
+                size = TAKE_DROPPED;
+            }
+        }
+
+        it.remove();
+        queued[pi.priority].decrementAndGet();
+        pendingCount.decrementAndGet();
+        return size;
+    }
+
+    private boolean canBatch() {
+        return batching && inboxSize > 0;
+    }
+
+    private boolean compact() {
+        return compactEncoding && apiVersion >= API_VERSION_COMPACT;
+    }
+
+    // What data adds to a batch, in whichever encoding it'll go out in.
+    private int packedSize(PebbleDictionary data) {
+        return compact() ? PebbleCompact.packedSize(data) : PebbleBatch.packedSize(data);
+    }
+
+    private int batchHeaderSize() {
+        return compact() ? PebbleCompact.headerSize() : PebbleBatch.headerSize();
+    }
+
+    // data as it goes over the air.
+    private PebbleDictionary wire(PebbleDictionary data) {
+        return compact() ? PebbleCompact.encode(data) : data;
+    }
+
+    // Sends pending messages until the window is full.  A message whose
+    // window/layer already has one in flight is held back; anything queued
+    // behind it for the same handle is held back with it, so per-handle
+    // order is kept while unrelated handles go ahead.  Once the window has
+    // filled up, messages that queued behind it are sent as batches.
+    //
+    // Draining happens on the executor, one drainer at a time, and nobody
+    // waits for it: a caller that finds a drain under way just leaves it a
+    // note to go round again.
+    private void drain(Context ctx) {
+        if (ctx != null) {
+            drainCtx = ctx;
+        }
+        if (drainers.getAndIncrement() == 0) {
+            getExecutor().execute(drainer);
+        }
+    }
+
+    // drainer only.  Most urgent queue first.  While the link is down
+    // everything stays queued; linkUp drains it.
+    private void drainOnce(Context ctx) {
+        if (linkState == LINK_DOWN) {
+            return;
+        }
+
+        int window = flow.window();
+        int nskipped = 0;
+        for (int p = 0; p < PRIORITY_LEVELS && hasRoom(window); p++) {
+            if (queued[p].get() != 0) {
+                nskipped = drainQueue(ctx, p, nskipped, window);
+            }
+        }
+    }
+
+    // drainer only.  true if another message can go: the window isn't full
+    // and there's a free slot in the in-flight table.  Checked before a
+    // message is taken off its queue, so one that can't go stays queued
+    // until an answer frees a slot and drains again.  Slots only free up
+    // behind our back, so the answer can't go stale in our favour.
+    private boolean hasRoom(int window) {
+        int n = inflight.size();
+        if (n >= inflight.capacity()) {
+            Log.e(TAG, "Transaction table full");
+            return false;
+        }
+        return n < window;
+    }
+
+    // drainer only.  Returns the new number of skipped keys.
+    private int drainQueue(Context ctx, int priority, int nskipped, int window) {
+        Iterator<PacketInfo> it = pending[priority].iterator();
+        // a message looked at while filling a batch that didn't fit.  It's
+        // the iterator's current element, so it.remove() still applies.
+        PacketInfo carry = null;
+
+        while (hasRoom(window)) {
+            PacketInfo pi;
+            if (carry != null) {
+                pi = carry;
+                carry = null;
+            } else if (it.hasNext()) {
+                pi = it.next();
+            } else {
+                break;
+            }
+
+            if (!pi.superseded && isOrderBlocked(pi, nskipped)) {
+                nskipped = skip(pi, nskipped);
+                continue;
+            }
+
+            if (take(it, pi, Integer.MAX_VALUE) == TAKE_DROPPED) {
+                continue;
+            }
+
+            if (canBatch()) {
+                int size = batchHeaderSize() + packedSize(pi.data);
+                batchParts.clear();
+                batchParts.add(pi);
+
+                while (batchParts.size() < PebbleBatch.MAX_BATCH_CALLS && it.hasNext()) {
+                    PacketInfo next = it.next();
+                    if (!next.superseded && isOrderBlocked(next, nskipped)) {
+                        nskipped = skip(next, nskipped);
+                        continue;
+                    }
+
+                    int grow = take(it, next, inboxSize - size);
+                    if (grow == TAKE_NO_ROOM) {
+                        // Stop here so nothing overtakes it.
+                        carry = next;
+                        break;
+                    } else if (grow == TAKE_DROPPED) {
+                        continue;
+                    }
+
+                    batchParts.add(next);
+                    size += grow;
+                }
+
+                if (batchParts.size() > 1) {
+                    int tid = nextTransactionID();
+                    PebbleDictionary batch = PebbleBatch.newBatch(tid, batchParts.size());
+                    for (int p = 0; p < batchParts.size(); p++) {
+                        PebbleBatch.pack(batch, p, batchParts.get(p).data);
+                    }
+                    pi = new PacketInfo(tid,
+                            batchParts.toArray(new PacketInfo[batchParts.size()]), batch);
+                }
+                batchParts.clear();
+            }
+
+            PebbleDictionary wire;
+            synchronized (pi) {
+                // hasRoom made sure there's a free slot, and nobody else
+                // puts, so this can't fail.
+                inflight.put(pi);
+                pi.attempts++;
+                setDeadline(pi, flow.timeoutMillis(RESPONSE_TIMEOUT_MS), false);
+                wire = wire(pi.data);
+                pi.sentAt = System.nanoTime();
+                recordSend(pi, wire);
+            }
+            transport.sendData(ctx, appUuid, wire, pi.tid);
+        }
+        return nskipped;
+    }
+
+    // must be called with pi locked.
+    private void resendMessage(Context ctx, PacketInfo pi) {
+        pi.attempts++;
+        setDeadline(pi, flow.timeoutMillis(RESPONSE_TIMEOUT_MS), false);
+        PebbleDictionary wire = wire(pi.data);
+        pi.sentAt = System.nanoTime();
+        recordSend(pi, wire);
+        transport.sendData(ctx, appUuid, wire, pi.tid);
+    }
+
+    public Pebble() {
+    }
+
+    public Pebble(UUID appUuid) {
+        this.appUuid = appUuid;
+    }
+
+    // Must be called before registerHandlers.
+    public void setPebbleAppUUID(String uuid) throws PebbleException {
+        try {
+            appUuid = UUID.fromString(uuid);
+        } catch (IllegalArgumentException iae) {
+            throw new PebbleException("Bad app UUID " + uuid, iae);
         }
+    }
 
-        PebbleKit.sendDataToPebbleWithTransactionId(ctx, PEBBLE_APP_UUID,
-                data, tid);
+    public UUID getPebbleAppUUID() {
+        return appUuid;
     }
 
-    private void resendMessage(Context ctx, int tid) {
-        synchronized (inflight) {
-            PebbleKit.sendDataToPebbleWithTransactionId(ctx, PEBBLE_APP_UUID,
-                    inflight.get(tid).data, tid);
+    // This watch's root window.  It always exists, so it never needs a
+    // FUNC_NEW_WINDOW.
+    synchronized public PebbleWindow getRootWindow() {
+        if (root == null) {
+            root = new PebbleWindow();
+            root.setHandle(ROOT_WINDOW_HANDLE);
+            root.setCacheKey("root");
+            root.setParent(this);
         }
+        return root;
+    }
+
+    // The windows pushed over the root window.
+    synchronized public PebbleWindowStack getWindowStack() {
+        if (windowStack == null) {
+            windowStack = new PebbleWindowStack(this);
+        }
+        return windowStack;
+    }
+
+    // Must be called before registerHandlers.  Anything that runs tasks one
+    // at a time, in order, will do.
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    Executor getExecutor() {
+        Executor e = executor;
+        if (e != null) {
+            return e;
+        }
+
+        // First use: make our own I/O thread, once.
+        synchronized (this) {
+            if (executor == null) {
+                ioThread = new HandlerThread("PebbleIO", Process.THREAD_PRIORITY_DEFAULT);
+                ioThread.start();
+                final Handler handler = new Handler(ioThread.getLooper());
+                executor = new Executor() {
+                    @Override
+                    public void execute(Runnable r) {
+                        handler.post(r);
+                    }
+                };
+            }
+            return executor;
+        }
+    }
+
+    // Stops listening to the watch and stops the I/O thread, if we started
+    // one.  Anything still waiting to run on it is dropped, as is anything
+    // that turns up later, so only do this when finished with the watch.
+    // The handle cache is written now rather than when its timer goes off.
+    public synchronized void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        transport.unregister(mContext);
+        sessionCache.save();
+        executor = DISCARD;
+        if (ioThread != null) {
+            ioThread.quit();
+            ioThread = null;
+        }
+        timers.shutdown();
+        if (dataLog != null) {
+            dataLog.close();
+        }
+    }
+
+    // Starts keeping PebbleMetrics for this watch, if we weren't already,
+    // and returns them.
+    public synchronized PebbleMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new PebbleMetrics(this);
+        }
+        return metrics;
+    }
+
+    // null unless enableMetrics has been called.
+    public PebbleMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Starts keeping what the watch sends by data logging, if we weren't
+    // already, and returns the log.  Until this is called it's ignored.
+    public synchronized PebbleDataLog enableDataLog(Context ctx) {
+        if (dataLog == null) {
+            dataLog = new PebbleDataLog(new File(ctx.getFilesDir(), fileName(".datalog")));
+        }
+        return dataLog;
+    }
+
+    // null unless enableDataLog has been called.
+    public PebbleDataLog getDataLog() {
+        return dataLog;
+    }
+
+    // Hands exporter a snapshot every periodMillis, turning metrics on if
+    // need be.  null stops it.  Runs on the timer thread.
+    public void setMetricsExporter(final PebbleMetrics.Exporter exporter, final long periodMillis) {
+        final int generation = exporterGeneration.incrementAndGet();
+        if (exporter == null) {
+            return;
+        }
+
+        final PebbleMetrics m = enableMetrics();
+
+        timers.schedule(periodMillis, new Runnable() {
+            @Override
+            public void run() {
+                if (exporterGeneration.get() != generation) {
+                    return;  // replaced or stopped.
+                }
+                exporter.export(m.snapshot());
+                timers.schedule(periodMillis, this);
+            }
+        });
+    }
+
+    public int getInflightCount() {
+        return inflight.size();
+    }
+
+    public int getQueuedCount() {
+        return pendingCount.get();
+    }
+
+    private static int method(PebbleDictionary data) {
+        if (!data.contains(KEY_METHOD_ID)) {
+            return FUNC_NO_FUNC;
+        }
+        return data.getUnsignedIntegerAsLong(KEY_METHOD_ID).intValue();
+    }
+
+    // must be called with pi locked.
+    private void recordSend(PacketInfo pi, PebbleDictionary wire) {
+        PebbleMetrics m = metrics;
+        if (m == null) {
+            return;
+        }
+
+        // per key costs are what the key's value took, in whichever
+        // encoding; the message size is what actually went.
+        boolean packed = wire != pi.data;
+        for (PebbleTuple t : pi.data) {
+            m.recordSent(t.key, packed ? PebbleCompact.encodedSize(pi.data, t)
+                    : PebbleBatch.encodedSize(t));
+        }
+        m.recordMessage(PebbleBatch.encodedSize(wire));
+
+        if (pi.attempts > 1) {
+            m.recordRetry();
+            return;
+        }
+
+        if (pi.parts == null) {
+            recordLayerUpdate(m, pi.orderKey);
+        } else {
+            for (PacketInfo part : pi.parts) {
+                recordLayerUpdate(m, part.orderKey);
+            }
+        }
+    }
+
+    private static void recordLayerUpdate(PebbleMetrics m, long orderKey) {
+        // only keys with a layer in them.
+        if (orderKey != NO_ORDER_KEY && (orderKey & 0xffffffffL) != 0xffffffffL) {
+            m.recordLayerUpdate(orderKey);
+        }
+    }
+
+    // Flow control learns the link from every answer; metrics too, if on.
+    private void recordRoundTrip(PacketInfo pi) {
+        long sent = pi.sentAt;
+        if (sent == 0) {
+            return;
+        }
+
+        long micros = (System.nanoTime() - sent) / 1000;
+        // An answer to a message sent more than once could be to any of
+        // the sends, so its time says nothing about the link (Karn).
+        flow.answered(micros, pi.attempts == 1);
+
+        PebbleMetrics m = metrics;
+        if (m == null) {
+            return;
+        }
+        m.recordRoundTrip(method(pi.data), micros);
+        if (pi.parts != null) {
+            for (PacketInfo part : pi.parts) {
+                m.recordRoundTrip(method(part.data), micros);
+            }
+        }
+    }
+
+    void attached(PebbleWindow pw) {
+        synchronized (windows) {
+            windows.add(pw);
+        }
+    }
+
+    void setTopWindow(PebbleWindow pw) {
+        topWindow = pw;
+    }
+
+    // The watch drops a destroyed window from its stack.
+    void windowDestroyed(PebbleWindow pw) {
+        if (topWindow == pw) {
+            topWindow = null;
+        }
+    }
+
+    boolean isTopWindow(PebbleWindow pw) {
+        PebbleWindow top = topWindow;
+        return top == null ? pw.isRoot() : top == pw;
+    }
+
+    // Must be called before registerHandlers.  Defaults to PebbleKit.
+    public void setTransport(PebbleTransport transport) {
+        this.transport = transport;
+    }
+
+    public PebbleTransport getTransport() {
+        return transport;
     }
 
     public void registerHandlers(Context ctx) {
-        PebbleKit.registerPebbleConnectedReceiver(ctx, mPebbleReceiver);
-        PebbleKit.registerPebbleDisconnectedReceiver(ctx, mPebbleReceiver);
-        PebbleKit.registerReceivedAckHandler(ctx, mPebbleAckReceiver);
-        PebbleKit.registerReceivedDataHandler(ctx, mPebbleDataReceiver);
-        PebbleKit.registerDataLogReceiver(ctx, mPebbleLogReceiver);
-        PebbleKit.registerReceivedNackHandler(ctx, mPebbleNackReceiver);
+        mContext = ctx;
+        transport.register(ctx, appUuid, this);
+
+        linkState = transport.isConnected(ctx) ? LINK_UP : LINK_DOWN;
+        scheduler.setContext(ctx != null ? ctx.getApplicationContext() : null);
+
+        if (ctx != null) {
+            sessionCache = new PebbleSessionCache(sessionFile(ctx));
+            sessionCache.load();
+        }
+        checkSession(ctx);
+    }
+
+    // Must be called before registerHandlers.  Names the handle cache and
+    // data log so sessions with several watches don't share them.
+    public void setDeviceName(String name) {
+        deviceName = name;
+    }
+
+    private File sessionFile(Context ctx) {
+        return new File(ctx.getFilesDir(), fileName(".session"));
+    }
+
+    // Names our files after the watch app and, if set, the device.  Device
+    // names can be anything, so only the safe characters are kept.
+    private String fileName(String suffix) {
+        String device = "";
+        if (deviceName != null) {
+            device = deviceName.replaceAll("[^A-Za-z0-9._-]", "_") + "-";
+        }
+        return "pebble-" + device + appUuid + suffix;
+    }
+
+    private static int sessionId(PebbleDictionary pd) {
+        if (!pd.contains(KEY_SESSION_ID)) {
+            return PebbleSessionCache.NO_SESSION;
+        }
+        return pd.getUnsignedIntegerAsLong(KEY_SESSION_ID).intValue();
+    }
+
+    // Asks the watch which session it's in.  When we have handles from
+    // before, windows hold off creating anything until it answers.
+    private void checkSession(Context ctx) {
+        if (sessionCache.needsCheck()) {
+            sessionCache.checking();
+        }
+
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(KEY_METHOD_ID, FUNC_GET_SESSION);
+        sendMessage(ctx, new PebbleFinishedCallback() {
+            @Override
+            public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                        PebbleDictionary req) {
+                int status = resp.getUnsignedIntegerAsLong(KEY_STATUS).intValue();
+                sessionCache.confirm(status == STATUS_OK ? sessionId(resp)
+                        : PebbleSessionCache.NO_SESSION);
+                sessionCacheChanged();
+            }
+        }, pd, PRIORITY_PUSH);
+    }
+
+    PebbleInternTable getInternTable() {
+        return interns;
+    }
+
+    PebbleSessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    // Writes the handle cache out a little later, so a burst of changes
+    // costs one write.
+    void sessionCacheChanged() {
+        if (sessionCache.isChanged() && sessionSaveScheduled.compareAndSet(false, true)) {
+            timers.schedule(SESSION_SAVE_DELAY_MS, saveSession);
+        }
+    }
+
+    // true once the watch app has told us it's running.
+    public boolean isStarted() {
+        return started;
+    }
+
+    public int getLinkState() {
+        return linkState;
+    }
+
+    public boolean isLinkDown() {
+        return linkState == LINK_DOWN;
+    }
+
+    // Transports call these when the watch comes and goes.  They can be
+    // called from any thread; the change happens on the executor.
+    public void linkUp(final Context ctx) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                setLinkUp(ctx);
+            }
+        });
+    }
+
+    public void linkDown(final Context ctx) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                setLinkDown(ctx);
+            }
+        });
+    }
+
+    // executor only.  Sends what queued up while the link was down, and
+    // lets the windows that parked catch up: each sends one update with
+    // whatever its layers changed in the meantime.
+    private void setLinkUp(Context ctx) {
+        Runnable[] wake;
+        synchronized (parked) {
+            if (linkState != LINK_DOWN) {
+                return;
+            }
+            linkState = started ? LINK_STARTED : LINK_UP;
+            wake = parked.toArray(new Runnable[parked.size()]);
+            parked.clear();
+        }
+
+        Log.d(TAG, "Link up, " + wake.length + " parked");
+        drain(ctx);
+        for (Runnable r : wake) {
+            r.run();
+        }
+        scheduler.resume();
+    }
+
+    // executor only.  Nothing in flight will be answered now, so it all
+    // fails with ENOTCONN; senders treat that like any other failure and
+    // send again what they still need once the link is back.  Queued
+    // messages stay queued, and updates from here on collapse into the
+    // layers' own state.
+    private void setLinkDown(Context ctx) {
+        synchronized (parked) {
+            if (linkState == LINK_DOWN) {
+                return;
+            }
+            linkState = LINK_DOWN;
+        }
 
-        connected = PebbleKit.isWatchConnected(ctx);
+        Log.d(TAG, "Link down, " + inflight.size() + " in flight");
+        // whatever link comes back may not be the one we measured.
+        flow.reset();
+        for (int i = 0; i < inflight.capacity(); i++) {
+            PacketInfo pi = inflight.at(i);
+            if (pi != null && removeInflight(pi.tid) == pi) {
+                fail(ctx, pi, ENOTCONN);
+            }
+        }
+    }
+
+    // If the link is down, remembers r to run when it comes back and
+    // returns true.  Asking again with the same r is the same as asking
+    // once.
+    boolean parkUntilLinkUp(Runnable r) {
+        synchronized (parked) {
+            if (linkState != LINK_DOWN) {
+                return false;
+            }
+            parked.add(r);
+            return true;
+        }
+    }
+
+    public int getApiVersion() {
+        return apiVersion;
+    }
+
+    public boolean supportsTextDelta() {
+        return apiVersion >= API_VERSION_TEXT_DELTA;
+    }
+
+    public boolean supportsLayerBlocks() {
+        return apiVersion >= API_VERSION_LAYER_BLOCK;
+    }
+
+    public boolean supportsDestroy() {
+        return apiVersion >= API_VERSION_DESTROY;
+    }
+
+    public boolean supportsWindowStack() {
+        return apiVersion >= API_VERSION_WINDOW_STACK;
+    }
+
+    // KEY_ATTRIBUTE_RECT's value: a GRect, four little endian int16s.
+    static byte[] encodeRect(int x, int y, int w, int h) {
+        return new byte[] {
+                (byte) x, (byte) (x >> 8),
+                (byte) y, (byte) (y >> 8),
+                (byte) w, (byte) (w >> 8),
+                (byte) h, (byte) (h >> 8)
+        };
+    }
+
+    public PebbleRenderScheduler getScheduler() {
+        return scheduler;
     }
 
     public void start(Context ctx) {
-        PebbleKit.startAppOnPebble(ctx, PEBBLE_APP_UUID);
+        transport.startApp(ctx, appUuid);
     }
 
     public void stop(Context ctx) {
-        PebbleKit.closeAppOnPebble(ctx, PEBBLE_APP_UUID);
+        transport.stopApp(ctx, appUuid);
     }
 
+    // true when there's no room left in the send window (plus, when
+    // batching, one batch worth of queued calls).  Callers should wait for
+    // a completion before queueing more.
     public boolean isBusy() {
-        synchronized (inflight) {
-            return (inflight.size() > 0);
+        return isBusy(PRIORITY_VISIBLE);
+    }
+
+    // As isBusy(), for work sent at priority.  Background work only goes
+    // while the link is keeping up and there's half the budget to spare,
+    // so on a poor link it's the first to wait and what's on screen keeps
+    // the room it needs.
+    public boolean isBusy(int priority) {
+        int budget = getSendBudget();
+        if (priority < PRIORITY_BACKGROUND) {
+            return budget <= 0;
         }
+        return flow.isCongested() || budget <= sendLimit() / 2;
+    }
+
+    // How many more messages can be queued before isBusy().
+    public int getSendBudget() {
+        int budget = sendLimit() - inflight.size() - pendingCount.get();
+        return budget > 0 ? budget : 0;
+    }
+
+    private int sendLimit() {
+        int limit = flow.window();
+        if (canBatch()) {
+            limit += PebbleBatch.MAX_BATCH_CALLS;
+        }
+        return limit;
+    }
+
+    // The smoothed round trip to the watch in microseconds, 0 until one's
+    // been measured.
+    public long getRoundTripMicros() {
+        return flow.getSrttMicros();
+    }
+
+    // The scheduler's frame interval, stretched to at least a round trip:
+    // frames built faster than the link answers only pile up.
+    long frameInterval(long configured) {
+        return flow.frameIntervalMillis(configured);
+    }
+
+    public void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    // Whether to use the compact encoding when the watch supports it.  On
+    // by default.
+    public void setCompactEncoding(boolean compact) {
+        this.compactEncoding = compact;
+    }
+
+    public boolean supportsCompactEncoding() {
+        return apiVersion >= API_VERSION_COMPACT;
+    }
+
+    private void setInboxSize(int size) {
+        inboxSize = size;
+    }
+
+    // With adaptive flow control on, the most the window may grow to;
+    // with it off, the window.
+    public void setSendWindow(int window) {
+        if (window < 1) {
+            window = 1;
+        } else if (window > MAX_SEND_WINDOW) {
+            window = MAX_SEND_WINDOW;
+        }
+
+        flow.configure(flow.isAdaptive(), window);
+    }
+
+    // The window as it stands now.
+    public int getSendWindow() {
+        return flow.window();
+    }
+
+    // On by default.  Off, the window stays where setSendWindow puts it.
+    public void setAdaptiveFlowControl(boolean adaptive) {
+        flow.configure(adaptive, flow.maxWindow());
     }
 
 }
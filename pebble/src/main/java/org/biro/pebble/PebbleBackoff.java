@@ -0,0 +1,106 @@
+package org.biro.pebble;
+
+import android.util.Log;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Spaces out a layer's retries when the watch keeps refusing its requests
+ * for a reason that won't go away by itself, an ENOMEM say.  Each failure
+ * in a row doubles the wait, as for a nack, and after MAX_ATTEMPTS the
+ * layer gives up until it's changed again.
+ * <p/>
+ * Lost handles and a lost link aren't counted: the layer deals with the
+ * one by making its layers again, and the window with the other by
+ * waiting for the link.  Owned by the window's executor, like the layer.
+ */
+class PebbleBackoff {
+    private static final String TAG = "PebbleBackoff: ";
+
+    private int failures = 0;
+    private boolean waiting = false;
+    // bumped by reset, so a retry scheduled before then does nothing.
+    private int generation = 0;
+
+    // A request failed with error.  Unless it's one the layer handles
+    // itself, the layer waits before it tries again, and pw is kicked when
+    // it's time.
+    void failed(final PebbleWindow pw, int error) {
+        switch (error) {
+            case Pebble.ENOLAYER:
+            case Pebble.ENOWINDOW:
+            case Pebble.ENOINTERN:
+            case Pebble.ENOTCONN:
+            case Pebble.ETIMEDOUT:
+                return;
+        }
+
+        failures++;
+        if (failures >= Pebble.MAX_ATTEMPTS) {
+            Log.e(TAG, "Giving up after " + failures + " failures, the last " + error);
+            return;
+        }
+
+        waiting = true;
+        final int gen = generation;
+        pw.getParent().schedule(Pebble.backoff(failures), new Runnable() {
+            @Override
+            public void run() {
+                if (gen != generation) {
+                    return;
+                }
+                waiting = false;
+                pw.updateStatus(null);
+            }
+        });
+    }
+
+    void succeeded() {
+        failures = 0;
+    }
+
+    // The layer has something new to send, so it's worth trying again
+    // if we'd given up.  A wait under way still runs its course.
+    void changed() {
+        if (failures >= Pebble.MAX_ATTEMPTS) {
+            failures = 0;
+        }
+    }
+
+    // The layer's starting over.
+    void reset() {
+        generation++;
+        failures = 0;
+        waiting = false;
+    }
+
+    // true while the layer should hold off sending.
+    boolean isWaiting() {
+        return waiting;
+    }
+
+    // true once the layer's stopped trying; its changes stay unsent.
+    boolean gaveUp() {
+        return failures >= Pebble.MAX_ATTEMPTS;
+    }
+}
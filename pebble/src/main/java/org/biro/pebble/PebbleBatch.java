@@ -0,0 +1,184 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Packs several method calls into one FUNC_BATCH AppMessage.
+ * <p/>
+ * Call i of a batch has each of its keys moved up by
+ * KEY_BATCH_BASE + i * KEY_BATCH_STRIDE, so call 0's KEY_METHOD_ID is
+ * sent as KEY_BATCH_BASE + KEY_METHOD_ID.  Every call keeps its own
+ * KEY_TRANSACTION_ID.  The watch runs the calls in order and answers with
+ * one response carrying the batch's transaction id and KEY_BATCH_COUNT,
+ * plus one sub-response per call, shifted the same way.
+ */
+class PebbleBatch {
+    public static final int KEY_BATCH_BASE = 64;
+    public static final int KEY_BATCH_STRIDE = 32;
+
+    public static final int MAX_BATCH_CALLS = 16;
+
+    // AppMessage dictionary encoding: a count byte, then per tuple a 4 byte
+    // key, 1 byte type and 2 byte length ahead of the data.
+    private static final int DICT_HEADER_SIZE = 1;
+    private static final int TUPLE_HEADER_SIZE = 7;
+
+    private PebbleBatch() {
+    }
+
+    static int encodedSize(PebbleDictionary pd) {
+        int size = DICT_HEADER_SIZE;
+        for (PebbleTuple t : pd) {
+            size += TUPLE_HEADER_SIZE + t.length;
+        }
+        return size;
+    }
+
+    static int encodedSize(PebbleTuple t) {
+        return TUPLE_HEADER_SIZE + t.length;
+    }
+
+    // A tuple carrying length bytes of data.
+    static int tupleSize(int length) {
+        return TUPLE_HEADER_SIZE + length;
+    }
+
+    // How much a call grows the batch it's added to.
+    static int packedSize(PebbleDictionary call) {
+        return encodedSize(call) - DICT_HEADER_SIZE;
+    }
+
+    // The fixed part of a batch: method, transaction id and count.
+    static int headerSize() {
+        return DICT_HEADER_SIZE + 3 * (TUPLE_HEADER_SIZE + 4);
+    }
+
+    static int keyOffset(int index) {
+        return KEY_BATCH_BASE + index * KEY_BATCH_STRIDE;
+    }
+
+    static PebbleDictionary newBatch(int tid, int count) {
+        PebbleDictionary batch = new PebbleDictionary();
+        batch.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_BATCH);
+        batch.addUint32(Pebble.KEY_TRANSACTION_ID, tid);
+        batch.addUint32(Pebble.KEY_BATCH_COUNT, count);
+        return batch;
+    }
+
+    static void pack(PebbleDictionary batch, int index, PebbleDictionary call) {
+        copy(call, batch, 0, keyOffset(index));
+    }
+
+    // Pulls call index's sub-response out of a batch response.  If the watch
+    // failed the batch as a whole there's no sub-response, so the call gets
+    // the top level status and error instead.
+    static PebbleDictionary unpack(PebbleDictionary resp, int index) {
+        PebbleDictionary sub = new PebbleDictionary();
+        copy(resp, sub, keyOffset(index), 0);
+
+        if (!sub.contains(Pebble.KEY_STATUS)) {
+            sub.addUint32(Pebble.KEY_STATUS,
+                    resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue());
+            if (resp.contains(Pebble.KEY_ERROR_CODE)) {
+                sub.addUint32(Pebble.KEY_ERROR_CODE,
+                        resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue());
+            }
+        }
+        return sub;
+    }
+
+    static boolean isBatch(PebbleDictionary pd) {
+        return pd.contains(Pebble.KEY_BATCH_COUNT);
+    }
+
+    static int count(PebbleDictionary pd) {
+        return pd.getUnsignedIntegerAsLong(Pebble.KEY_BATCH_COUNT).intValue();
+    }
+
+    // Copies the tuples of from whose keys fall in [from_base, from_base +
+    // KEY_BATCH_STRIDE) into to, rebased onto to_base.  A from_base of 0
+    // copies only the plain, unbatched keys.
+    static void copy(PebbleDictionary from, PebbleDictionary to, int from_base, int to_base) {
+        for (PebbleTuple t : from) {
+            int k = t.key - from_base;
+            if (k < 0 || k >= KEY_BATCH_STRIDE) {
+                continue;
+            }
+            addTuple(to, to_base + k, from, t);
+        }
+    }
+
+    // Adds t, taken from from, to pd under key.  PebbleTuple's type and
+    // width aren't public, so they're worked out from its value and length.
+    static void addTuple(PebbleDictionary pd, int key, PebbleDictionary from, PebbleTuple t) {
+        if (t.value instanceof byte[]) {
+            pd.addBytes(key, (byte[]) t.value);
+        } else if (t.value instanceof String) {
+            pd.addString(key, (String) t.value);
+        } else {
+            addInteger(pd, key, (Long) t.value, t.length, isSigned(from, t.key));
+        }
+    }
+
+    static void addInteger(PebbleDictionary pd, int key, long v, int width, boolean signed) {
+        switch (width) {
+            case 1:
+                if (signed) {
+                    pd.addInt8(key, (byte) v);
+                } else {
+                    pd.addUint8(key, (byte) v);
+                }
+                break;
+
+            case 2:
+                if (signed) {
+                    pd.addInt16(key, (short) v);
+                } else {
+                    pd.addUint16(key, (short) v);
+                }
+                break;
+
+            default:
+                if (signed) {
+                    pd.addInt32(key, (int) v);
+                } else {
+                    pd.addUint32(key, (int) v);
+                }
+                break;
+        }
+    }
+
+    // Whether the integer under key was added as signed.  Only the getter
+    // matching its type will read it.
+    static boolean isSigned(PebbleDictionary pd, int key) {
+        try {
+            pd.getUnsignedIntegerAsLong(key);
+            return false;
+        } catch (PebbleDictionary.PebbleDictTypeException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+import java.nio.charset.Charset;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * The compact wire encoding, used when the watch reports
+ * API_VERSION_COMPACT.  Every tuple costs 7 bytes of header before its
+ * data, and most of ours are small integers sent as uint32s, so a call
+ * spends more on headers than on what it says.
+ * <p/>
+ * A compact message has the same keys as the plain one, but each call's
+ * tuples are packed into a single byte array under KEY_COMPACT: a varint
+ * bitmap of the keys present, then for each key in ascending order a
+ * varint holding the type in its low 3 bits and the value (for integers,
+ * zigzagged if signed) or the length (for bytes and strings) above them,
+ * followed by the data.  The type keeps each integer's width and sign, so
+ * it decodes as exactly what was added.
+ * The call header (transaction, window, layer and method ids) comes first
+ * since those are the lowest keys, and usually takes a byte each.
+ * <p/>
+ * A batch packs each of its calls the same way, under
+ * keyOffset(i) + KEY_COMPACT, so batching works just as before.
+ */
+final class PebbleCompact {
+    private static final int TYPE_UINT32 = 0;
+    private static final int TYPE_INT32 = 1;
+    private static final int TYPE_BYTES = 2;
+    private static final int TYPE_STRING = 3;
+    private static final int TYPE_UINT8 = 4;
+    private static final int TYPE_UINT16 = 5;
+    private static final int TYPE_INT8 = 6;
+    private static final int TYPE_INT16 = 7;
+    private static final int TYPE_BITS = 3;
+
+    private static final int STRIDE = PebbleBatch.KEY_BATCH_STRIDE;
+    // the plain keys plus one group per batched call.
+    private static final int GROUPS = 1 + PebbleBatch.MAX_BATCH_CALLS;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private PebbleCompact() {
+    }
+
+    static boolean isCompact(PebbleDictionary pd) {
+        return pd.contains(Pebble.KEY_COMPACT);
+    }
+
+    // Which group key belongs to: 0 for the plain keys, i + 1 for batched
+    // call i, or -1 for a key that's passed through as it is.
+    private static int group(int key) {
+        if (key >= 0 && key < STRIDE) {
+            return 0;
+        }
+        int k = key - PebbleBatch.KEY_BATCH_BASE;
+        if (k < 0 || k >= PebbleBatch.MAX_BATCH_CALLS * STRIDE) {
+            return -1;
+        }
+        return 1 + k / STRIDE;
+    }
+
+    private static int base(int group) {
+        return group == 0 ? 0 : PebbleBatch.keyOffset(group - 1);
+    }
+
+    static PebbleDictionary encode(PebbleDictionary pd) {
+        PebbleTuple[][] groups = new PebbleTuple[GROUPS][];
+        PebbleDictionary out = new PebbleDictionary();
+        for (PebbleTuple t : pd) {
+            int g = group(t.key);
+            if (g < 0) {
+                PebbleBatch.addTuple(out, t.key, pd, t);
+                continue;
+            }
+            if (groups[g] == null) {
+                groups[g] = new PebbleTuple[STRIDE];
+            }
+            groups[g][t.key - base(g)] = t;
+        }
+
+        for (int g = 0; g < GROUPS; g++) {
+            if (groups[g] != null) {
+                out.addBytes(base(g) + Pebble.KEY_COMPACT, pack(pd, groups[g]));
+            }
+        }
+        return out;
+    }
+
+    // pd as it would have been sent plainly.  A dictionary that isn't
+    // compact is returned as it is.
+    static PebbleDictionary decode(PebbleDictionary pd) {
+        if (!isCompact(pd)) {
+            return pd;
+        }
+
+        PebbleDictionary out = new PebbleDictionary();
+        for (PebbleTuple t : pd) {
+            int g = group(t.key);
+            if (g >= 0 && t.key - base(g) == Pebble.KEY_COMPACT
+                    && t.value instanceof byte[]) {
+                unpack((byte[]) t.value, out, base(g));
+            } else {
+                PebbleBatch.addTuple(out, t.key, pd, t);
+            }
+        }
+        return out;
+    }
+
+    // How much call adds to a batch it's packed into.
+    static int packedSize(PebbleDictionary call) {
+        PebbleTuple[] keys = new PebbleTuple[STRIDE];
+        for (PebbleTuple t : call) {
+            if (t.key >= 0 && t.key < STRIDE) {
+                keys[t.key] = t;
+            }
+        }
+        return PebbleBatch.tupleSize(packedLength(call, keys));
+    }
+
+    // The fixed part of a compact batch: the dictionary header plus one
+    // tuple with the bitmap, method, transaction id (at its largest) and
+    // count (at its largest).
+    static int headerSize() {
+        return 1 + PebbleBatch.tupleSize(3 + 1 + 5 + 2);
+    }
+
+    // What t, taken from pd, costs inside its call's blob, not counting the
+    // bitmap.
+    static int encodedSize(PebbleDictionary pd, PebbleTuple t) {
+        return valueSize(pd, t);
+    }
+
+    private static int packedLength(PebbleDictionary pd, PebbleTuple[] keys) {
+        long bitmap = 0;
+        int len = 0;
+        for (int k = 0; k < STRIDE; k++) {
+            if (keys[k] != null) {
+                bitmap |= 1L << k;
+                len += valueSize(pd, keys[k]);
+            }
+        }
+        return varintSize(bitmap) + len;
+    }
+
+    private static byte[] pack(PebbleDictionary pd, PebbleTuple[] keys) {
+        long bitmap = 0;
+        for (int k = 0; k < STRIDE; k++) {
+            if (keys[k] != null) {
+                bitmap |= 1L << k;
+            }
+        }
+
+        byte[] out = new byte[packedLength(pd, keys)];
+        int o = putVarint(out, 0, bitmap);
+        for (int k = 0; k < STRIDE; k++) {
+            PebbleTuple t = keys[k];
+            if (t == null) {
+                continue;
+            }
+
+            int type = type(pd, t);
+            o = putVarint(out, o, head(type, t));
+            if (type == TYPE_BYTES) {
+                byte[] b = (byte[]) t.value;
+                System.arraycopy(b, 0, out, o, b.length);
+                o += b.length;
+            } else if (type == TYPE_STRING) {
+                byte[] b = PebbleUtf8.encode((String) t.value);
+                System.arraycopy(b, 0, out, o, b.length);
+                o += b.length;
+            }
+        }
+        return out;
+    }
+
+    private static void unpack(byte[] in, PebbleDictionary out, int base) {
+        int[] pos = {0};
+        long bitmap = getVarint(in, pos);
+        for (int k = 0; k < STRIDE; k++) {
+            if ((bitmap & (1L << k)) == 0) {
+                continue;
+            }
+
+            long v = getVarint(in, pos);
+            int type = (int) (v & ((1 << TYPE_BITS) - 1));
+            v >>>= TYPE_BITS;
+            int o = pos[0];
+            switch (type) {
+                case TYPE_BYTES:
+                    byte[] b = new byte[(int) v];
+                    System.arraycopy(in, o, b, 0, b.length);
+                    out.addBytes(base + k, b);
+                    pos[0] += b.length;
+                    break;
+
+                case TYPE_STRING:
+                    out.addString(base + k, new String(in, o, (int) v, UTF8));
+                    pos[0] += (int) v;
+                    break;
+
+                case TYPE_UINT8:
+                case TYPE_UINT16:
+                case TYPE_UINT32:
+                    PebbleBatch.addInteger(out, base + k, v, width(type), false);
+                    break;
+
+                default:
+                    PebbleBatch.addInteger(out, base + k, (v >>> 1) ^ -(v & 1),
+                            width(type), true);
+                    break;
+            }
+        }
+    }
+
+    // t's type code.  Integers keep their width and sign.
+    private static int type(PebbleDictionary pd, PebbleTuple t) {
+        if (t.value instanceof byte[]) {
+            return TYPE_BYTES;
+        }
+        if (t.value instanceof String) {
+            return TYPE_STRING;
+        }
+
+        boolean signed = PebbleBatch.isSigned(pd, t.key);
+        switch (t.length) {
+            case 1:
+                return signed ? TYPE_INT8 : TYPE_UINT8;
+            case 2:
+                return signed ? TYPE_INT16 : TYPE_UINT16;
+            default:
+                return signed ? TYPE_INT32 : TYPE_UINT32;
+        }
+    }
+
+    private static int width(int type) {
+        switch (type) {
+            case TYPE_UINT8:
+            case TYPE_INT8:
+                return 1;
+            case TYPE_UINT16:
+            case TYPE_INT16:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    // The varint ahead of t's data: type in the low bits, and above them the
+    // length of bytes and strings, or the value of integers.  Signed values
+    // are zigzagged; unsigned ones are taken at their width, since
+    // PebbleDictionary keeps them sign extended.
+    private static long head(int type, PebbleTuple t) {
+        long v;
+        switch (type) {
+            case TYPE_BYTES:
+                v = ((byte[]) t.value).length;
+                break;
+
+            case TYPE_STRING:
+                v = PebbleUtf8.encodedLength((String) t.value);
+                break;
+
+            case TYPE_UINT8:
+            case TYPE_UINT16:
+            case TYPE_UINT32:
+                v = (Long) t.value & (0xffffffffL >>> (32 - 8 * width(type)));
+                break;
+
+            default:
+                long s = (Long) t.value;
+                v = (s << 1) ^ (s >> 63);
+                break;
+        }
+        return (v << TYPE_BITS) | type;
+    }
+
+    private static int valueSize(PebbleDictionary pd, PebbleTuple t) {
+        int type = type(pd, t);
+        long head = head(type, t);
+        int size = varintSize(head);
+        if (type == TYPE_BYTES || type == TYPE_STRING) {
+            size += (int) (head >>> TYPE_BITS);
+        }
+        return size;
+    }
+
+    private static int varintSize(long v) {
+        int n = 1;
+        while ((v >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    private static int putVarint(byte[] out, int o, long v) {
+        while ((v & ~0x7fL) != 0) {
+            out[o++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out[o++] = (byte) v;
+        return o;
+    }
+
+    // Reads the varint at pos[0] and moves pos[0] past it.
+    private static long getVarint(byte[] in, int[] pos) {
+        long v = 0;
+        int shift = 0;
+        int o = pos[0];
+        byte b;
+        do {
+            b = in[o++];
+            v |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        pos[0] = o;
+        return v;
+    }
+}
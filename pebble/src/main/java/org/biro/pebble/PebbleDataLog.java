@@ -0,0 +1,577 @@
+package org.biro.pebble;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Keeps what the watch sends by data logging.  PebbleKit hands over one
+ * record at a time and a watch sampling a sensor sends a lot of them, so
+ * each record is just copied into a ring buffer kept per log (logUuid and
+ * tag), with nothing allocated.  A writer thread appends the rings to a
+ * file in blocks: when one is half full, FLUSH_DELAY_MS after its first
+ * unwritten record, and when the watch finishes the session.
+ * <p/>
+ * Finishing the session is the commit.  The writer appends a commit
+ * marker and syncs the file, and readers only see records of committed
+ * sessions, so a crash part way through a session never hands out half
+ * of it.  The receivers run on PebbleKit's broadcast thread, which is the
+ * main thread, so they never wait: if the writer falls a whole ring
+ * behind, records that don't fit are dropped and counted in getDropped().
+ * <p/>
+ * The file is a series of blocks, each a kind (BLOCK_DATA or
+ * BLOCK_COMMIT), logUuid, tag and session timestamp, then for data blocks
+ * a length and that many bytes of records.  A record is its type then
+ * four bytes for TYPE_UINT and TYPE_INT, or a two byte length and the
+ * data for TYPE_BYTES.
+ */
+public class PebbleDataLog {
+    private static final String TAG = "PebbleDataLog: ";
+
+    public static final int TYPE_UINT = 0;
+    public static final int TYPE_INT = 1;
+    public static final int TYPE_BYTES = 2;
+
+    public static final int DEFAULT_RING_SIZE = 16 * 1024;
+    public static final long FLUSH_DELAY_MS = 500;
+
+    private static final byte BLOCK_DATA = 'D';
+    private static final byte BLOCK_COMMIT = 'C';
+    private static final int HEADER_SIZE = 1 + 16 + 4 + 4;
+
+    // One log's records, waiting for the writer.  Written by the receiving
+    // thread only, taken by the writer only.
+    private class Stream {
+        final UUID logUuid;
+        final int tag;
+        final int timestamp;
+        final byte[] ring;
+        // bytes ever put in and ever taken out; the ring holds head - tail.
+        volatile long head = 0;
+        volatile long tail = 0;
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        final Runnable flusher = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                write(Stream.this, head);
+            }
+        };
+
+        Stream(UUID logUuid, int tag, int timestamp) {
+            this.logUuid = logUuid;
+            this.tag = tag;
+            this.timestamp = timestamp;
+            this.ring = new byte[ringSize];
+        }
+
+        int free() {
+            return ring.length - (int) (head - tail);
+        }
+    }
+
+    private final File file;
+    private final int ringSize;
+
+    // Guarded by itself; last is the receiving thread's own.
+    private final HashMap<String, Stream> streams = new HashMap<>();
+    private Stream last = null;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocksWritten = new AtomicLong();
+
+    // Set by close; a record arriving after it is dropped.
+    private volatile boolean closed = false;
+
+    // owned by the writer.
+    private FileOutputStream fos = null;
+    private DataOutputStream out = null;
+
+    private final ScheduledExecutorService writer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PebbleDataLog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    public PebbleDataLog(File file) {
+        this(file, DEFAULT_RING_SIZE);
+    }
+
+    public PebbleDataLog(File file, int ringSize) {
+        this.file = file;
+        this.ringSize = ringSize;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // The receivers.  They must all be called from one thread, which
+    // PebbleKit's are.  timestamp is the session's, in seconds.
+
+    public void receiveUint(UUID logUuid, long timestamp, long tag, int data) {
+        put(stream(logUuid, timestamp, tag), TYPE_UINT, data, null);
+    }
+
+    public void receiveInt(UUID logUuid, long timestamp, long tag, int data) {
+        put(stream(logUuid, timestamp, tag), TYPE_INT, data, null);
+    }
+
+    public void receiveBytes(UUID logUuid, long timestamp, long tag, byte[] data) {
+        put(stream(logUuid, timestamp, tag), TYPE_BYTES, 0, data);
+    }
+
+    // The watch has finished the session: write out what's left and
+    // commit it.
+    public void finishSession(UUID logUuid, long timestamp, long tag) {
+        final Stream s;
+        synchronized (streams) {
+            s = streams.remove(key(logUuid, (int) tag));
+        }
+        if (s == null) {
+            return;
+        }
+        if (last == s) {
+            last = null;
+        }
+
+        final long upto = s.head;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                write(s, upto);
+                commit(s);
+            }
+        }, 0);
+    }
+
+    // Hands r to the writer after delayMs, unless the log's been closed.
+    private boolean post(Runnable r, long delayMs) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (delayMs > 0) {
+                writer.schedule(r, delayMs, TimeUnit.MILLISECONDS);
+            } else {
+                writer.execute(r);
+            }
+            return true;
+        } catch (RejectedExecutionException ree) {
+            // closed under us.
+            return false;
+        }
+    }
+
+    private static String key(UUID logUuid, int tag) {
+        return logUuid.toString() + "/" + tag;
+    }
+
+    // receiving thread only.  Almost every record is for the same log as
+    // the one before, so that one's kept to hand.
+    private Stream stream(UUID logUuid, long timestamp, long tag) {
+        Stream s = last;
+        if (s != null && s.tag == (int) tag && s.logUuid.equals(logUuid)) {
+            return s;
+        }
+
+        String key = key(logUuid, (int) tag);
+        synchronized (streams) {
+            s = streams.get(key);
+            if (s == null) {
+                s = new Stream(logUuid, (int) tag, (int) timestamp);
+                streams.put(key, s);
+            }
+        }
+        last = s;
+        return s;
+    }
+
+    // receiving thread only.
+    private void put(Stream s, int type, int value, byte[] data) {
+        received.incrementAndGet();
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int size = data == null ? 5 : 3 + data.length;
+        if (size > s.ring.length / 2 || (data != null && data.length > 0xffff)) {
+            Log.e(TAG, "Dropping a " + size + " byte record");
+            dropped.incrementAndGet();
+            return;
+        }
+
+        if (s.free() < size) {
+            // The writer's a whole ring behind.  Waiting for it here would
+            // hold up the main thread.
+            post(s.flusher, 0);
+            dropped.incrementAndGet();
+            return;
+        }
+
+        byte[] ring = s.ring;
+        int n = ring.length;
+        long h = s.head;
+        boolean wasEmpty = h == s.tail;
+        ring[(int) (h++ % n)] = (byte) type;
+        if (data == null) {
+            for (int i = 0; i < 4; i++) {
+                ring[(int) (h++ % n)] = (byte) (value >> (8 * i));
+            }
+        } else {
+            ring[(int) (h++ % n)] = (byte) data.length;
+            ring[(int) (h++ % n)] = (byte) (data.length >> 8);
+            int off = (int) (h % n);
+            int first = Math.min(data.length, ring.length - off);
+            System.arraycopy(data, 0, ring, off, first);
+            System.arraycopy(data, first, ring, 0, data.length - first);
+            h += data.length;
+        }
+
+        long before = s.head - s.tail;
+        s.head = h;
+        int half = ring.length / 2;
+        if (before < half && h - s.tail >= half) {
+            post(s.flusher, 0);
+        } else if (wasEmpty && s.flushScheduled.compareAndSet(false, true)) {
+            post(s.flusher, FLUSH_DELAY_MS);
+        }
+    }
+
+    // writer only.
+    private boolean open() {
+        if (out != null) {
+            return true;
+        }
+        try {
+            fos = new FileOutputStream(file, true);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            return true;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Can't open " + file + ": " + ioe);
+            return false;
+        }
+    }
+
+    // writer only.  Appends s's records up to upto as one block, and gives
+    // their room back.
+    private void write(Stream s, long upto) {
+        long t = s.tail;
+        int len = (int) (upto - t);
+        if (len <= 0) {
+            return;
+        }
+
+        if (open()) {
+            try {
+                header(BLOCK_DATA, s);
+                out.writeInt(len);
+                int off = (int) (t % s.ring.length);
+                int first = Math.min(len, s.ring.length - off);
+                out.write(s.ring, off, first);
+                out.write(s.ring, 0, len - first);
+                out.flush();
+                blocksWritten.incrementAndGet();
+            } catch (IOException ioe) {
+                Log.e(TAG, "Lost " + len + " bytes of " + s.logUuid + ": " + ioe);
+            }
+        }
+
+        s.tail = upto;
+    }
+
+    // writer only.
+    private void commit(Stream s) {
+        if (!open()) {
+            return;
+        }
+        try {
+            header(BLOCK_COMMIT, s);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException ioe) {
+            Log.e(TAG, "Can't commit " + s.logUuid + ": " + ioe);
+        }
+    }
+
+    private void header(byte kind, Stream s) throws IOException {
+        out.writeByte(kind);
+        out.writeLong(s.logUuid.getMostSignificantBits());
+        out.writeLong(s.logUuid.getLeastSignificantBits());
+        out.writeInt(s.tag);
+        out.writeInt(s.timestamp);
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getBlocksWritten() {
+        return blocksWritten.get();
+    }
+
+    // Writes out whatever's buffered, without committing it, and waits
+    // until it's done.
+    public void flush() {
+        if (closed) {
+            return;
+        }
+        final Stream[] all;
+        synchronized (streams) {
+            all = streams.values().toArray(new Stream[streams.size()]);
+        }
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (Stream s : all) {
+                        write(s, s.head);
+                    }
+                }
+            }).get();
+        } catch (Exception e) {
+            Log.e(TAG, "Flush failed: " + e);
+        }
+    }
+
+    // Flushes and closes the file.  Sessions that haven't finished stay
+    // uncommitted, and anything received from now on is dropped.
+    public void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ioe) {
+                        Log.e(TAG, "Close failed: " + ioe);
+                    }
+                    out = null;
+                    fos = null;
+                }
+            }
+        });
+        writer.shutdown();
+    }
+
+    public Reader read() throws IOException {
+        return read(0);
+    }
+
+    // Reads from offset, which is 0 or a Reader's getOffset() from an
+    // earlier read.
+    public Reader read(long offset) throws IOException {
+        return new Reader(file, offset);
+    }
+
+    /**
+     * Pulls committed records out of the file, one next() at a time.  What
+     * it sees is the file as it was when it was opened.
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile in;
+        private final long end;
+        // sessions with a commit marker, by key().
+        private final HashSet<String> committed = new HashSet<>();
+
+        private long pos;
+        // where to start next time: the first block not handed out yet
+        // because its session wasn't committed, else the end.
+        private long resume = -1;
+        private byte[] block = new byte[256];
+        private int blockLen = 0;
+        private int blockPos = 0;
+
+        private UUID logUuid;
+        private int tag;
+        private int timestamp;
+        private int type;
+        private int value;
+        private int dataOff;
+        private int dataLen;
+
+        Reader(File file, long offset) throws IOException {
+            in = new RandomAccessFile(file, "r");
+            end = in.length();
+            pos = offset;
+
+            long p = offset;
+            while (p + HEADER_SIZE <= end) {
+                in.seek(p);
+                byte kind = in.readByte();
+                UUID u = new UUID(in.readLong(), in.readLong());
+                int t = in.readInt();
+                in.readInt();
+                p += HEADER_SIZE;
+                if (kind == BLOCK_COMMIT) {
+                    committed.add(key(u, t));
+                } else if (p + 4 <= end) {
+                    p += 4 + in.readInt();
+                } else {
+                    break;
+                }
+            }
+        }
+
+        // Moves to the next record; false when there are no more.
+        public boolean next() throws IOException {
+            while (blockPos >= blockLen) {
+                if (!nextBlock()) {
+                    if (resume < 0) {
+                        resume = pos;
+                    }
+                    return false;
+                }
+            }
+
+            type = block[blockPos++];
+            if (type == TYPE_BYTES) {
+                dataLen = (block[blockPos] & 0xff) | (block[blockPos + 1] & 0xff) << 8;
+                dataOff = blockPos + 2;
+                blockPos = dataOff + dataLen;
+            } else {
+                value = 0;
+                for (int i = 0; i < 4; i++) {
+                    value |= (block[blockPos++] & 0xff) << (8 * i);
+                }
+            }
+            return true;
+        }
+
+        // Loads the next committed data block.
+        private boolean nextBlock() throws IOException {
+            while (pos + HEADER_SIZE <= end) {
+                in.seek(pos);
+                byte kind = in.readByte();
+                UUID u = new UUID(in.readLong(), in.readLong());
+                int t = in.readInt();
+                int ts = in.readInt();
+                if (kind == BLOCK_COMMIT) {
+                    pos += HEADER_SIZE;
+                    continue;
+                }
+
+                if (pos + HEADER_SIZE + 4 > end) {
+                    return false;  // still being written.
+                }
+                int len = in.readInt();
+                long next = pos + HEADER_SIZE + 4 + len;
+                if (next > end) {
+                    return false;  // still being written.
+                }
+                if (!committed.contains(key(u, t))) {
+                    if (resume < 0) {
+                        resume = pos;
+                    }
+                    pos = next;
+                    continue;
+                }
+
+                if (block.length < len) {
+                    block = new byte[len];
+                }
+                in.readFully(block, 0, len);
+                blockLen = len;
+                blockPos = 0;
+                logUuid = u;
+                tag = t;
+                timestamp = ts;
+                pos = next;
+                return true;
+            }
+            return false;
+        }
+
+        public UUID getLogUuid() {
+            return logUuid;
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        public long getTimestamp() {
+            return timestamp & 0xffffffffL;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        // TYPE_UINT records are unsigned, TYPE_INT signed.
+        public long getValue() {
+            return type == TYPE_UINT ? value & 0xffffffffL : value;
+        }
+
+        public byte[] getBytes() {
+            byte[] b = new byte[dataLen];
+            System.arraycopy(block, dataOff, b, 0, dataLen);
+            return b;
+        }
+
+        // Once next() has returned false: where to start the next read so
+        // as not to see these records again.  Committed records after a
+        // session that was still open will be seen again.
+        public long getOffset() {
+            return resume < 0 ? pos : resume;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.biro.pebble;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Sizes the send window to what the link can take, AIMD style.  Every
+ * answered message grows the window by 1/window, so about one message per
+ * round trip.  A nack halves it, at most once per round trip since nacks
+ * come in bunches.  A timeout drops it to one.
+ * <p/>
+ * Round trips are smoothed as TCP does (RFC 6298), counting only messages
+ * that went once.  When the smoothed round trip climbs well past the best
+ * one seen, messages are queueing somewhere on the way, so the window
+ * stops growing before the nacks start.  That, or a nack or timeout in the
+ * last few round trips, counts as congested, and background work waits.
+ * <p/>
+ * The frame interval follows the round trip: there's no use building
+ * frames faster than the link answers.
+ */
+class PebbleFlowControl {
+    // smoothed round trips this far over the best mean queueing.
+    private static final double DELAY_FACTOR = 2.0;
+    // ... as long as they're at least this much over, in microseconds.
+    private static final long MIN_QUEUE_DELAY_US = 20000;
+    // how many round trips a nack or timeout counts as congestion for.
+    private static final int CONGESTED_RTTS = 4;
+    // until there's a round trip to go by.
+    private static final long INITIAL_RTT_US = 100000;
+
+    private final int initialWindow;
+    private int maxWindow;
+    private boolean adaptive = true;
+
+    private double window;
+    private long srttMicros = 0;
+    private long rttvarMicros = 0;
+    private long minRttMicros = Long.MAX_VALUE;
+    // System.nanoTime() of the last decrease, 0 for never.
+    private long lastDecrease = 0;
+
+    PebbleFlowControl(int initialWindow, int maxWindow) {
+        this.initialWindow = initialWindow;
+        this.maxWindow = maxWindow;
+        this.window = Math.min(initialWindow, maxWindow);
+    }
+
+    // A fixed window of max, or an adaptive one that never goes over it.
+    synchronized void configure(boolean adaptive, int max) {
+        this.adaptive = adaptive;
+        this.maxWindow = max;
+        window = adaptive ? Math.min(window, max) : max;
+    }
+
+    synchronized boolean isAdaptive() {
+        return adaptive;
+    }
+
+    synchronized int maxWindow() {
+        return maxWindow;
+    }
+
+    // Messages that may be outstanding at once.
+    synchronized int window() {
+        return Math.max(1, (int) window);
+    }
+
+    // A message was answered after rttMicros.  sample is false when it had
+    // been sent more than once, so which send was answered isn't known.
+    synchronized void answered(long rttMicros, boolean sample) {
+        if (sample && rttMicros > 0) {
+            if (srttMicros == 0) {
+                srttMicros = rttMicros;
+                rttvarMicros = rttMicros / 2;
+            } else {
+                long err = Math.abs(srttMicros - rttMicros);
+                rttvarMicros += (err - rttvarMicros) / 4;
+                srttMicros += (rttMicros - srttMicros) / 8;
+            }
+            if (rttMicros < minRttMicros) {
+                minRttMicros = rttMicros;
+            }
+        }
+
+        if (!adaptive || queueing()) {
+            return;
+        }
+        window = Math.min(maxWindow, window + 1.0 / window);
+    }
+
+    synchronized void nacked() {
+        if (!adaptive) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (lastDecrease != 0 && now - lastDecrease < srtt() * 1000) {
+            return;  // same bunch.
+        }
+        window = Math.max(1.0, window / 2);
+        lastDecrease = now;
+    }
+
+    synchronized void timedOut() {
+        if (!adaptive) {
+            return;
+        }
+        window = 1.0;
+        lastDecrease = System.nanoTime();
+    }
+
+    // The link's been lost and found; what we knew about it may not hold.
+    synchronized void reset() {
+        window = adaptive ? Math.min(initialWindow, maxWindow) : maxWindow;
+        srttMicros = 0;
+        rttvarMicros = 0;
+        minRttMicros = Long.MAX_VALUE;
+        lastDecrease = 0;
+    }
+
+    // must be called with this locked.
+    private boolean queueing() {
+        return srttMicros != 0 && minRttMicros != Long.MAX_VALUE
+                && srttMicros > DELAY_FACTOR * minRttMicros
+                && srttMicros - minRttMicros > MIN_QUEUE_DELAY_US;
+    }
+
+    // must be called with this locked.
+    private long srtt() {
+        return srttMicros != 0 ? srttMicros : INITIAL_RTT_US;
+    }
+
+    synchronized boolean isCongested() {
+        if (queueing()) {
+            return true;
+        }
+        return lastDecrease != 0
+                && System.nanoTime() - lastDecrease < CONGESTED_RTTS * srtt() * 1000;
+    }
+
+    synchronized long getSrttMicros() {
+        return srttMicros;
+    }
+
+    // How long to wait for an answer before sending again: srtt plus four
+    // deviations, as TCP does, or fallback until we've measured.
+    synchronized long timeoutMillis(long fallback) {
+        if (srttMicros == 0) {
+            return fallback;
+        }
+        return Math.max(fallback, (srttMicros + 4 * rttvarMicros) / 1000);
+    }
+
+    // No shorter than one round trip.
+    synchronized long frameIntervalMillis(long configured) {
+        return Math.max(configured, srttMicros / 1000);
+    }
+}
@@ -0,0 +1,200 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Fonts and short strings that keep coming up, sent once per watch session
+ * and referred to by a small id after that.  The first message to use a
+ * value sends it along with the id it's to be known by; once the watch has
+ * acknowledged that, later messages send just the id.
+ * <p/>
+ * The watch keeps a limited number of bytes of values (KEY_INTERN_BUDGET
+ * in STATUS_STARTED).  When that's full the least recently used value
+ * that no queued message refers to gives up its id.  Text is only given
+ * an id the second time it's seen, so one-off strings don't push out the
+ * ones that repeat.
+ */
+class PebbleInternTable {
+    public static final int DEFAULT_BUDGET = 1024;
+    // longer text isn't worth an id.
+    public static final int MAX_TEXT = 32;
+    private static final int MAX_IDS = 256;
+    // values remembered, with or without an id.
+    private static final int MAX_ENTRIES = 2 * MAX_IDS;
+
+    private static class Entry {
+        final int size;
+        int id = -1;
+        // the watch has acknowledged a message defining id.
+        boolean confirmed = false;
+        // messages that use id and haven't been answered.
+        int uses = 0;
+
+        Entry(int size) {
+            this.size = size;
+        }
+    }
+
+    // access ordered, least recently used first.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Entry[] byId = new Entry[MAX_IDS];
+    private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+    private int nextId = 0;
+    private int budget = 0;
+    private int used = 0;
+
+    // Starts a new watch session: nothing is known to the watch.  A
+    // budget of 0 turns interning off.
+    synchronized void reset(int budget) {
+        entries.clear();
+        for (int i = 0; i < MAX_IDS; i++) {
+            byId[i] = null;
+        }
+        freeIds.clear();
+        nextId = 0;
+        used = 0;
+        this.budget = budget;
+    }
+
+    // Adds value to pd: as the value under valueKey, plus its id under
+    // idKey if it's being given one, or as just the id if the watch has
+    // it.  bytes, if not null, is what's sent for the value instead of the
+    // string.  Returns the id to pass to done() with the answer, or -1.
+    synchronized int add(PebbleDictionary pd, int valueKey, int idKey, String value,
+                         byte[] bytes, boolean text) {
+        int size = bytes != null ? bytes.length : PebbleUtf8.encodedLength(value);
+        Entry e = null;
+        if (budget > 0 && !(text && size > MAX_TEXT)) {
+            e = entries.get(value);
+            if (e == null) {
+                e = new Entry(size);
+                entries.put(value, e);
+                trim();
+                if (text) {
+                    e = null;  // first sighting.
+                }
+            }
+        }
+
+        if (e != null && e.id < 0) {
+            assign(e);
+        }
+
+        if (e == null || e.id < 0) {
+            addValue(pd, valueKey, value, bytes);
+            return -1;
+        }
+
+        if (!e.confirmed) {
+            addValue(pd, valueKey, value, bytes);
+        }
+        pd.addUint16(idKey, (short) e.id);
+        e.uses++;
+        return e.id;
+    }
+
+    private static void addValue(PebbleDictionary pd, int key, String value, byte[] bytes) {
+        if (bytes != null) {
+            pd.addBytes(key, bytes);
+        } else {
+            pd.addString(key, value);
+        }
+    }
+
+    // must be called with this locked.  Gives e an id if the budget can
+    // make room for it.
+    private void assign(Entry e) {
+        if (e.size > budget) {
+            return;
+        }
+
+        Iterator<Entry> it = entries.values().iterator();
+        while ((used + e.size > budget || (freeIds.isEmpty() && nextId == MAX_IDS))
+                && it.hasNext()) {
+            Entry old = it.next();
+            if (old != e && old.id >= 0 && old.uses == 0) {
+                release(old);
+            }
+        }
+        if (used + e.size > budget || (freeIds.isEmpty() && nextId == MAX_IDS)) {
+            return;  // everything's in use.
+        }
+
+        e.id = freeIds.isEmpty() ? nextId++ : freeIds.pop();
+        e.confirmed = false;
+        byId[e.id] = e;
+        used += e.size;
+    }
+
+    // must be called with this locked.
+    private void release(Entry e) {
+        byId[e.id] = null;
+        freeIds.push(e.id);
+        e.id = -1;
+        e.confirmed = false;
+        used -= e.size;
+    }
+
+    // must be called with this locked.  Forgets the oldest values that
+    // don't have an id.
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+            if (it.next().id < 0) {
+                it.remove();
+            }
+        }
+    }
+
+    // The message using id has been answered.  defined says whether it
+    // carried the value too.  After a failure we can't be sure what the
+    // watch has, so the value is sent again next time.
+    synchronized void done(int id, boolean ok, boolean defined) {
+        if (id < 0 || byId[id] == null) {
+            return;
+        }
+
+        Entry e = byId[id];
+        if (e.uses > 0) {
+            e.uses--;
+        }
+        if (!ok) {
+            e.confirmed = false;
+        } else if (defined) {
+            e.confirmed = true;
+        }
+    }
+
+    // The message using id will never be answered: it was superseded.
+    synchronized void release(int id) {
+        if (id >= 0 && byId[id] != null && byId[id].uses > 0) {
+            byId[id].uses--;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.biro.pebble;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.util.Log;
+
+import com.getpebble.android.kit.PebbleKit;
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * The real transport: PebbleKit broadcasts to and from the Pebble app.
+ */
+public class PebbleKitTransport implements PebbleTransport {
+    private static final String TAG = "PebbleKitTransport: ";
+
+    // What register registered, for unregister.
+    private final ArrayList<BroadcastReceiver> receivers = new ArrayList<>();
+
+    // PebbleKit delivers on the main thread; everything is handed over to
+    // the Pebble's executor so the main thread only pays for the hop.  Acks
+    // aren't listened for: the answer that follows says more.
+    @Override
+    public void register(Context ctx, UUID appUuid, final Pebble pebble) {
+        PebbleReceiver receiver = new PebbleReceiver(pebble);
+        receivers.add(PebbleKit.registerPebbleConnectedReceiver(ctx, receiver));
+        receivers.add(PebbleKit.registerPebbleDisconnectedReceiver(ctx, receiver));
+
+        receivers.add(PebbleKit.registerReceivedNackHandler(ctx, new PebbleKit.PebbleNackReceiver(appUuid) {
+            @Override
+            public void receiveNack(final Context context, final int i) {
+                pebble.getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pebble.receiveNack(context, i);
+                    }
+                });
+            }
+        }));
+
+        receivers.add(PebbleKit.registerReceivedDataHandler(ctx, new PebbleKit.PebbleDataReceiver(appUuid) {
+            @Override
+            public void receiveData(final Context context, final int ptid,
+                                    final PebbleDictionary pebbleDictionary) {
+                pebble.getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pebble.receiveData(context, ptid, pebbleDictionary);
+                    }
+                });
+            }
+        }));
+
+        // Data logging stays on the main thread: the log only copies each
+        // record into a buffer, and a hop per record would cost more.
+        receivers.add(PebbleKit.registerDataLogReceiver(ctx, new PebbleKit.PebbleDataLogReceiver(appUuid) {
+            @Override
+            public void receiveData(Context context, UUID logUuid, Long timestamp, Long tag, Long data) {
+                PebbleDataLog log = pebble.getDataLog();
+                if (log != null) {
+                    log.receiveUint(logUuid, timestamp, tag, data.intValue());
+                } else {
+                    super.receiveData(context, logUuid, timestamp, tag, data);
+                }
+            }
+
+            @Override
+            public void receiveData(Context context, UUID logUuid, Long timestamp, Long tag, byte[] data) {
+                PebbleDataLog log = pebble.getDataLog();
+                if (log != null) {
+                    log.receiveBytes(logUuid, timestamp, tag, data);
+                } else {
+                    super.receiveData(context, logUuid, timestamp, tag, data);
+                }
+            }
+
+            @Override
+            public void receiveData(Context context, UUID logUuid, Long timestamp, Long tag, int data) {
+                PebbleDataLog log = pebble.getDataLog();
+                if (log != null) {
+                    log.receiveInt(logUuid, timestamp, tag, data);
+                } else {
+                    super.receiveData(context, logUuid, timestamp, tag, data);
+                }
+            }
+
+            @Override
+            public void onFinishSession(Context context, UUID logUuid, Long timestamp, Long tag) {
+                PebbleDataLog log = pebble.getDataLog();
+                if (log != null) {
+                    log.finishSession(logUuid, timestamp, tag);
+                } else {
+                    super.onFinishSession(context, logUuid, timestamp, tag);
+                }
+            }
+        }));
+    }
+
+    @Override
+    public void unregister(Context ctx) {
+        for (BroadcastReceiver r : receivers) {
+            try {
+                ctx.unregisterReceiver(r);
+            } catch (IllegalArgumentException iae) {
+                Log.e(TAG, "Receiver already gone: " + iae);
+            }
+        }
+        receivers.clear();
+    }
+
+    @Override
+    public boolean isConnected(Context ctx) {
+        return PebbleKit.isWatchConnected(ctx);
+    }
+
+    @Override
+    public void sendData(Context ctx, UUID appUuid, PebbleDictionary data, int tid) {
+        PebbleKit.sendDataToPebbleWithTransactionId(ctx, appUuid, data, tid);
+    }
+
+    @Override
+    public void sendAck(Context ctx, int tid) {
+        PebbleKit.sendAckToPebble(ctx, tid);
+    }
+
+    @Override
+    public void sendNack(Context ctx, int tid) {
+        PebbleKit.sendNackToPebble(ctx, tid);
+    }
+
+    @Override
+    public void startApp(Context ctx, UUID appUuid) {
+        PebbleKit.startAppOnPebble(ctx, appUuid);
+    }
+
+    @Override
+    public void stopApp(Context ctx, UUID appUuid) {
+        PebbleKit.closeAppOnPebble(ctx, appUuid);
+    }
+}
@@ -30,4 +30,12 @@ import android.content.Context;
 public interface  PebbleLayer {
     abstract boolean changed();
     boolean update(Context ctx, PebbleWindow pw);
+    // called when the layer is added to a window.  The window only looks
+    // at layers that have told it they changed, with
+    // PebbleWindow.invalidate(layer).
+    void setWindow(PebbleWindow pw);
+    // Gives up whatever the layer has on the watch: destroys it when
+    // destroy is set, or just forgets it when the window's going and takes
+    // it along.  Either way it's made again if the layer's used again.
+    void release(Context ctx, PebbleWindow pw, boolean destroy);
 }
@@ -0,0 +1,151 @@
+package org.biro.pebble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * What a window should look like: its text layers, each named by a key,
+ * and their attributes.  Build a new one whenever anything changes and
+ * hand it to PebbleWindow.setLayout; PebbleReconciler works out what has
+ * to be sent.  A layer keeps its key's handle on the watch for as long as
+ * the key is in the layout.
+ * <p/>
+ * Layouts aren't copied, so one that's been handed over mustn't be
+ * changed; build the next one instead.  A new key's layer goes on top,
+ * or takes the place of one whose key has just left.
+ */
+public class PebbleLayout {
+
+    // A text layer's attributes.  Anything not set is the watch's default.
+    public static class Text {
+        final String key;
+        int fg = Pebble.COLOR_BLACK;
+        int bg = Pebble.COLOR_WHITE;
+        String font = "Raster Gothic 14-point Boldface";
+        int alignment = Pebble.TEXT_ALIGNMENT_LEFT;
+        String text = "";
+        // no rect is wherever the watch puts a new layer.
+        boolean hasRect = false;
+        int x, y, w, h;
+
+        // text as UTF-8, made the first time it's sent.
+        private byte[] encoded = null;
+
+        Text(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public void setText(String text) {
+            this.text = text;
+            encoded = null;
+        }
+
+        public void setFont(String font) {
+            this.font = font;
+        }
+
+        public void setColors(int fg, int bg) {
+            this.fg = fg;
+            this.bg = bg;
+        }
+
+        public void setAlignment(int alignment) {
+            this.alignment = alignment;
+        }
+
+        public void setRect(int x, int y, int w, int h) {
+            hasRect = true;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        byte[] encodedText() {
+            if (encoded == null) {
+                encoded = PebbleUtf8.encode(text);
+            }
+            return encoded;
+        }
+
+        // true when a layer showing acked already looks like this.  With
+        // no rect of our own, any rect will do.
+        boolean matches(Text acked) {
+            return this == acked
+                    || (fg == acked.fg && bg == acked.bg && alignment == acked.alignment
+                    && font.equals(acked.font) && text.equals(acked.text)
+                    && (!hasRect || sameRect(acked)));
+        }
+
+        boolean sameRect(Text o) {
+            return hasRect == o.hasRect
+                    && (!hasRect || (x == o.x && y == o.y && w == o.w && h == o.h));
+        }
+
+        // What a layer showing was shows once this has been applied to it:
+        // this, but keeping was's rect if this has none.
+        Text appliedTo(Text was) {
+            if (hasRect || !was.hasRect) {
+                return this;
+            }
+            Text t = new Text(key);
+            t.fg = fg;
+            t.bg = bg;
+            t.font = font;
+            t.alignment = alignment;
+            t.text = text;
+            t.encoded = encoded;
+            t.setRect(was.x, was.y, was.w, was.h);
+            return t;
+        }
+    }
+
+    private final ArrayList<Text> layers = new ArrayList<>();
+    private final HashMap<String, Text> byKey = new HashMap<>();
+
+    // The text layer named key, added at the end if it isn't there yet.
+    public Text text(String key) {
+        Text t = byKey.get(key);
+        if (t == null) {
+            t = new Text(key);
+            layers.add(t);
+            byKey.put(key, t);
+        }
+        return t;
+    }
+
+    List<Text> getLayers() {
+        return layers;
+    }
+
+    Text get(String key) {
+        return byKey.get(key);
+    }
+}
@@ -0,0 +1,276 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * A scrolling list of any length that only ever has a fixed number of
+ * layers on the watch.  The whole list stays on the phone; a pool of
+ * text layers, one per visible row plus a few spare, is reused as it
+ * scrolls.  Spare layers are filled with the rows just past the ones on
+ * screen, in the direction of the last scroll, while the link is idle and
+ * parked off screen, so scrolling a row usually only moves layers.
+ * <p/>
+ * The pool is a PebbleTextGrid, so it's made in one round trip.  Rows
+ * past the end of the list leave their slots parked.
+ */
+public class PebbleListLayer implements PebbleLayer {
+    // where spare layers wait; well off any Pebble screen.
+    private static final int OFFSCREEN_Y = 1000;
+
+    private final int x;
+    private final int y;
+    private final int rowHeight;
+    private final int visibleRows;
+    private final int poolSize;
+
+    private final PebbleTextGrid pool;
+    // the list row each pool slot shows, or -1.
+    private final int[] slotRow;
+
+    private volatile PebbleWindow window;
+    private List<String> items = new ArrayList<>();
+    private int first = 0;
+    private boolean scrolledUp = false;
+
+    public PebbleListLayer(int x, int y, int width, int rowHeight, int visibleRows,
+                           int prefetchRows) {
+        this.x = x;
+        this.y = y;
+        this.rowHeight = rowHeight;
+        this.visibleRows = visibleRows;
+        this.poolSize = visibleRows + prefetchRows;
+
+        pool = new PebbleTextGrid(poolSize, 1, x, y, width, rowHeight);
+        slotRow = new int[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            slotRow[i] = -1;
+            pool.moveCell(i, 0, x, OFFSCREEN_Y);
+            pool.setBackground(i, 0, true);
+        }
+    }
+
+    // Changes are made on the window's executor once the list is in one,
+    // so it can be scrolled and changed from any thread.
+    private void post(Runnable r) {
+        PebbleWindow pw = window;
+        if (pw == null) {
+            r.run();
+        } else {
+            pw.post(r);
+        }
+    }
+
+    // The list holds on to items; call itemChanged or setItems again
+    // after changing it.
+    public void setItems(final List<String> items) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                PebbleListLayer.this.items = items;
+                for (int i = 0; i < poolSize; i++) {
+                    slotRow[i] = -1;
+                }
+                if (first > maxFirst()) {
+                    first = maxFirst();
+                }
+                layout();
+            }
+        });
+    }
+
+    public void itemChanged(final int row) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < poolSize; i++) {
+                    if (slotRow[i] == row) {
+                        pool.setText(i, 0, items.get(row));
+                    }
+                }
+                invalidate();
+            }
+        });
+    }
+
+    public int getItemCount() {
+        return items.size();
+    }
+
+    public int getFirstVisible() {
+        return first;
+    }
+
+    public void scrollTo(final int row) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                scroll(row);
+            }
+        });
+    }
+
+    public void scrollBy(final int rows) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                scroll(first + rows);
+            }
+        });
+    }
+
+    private void scroll(int row) {
+        if (row > maxFirst()) {
+            row = maxFirst();
+        }
+        if (row < 0) {
+            row = 0;
+        }
+        if (row == first) {
+            return;
+        }
+
+        scrolledUp = row < first;
+        first = row;
+        layout();
+    }
+
+    private int maxFirst() {
+        return Math.max(0, items.size() - visibleRows);
+    }
+
+    // The rows that should be in the pool, visible ones first.
+    private boolean wanted(int row) {
+        if (row < 0 || row >= items.size()) {
+            return false;
+        }
+
+        int spare = poolSize - visibleRows;
+        if (scrolledUp) {
+            return row >= first - spare && row < first + visibleRows;
+        }
+        return row >= first && row < first + visibleRows + spare;
+    }
+
+    private boolean visible(int row) {
+        return row >= first && row < first + visibleRows && row < items.size();
+    }
+
+    // Keeps slots whose row is still wanted, hands the rest to wanted rows
+    // that don't have one, and puts every slot where it belongs.
+    private void layout() {
+        for (int i = 0; i < poolSize; i++) {
+            if (!wanted(slotRow[i])) {
+                slotRow[i] = -1;
+            }
+        }
+
+        int free = 0;
+        int spare = poolSize - visibleRows;
+        int from = scrolledUp ? first - spare : first;
+        // visible rows get slots before spare ones.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int row = from; row < from + poolSize; row++) {
+                if (!wanted(row) || visible(row) != (pass == 0) || hasSlot(row)) {
+                    continue;
+                }
+                while (free < poolSize && slotRow[free] >= 0) {
+                    free++;
+                }
+                if (free == poolSize) {
+                    break;
+                }
+                slotRow[free] = row;
+                pool.setText(free, 0, items.get(row));
+            }
+        }
+
+        for (int i = 0; i < poolSize; i++) {
+            int row = slotRow[i];
+            boolean on = row >= 0 && visible(row);
+            pool.moveCell(i, 0, x, on ? y + (row - first) * rowHeight : OFFSCREEN_Y);
+            pool.setBackground(i, 0, !on);
+        }
+        invalidate();
+    }
+
+    private boolean hasSlot(int row) {
+        for (int i = 0; i < poolSize; i++) {
+            if (slotRow[i] == row) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setFont(final String font) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                pool.setFont(font);
+                invalidate();
+            }
+        });
+    }
+
+    public void setColors(final int fg, final int bg) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                pool.setColors(fg, bg);
+                invalidate();
+            }
+        });
+    }
+
+    // The pool has no window of its own, so changes to it are ours.
+    private void invalidate() {
+        if (window != null) {
+            window.invalidate(this);
+        }
+    }
+
+    @Override
+    public boolean changed() {
+        return pool.changed();
+    }
+
+    @Override
+    public boolean update(Context ctx, PebbleWindow pw) {
+        return pool.update(ctx, pw);
+    }
+
+    @Override
+    public void setWindow(PebbleWindow pw) {
+        window = pw;
+    }
+
+    @Override
+    public void release(Context ctx, PebbleWindow pw, boolean destroy) {
+        pool.release(ctx, pw, destroy);
+    }
+}
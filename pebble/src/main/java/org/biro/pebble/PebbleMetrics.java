@@ -0,0 +1,286 @@
+package org.biro.pebble;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * How the link to one watch is doing: round trip times per method, how
+ * deep the queues are, bytes sent per key, retries, and how often each
+ * layer is updated.  Turned on with Pebble.enableMetrics(); when it's off
+ * the only cost is a null check.
+ * <p/>
+ * Everything is recorded with atomics, from whichever thread is sending or
+ * receiving.  snapshot() copies it all out; an Exporter gets a snapshot
+ * every so often, and dump() writes one to a file.
+ */
+public class PebbleMetrics {
+    public interface Exporter {
+        void export(Snapshot snapshot);
+    }
+
+    // Round trip histograms are per FUNC_*; anything past this shares the
+    // last one.
+    public static final int METHODS = 16;
+    // Plain keys are all below the batch stride.
+    public static final int KEYS = PebbleBatch.KEY_BATCH_STRIDE;
+    // How many layers have their updates counted separately.
+    public static final int LAYERS = 128;
+
+    private final Pebble pebble;
+    // System.nanoTime(), the clock round trips are timed on.
+    private final long startedAt = System.nanoTime();
+
+    private final PebbleHistogram[] rtt = new PebbleHistogram[METHODS];
+    private final AtomicLongArray keyBytes = new AtomicLongArray(KEYS);
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong nacks = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong maxQueued = new AtomicLong();
+
+    // Per layer update counts, open addressed on the layer's order key.
+    // A key slot is claimed once by compare and set and never freed.
+    private static final long EMPTY = Long.MIN_VALUE;
+    private final AtomicLongArray layerKeys = new AtomicLongArray(LAYERS);
+    private final AtomicLongArray layerUpdates = new AtomicLongArray(LAYERS);
+    // updates for layers that didn't fit.
+    private final AtomicLong otherLayerUpdates = new AtomicLong();
+
+    PebbleMetrics(Pebble pebble) {
+        this.pebble = pebble;
+        for (int i = 0; i < METHODS; i++) {
+            rtt[i] = new PebbleHistogram();
+        }
+        for (int i = 0; i < LAYERS; i++) {
+            layerKeys.set(i, EMPTY);
+        }
+    }
+
+    private static int methodSlot(int method) {
+        return method < 0 || method >= METHODS ? METHODS - 1 : method;
+    }
+
+    void recordRoundTrip(int method, long micros) {
+        rtt[methodSlot(method)].record(micros);
+    }
+
+    void recordSent(int key, int bytes) {
+        if (key >= PebbleBatch.KEY_BATCH_BASE) {
+            key = (key - PebbleBatch.KEY_BATCH_BASE) % PebbleBatch.KEY_BATCH_STRIDE;
+        }
+        if (key >= 0 && key < KEYS) {
+            keyBytes.addAndGet(key, bytes);
+        }
+    }
+
+    void recordMessage(int bytes) {
+        messagesSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    void recordReceived() {
+        messagesReceived.incrementAndGet();
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordNack() {
+        nacks.incrementAndGet();
+    }
+
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    void recordQueued(int depth) {
+        long m = maxQueued.get();
+        while (depth > m && !maxQueued.compareAndSet(m, depth)) {
+            m = maxQueued.get();
+        }
+    }
+
+    void recordLayerUpdate(long orderKey) {
+        int start = (int) (orderKey ^ (orderKey >>> 32)) & (LAYERS - 1);
+        for (int i = 0; i < LAYERS; i++) {
+            int idx = (start + i) & (LAYERS - 1);
+            long k = layerKeys.get(idx);
+            if (k == EMPTY) {
+                // someone else may claim it first, maybe for this layer.
+                layerKeys.compareAndSet(idx, EMPTY, orderKey);
+                k = layerKeys.get(idx);
+            }
+            if (k == orderKey) {
+                layerUpdates.incrementAndGet(idx);
+                return;
+            }
+        }
+        otherLayerUpdates.incrementAndGet();
+    }
+
+    public PebbleHistogram getRoundTrip(int method) {
+        return rtt[methodSlot(method)];
+    }
+
+    public Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.uptimeMillis = (System.nanoTime() - startedAt) / 1000000;
+        s.messagesSent = messagesSent.get();
+        s.messagesReceived = messagesReceived.get();
+        s.bytesSent = bytesSent.get();
+        s.retries = retries.get();
+        s.nacks = nacks.get();
+        s.timeouts = timeouts.get();
+        s.inflight = pebble.getInflightCount();
+        s.queued = pebble.getQueuedCount();
+        s.sendWindow = pebble.getSendWindow();
+        s.srttMicros = pebble.getRoundTripMicros();
+        s.maxQueued = maxQueued.get();
+
+        for (int m = 0; m < METHODS; m++) {
+            PebbleHistogram h = rtt[m];
+            s.rttCount[m] = h.getCount();
+            s.rttP50[m] = h.getPercentile(0.50);
+            s.rttP90[m] = h.getPercentile(0.90);
+            s.rttP99[m] = h.getPercentile(0.99);
+            s.rttMax[m] = h.getMax();
+        }
+
+        for (int k = 0; k < KEYS; k++) {
+            s.keyBytes[k] = keyBytes.get(k);
+        }
+
+        int n = 0;
+        for (int i = 0; i < LAYERS; i++) {
+            if (layerKeys.get(i) != EMPTY) {
+                n++;
+            }
+        }
+        s.layerKeys = new long[n];
+        s.layerUpdates = new long[n];
+        n = 0;
+        for (int i = 0; i < LAYERS && n < s.layerKeys.length; i++) {
+            long k = layerKeys.get(i);
+            if (k != EMPTY) {
+                s.layerKeys[n] = k;
+                s.layerUpdates[n] = layerUpdates.get(i);
+                n++;
+            }
+        }
+        s.otherLayerUpdates = otherLayerUpdates.get();
+        return s;
+    }
+
+    // Writes a snapshot to file, replacing what was there.
+    public void dump(File file) throws IOException {
+        Writer w = new FileWriter(file);
+        try {
+            w.write(snapshot().toString());
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * A copy of the metrics at one moment.  Round trip times are in
+     * microseconds, indexed by FUNC_*.  Layers are identified by window
+     * handle (high 32 bits) and layer handle (low 32 bits).
+     */
+    public static class Snapshot {
+        public long uptimeMillis;
+        public long messagesSent;
+        public long messagesReceived;
+        public long bytesSent;
+        public long retries;
+        public long nacks;
+        public long timeouts;
+        public int inflight;
+        public int queued;
+        public long maxQueued;
+        public int sendWindow;
+        public long srttMicros;
+
+        public final long[] rttCount = new long[METHODS];
+        public final long[] rttP50 = new long[METHODS];
+        public final long[] rttP90 = new long[METHODS];
+        public final long[] rttP99 = new long[METHODS];
+        public final long[] rttMax = new long[METHODS];
+
+        public final long[] keyBytes = new long[KEYS];
+
+        public long[] layerKeys;
+        public long[] layerUpdates;
+        public long otherLayerUpdates;
+
+        // updates per second for layer i since metrics were turned on.
+        public double layerRate(int i) {
+            return uptimeMillis == 0 ? 0 : layerUpdates[i] * 1000.0 / uptimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US,
+                    "uptime %d ms, sent %d (%d bytes), received %d, retries %d, nacks %d, timeouts %d\n",
+                    uptimeMillis, messagesSent, bytesSent, messagesReceived, retries, nacks, timeouts));
+            sb.append(String.format(Locale.US, "in flight %d, queued %d (max %d), window %d, srtt %d us\n",
+                    inflight, queued, maxQueued, sendWindow, srttMicros));
+
+            sb.append("rtt us: method count p50 p90 p99 max\n");
+            for (int m = 0; m < METHODS; m++) {
+                if (rttCount[m] != 0) {
+                    sb.append(String.format(Locale.US, "  %d %d %d %d %d %d\n",
+                            m, rttCount[m], rttP50[m], rttP90[m], rttP99[m], rttMax[m]));
+                }
+            }
+
+            sb.append("bytes: key bytes\n");
+            for (int k = 0; k < KEYS; k++) {
+                if (keyBytes[k] != 0) {
+                    sb.append(String.format(Locale.US, "  %d %d\n", k, keyBytes[k]));
+                }
+            }
+
+            sb.append("layers: window layer updates per-second\n");
+            for (int i = 0; i < layerKeys.length; i++) {
+                sb.append(String.format(Locale.US, "  %d %d %d %.2f\n",
+                        layerKeys[i] >>> 32, layerKeys[i] & 0xffffffffL,
+                        layerUpdates[i], layerRate(i)));
+            }
+            if (otherLayerUpdates != 0) {
+                sb.append(String.format(Locale.US, "  other %d\n", otherLayerUpdates));
+            }
+            return sb.toString();
+        }
+    }
+}
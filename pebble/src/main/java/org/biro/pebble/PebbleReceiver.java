@@ -5,15 +5,26 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import com.getpebble.android.kit.Constants;
+
 public class PebbleReceiver extends BroadcastReceiver {
     private static final String TAG = "PebbleReceiverß";
+    private final Pebble parent;
+
     public PebbleReceiver(Pebble parent) {
+        this.parent = parent;
     }
 
+    // PebbleKit's connected and disconnected broadcasts drive the Pebble's
+    // link state.
     @Override
     public void onReceive(Context context, Intent intent) {
-        // TODO: This method is called when the BroadcastReceiver is receiving
-        // an Intent broadcast.
-        Log.d(TAG, intent.getAction());
+        String action = intent.getAction();
+        Log.d(TAG, action);
+        if (Constants.INTENT_PEBBLE_CONNECTED.equals(action)) {
+            parent.linkUp(context);
+        } else if (Constants.INTENT_PEBBLE_DISCONNECTED.equals(action)) {
+            parent.linkDown(context);
+        }
     }
 }
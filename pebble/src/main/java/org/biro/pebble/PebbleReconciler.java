@@ -0,0 +1,474 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Keeps a window's text layers looking like the latest PebbleLayout.  Each
+ * key's layer is compared with what the watch last acknowledged for it,
+ * and only attributes that differ are sent, so rendering the same layout
+ * twice sends nothing.  While a layer's request is out, later layouts wait
+ * for the answer and then go as one diff.
+ * <p/>
+ * Keys new to the layout get layers, in one FUNC_NEW_TEXT_LAYERS when
+ * there are several and the watch has it.  A key that leaves gives its
+ * layer to the next new key, which then only sends what differs from the
+ * old one.  Layers nobody takes are destroyed, or on watches older than
+ * API_VERSION_DESTROY blanked and kept for later.
+ */
+public class PebbleReconciler implements PebbleLayer {
+    private static final String TAG = "PebbleReconciler: ";
+
+    // What a new layer shows.
+    private static final PebbleLayout.Text NEW_LAYER = new PebbleLayout.Text(null);
+    // What a spare layer shows when it can't be destroyed.
+    private static final PebbleLayout.Text BLANK = new PebbleLayout.Text(null);
+    static {
+        BLANK.setRect(0, 0, 0, 0);
+    }
+
+    // A layer on the watch, or one being made.
+    private static class Node {
+        String key;
+        int handle = -1;
+        // what the watch shows, as of its last answer; null until the
+        // layer exists.
+        PebbleLayout.Text acked = null;
+        // the text the watch has, as sent, for deltas.  null when we aren't
+        // sure.
+        byte[] ackedText = null;
+        // a request for this layer is outstanding.
+        boolean busy = false;
+        // released; answers to what it sent are ignored.
+        boolean dead = false;
+    }
+
+    private volatile PebbleWindow window;
+    // everything below is owned by the window's executor.
+    private PebbleLayout layout = new PebbleLayout();
+    // layers for the layout's keys.
+    private final LinkedHashMap<String, Node> nodes = new LinkedHashMap<>();
+    // layers whose key has left the layout.
+    private final ArrayList<Node> spare = new ArrayList<>();
+    // requests we're waiting on.
+    private int outstanding = 0;
+    private final PebbleBackoff backoff = new PebbleBackoff();
+
+    // Makes the window's layers look like layout, which mustn't be changed
+    // from here on.
+    public void render(final PebbleLayout layout) {
+        PebbleWindow pw = window;
+        if (pw == null) {
+            this.layout = layout;
+            return;
+        }
+        pw.post(new Runnable() {
+            @Override
+            public void run() {
+                PebbleReconciler.this.layout = layout;
+                backoff.changed();
+                PebbleWindow pw = window;
+                if (pw != null) {
+                    pw.invalidate(PebbleReconciler.this);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setWindow(PebbleWindow pw) {
+        window = pw;
+    }
+
+    // The layout stays; it's made again if the window's used again.
+    @Override
+    public void release(Context ctx, PebbleWindow pw, boolean destroy) {
+        ArrayList<Node> all = new ArrayList<>(nodes.values());
+        all.addAll(spare);
+        for (Node n : all) {
+            if (destroy && n.handle >= 0) {
+                pw.destroyLayer(ctx, n.handle);
+            }
+            n.dead = true;
+        }
+        nodes.clear();
+        spare.clear();
+        outstanding = 0;
+        backoff.reset();
+    }
+
+    // Layers made for a request that was outstanding when we were released.
+    private void orphaned(Context ctx, PebbleWindow pw, PebbleDictionary resp, int count) {
+        if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() == Pebble.STATUS_ERR) {
+            return;
+        }
+        int first = resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue();
+        for (int i = 0; i < count; i++) {
+            pw.destroyLayer(ctx, first + i);
+        }
+    }
+
+    private static boolean settled(Node n, PebbleLayout.Text want) {
+        return n.handle >= 0 && n.acked != null && want.matches(n.acked);
+    }
+
+    @Override
+    public boolean changed() {
+        if (backoff.gaveUp()) {
+            return false;
+        }
+        List<PebbleLayout.Text> want = layout.getLayers();
+        if (nodes.size() != want.size()) {
+            return true;
+        }
+        for (PebbleLayout.Text t : want) {
+            Node n = nodes.get(t.key);
+            if (n == null || !settled(n, t)) {
+                return true;
+            }
+        }
+
+        PebbleWindow pw = window;
+        boolean destroy = pw != null && pw.getParent().supportsDestroy();
+        for (Node n : spare) {
+            if (destroy || !settled(n, BLANK)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns true when we started something and
+    // have to wait.
+    @Override
+    public boolean update(Context ctx, PebbleWindow pw) {
+        if (backoff.isWaiting()) {
+            return true;
+        }
+        Pebble parent = pw.getParent();
+        List<PebbleLayout.Text> want = layout.getLayers();
+
+        // Keys that have left give up their layers...
+        Iterator<Node> it = nodes.values().iterator();
+        while (it.hasNext()) {
+            Node n = it.next();
+            if (layout.get(n.key) == null) {
+                it.remove();
+                spare.add(n);
+            }
+        }
+
+        // ... to keys that have come, before anything new is made.
+        for (PebbleLayout.Text t : want) {
+            if (!nodes.containsKey(t.key)) {
+                Node n = takeSpare(t);
+                n.key = t.key;
+                nodes.put(t.key, n);
+            }
+        }
+
+        ArrayList<Node> missing = new ArrayList<>();
+        for (Node n : nodes.values()) {
+            if (n.handle < 0 && !n.busy) {
+                missing.add(n);
+            }
+        }
+        if (!missing.isEmpty()) {
+            create(ctx, pw, missing);
+        }
+
+        for (int i = spare.size() - 1; i >= 0; i--) {
+            Node n = spare.get(i);
+            if (n.busy) {
+                continue;
+            }
+            if (n.handle < 0) {
+                spare.remove(i);
+            } else if (parent.supportsDestroy()) {
+                destroy(ctx, pw, n);
+            } else if (!settled(n, BLANK)) {
+                apply(ctx, pw, n, BLANK);
+            }
+        }
+
+        for (PebbleLayout.Text t : want) {
+            Node n = nodes.get(t.key);
+            if (n.busy || n.handle < 0 || settled(n, t)) {
+                continue;
+            }
+            if (outstanding > 0 && parent.isBusy()) {
+                break;  // the rest go when answers come back.
+            }
+            apply(ctx, pw, n, t);
+        }
+
+        if (outstanding > 0) {
+            return true;
+        }
+        if (changed()) {
+            // held back with nothing to bring us back; look again next
+            // frame.
+            pw.invalidate();
+            return true;
+        }
+        return false;
+    }
+
+    // An idle spare layer for t, or a new node if there isn't one.  A
+    // layer with a rect can't go back to where new layers go, so it only
+    // suits a t that sets its own.
+    private Node takeSpare(PebbleLayout.Text t) {
+        for (int i = 0; i < spare.size(); i++) {
+            Node n = spare.get(i);
+            if (!n.busy && n.handle >= 0 && (t.hasRect || !n.acked.hasRect)) {
+                spare.remove(i);
+                return n;
+            }
+        }
+        return new Node();
+    }
+
+    private void create(Context ctx, final PebbleWindow pw, final ArrayList<Node> missing) {
+        if (missing.size() > 1 && pw.getParent().supportsLayerBlocks()) {
+            PebbleDictionary pd = new PebbleDictionary();
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_TEXT_LAYERS);
+            pd.addUint16(Pebble.KEY_LAYER_COUNT, (short) missing.size());
+            send(ctx, pw, missing, pd, new Pebble.PebbleFinishedCallback() {
+                @Override
+                public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                            PebbleDictionary req) {
+                    if (missing.get(0).dead) {
+                        orphaned(ctx, pw, resp, missing.size());
+                        return;
+                    }
+                    int first = -1;
+                    if (ok(pw, resp, "New layers failed: ")) {
+                        first = resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue();
+                    }
+                    for (int i = 0; i < missing.size(); i++) {
+                        created(missing.get(i), first < 0 ? -1 : first + i);
+                    }
+                    pw.updateStatus(ctx);
+                }
+            });
+            return;
+        }
+
+        for (final Node n : missing) {
+            PebbleDictionary pd = new PebbleDictionary();
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_TEXT_LAYER);
+            send(ctx, pw, n, pd, new Pebble.PebbleFinishedCallback() {
+                @Override
+                public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                            PebbleDictionary req) {
+                    if (n.dead) {
+                        orphaned(ctx, pw, resp, 1);
+                        return;
+                    }
+                    int tlh = -1;
+                    if (ok(pw, resp, "New layer failed: ")) {
+                        tlh = resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue();
+                    }
+                    created(n, tlh);
+                    pw.updateStatus(ctx);
+                }
+            });
+        }
+    }
+
+    private void created(Node n, int tlh) {
+        done(n);
+        n.handle = tlh;
+        n.acked = tlh < 0 ? null : NEW_LAYER;
+        n.ackedText = null;
+    }
+
+    private void destroy(Context ctx, final PebbleWindow pw, final Node n) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_DESTROY_LAYER);
+        pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, n.handle);
+        send(ctx, pw, n, pd, new Pebble.PebbleFinishedCallback() {
+            @Override
+            public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                        PebbleDictionary req) {
+                if (n.dead) {
+                    return;
+                }
+                done(n);
+                // a layer the watch doesn't have is as good as destroyed.
+                if (ok(pw, resp, "Destroy layer failed: ") || error(resp) == Pebble.ENOLAYER) {
+                    n.handle = -1;
+                    n.acked = null;
+                    spare.remove(n);
+                }
+                pw.updateStatus(ctx);
+            }
+        });
+    }
+
+    // Sends what it takes to make n's layer look like want.
+    private void apply(Context ctx, final PebbleWindow pw, final Node n,
+                       final PebbleLayout.Text want) {
+        final PebbleLayout.Text was = n.acked;
+        Pebble parent = pw.getParent();
+        final PebbleInternTable interns = parent.getInternTable();
+
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, n.handle);
+        if (want.fg != was.fg) {
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_FG_COLOR, want.fg);
+        }
+        if (want.bg != was.bg) {
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_BG_COLOR, want.bg);
+        }
+        if (want.alignment != was.alignment) {
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_ALIGNMENT, want.alignment);
+        }
+        if (want.hasRect && !want.sameRect(was)) {
+            pd.addBytes(Pebble.KEY_ATTRIBUTE_RECT,
+                    Pebble.encodeRect(want.x, want.y, want.w, want.h));
+        }
+        final int font_iid = !want.font.equals(was.font)
+                ? interns.add(pd, Pebble.KEY_ATTRIBUTE_FONT, Pebble.KEY_FONT_ID, want.font, null, false)
+                : -1;
+
+        int method = Pebble.FUNC_APPLY_ATTRIBUTES;
+        final byte[] sent_text = want.text.equals(was.text) ? null : want.encodedText();
+        int iid = -1;
+        if (sent_text != null) {
+            if (n.ackedText != null && parent.supportsTextDelta()
+                    && PebbleTextDelta.add(pd, n.ackedText, sent_text)) {
+                method = Pebble.FUNC_APPLY_TEXT_DELTA;
+            } else {
+                iid = interns.add(pd, Pebble.KEY_ATTRIBUTE_TEXT, Pebble.KEY_TEXT_ID,
+                        want.text, sent_text, true);
+            }
+        }
+        final int text_iid = iid;
+        pd.addUint32(Pebble.KEY_METHOD_ID, method);
+
+        send(ctx, pw, n, pd, new Pebble.PebbleFinishedCallback() {
+            @Override
+            public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                        PebbleDictionary req) {
+                if (n.dead) {
+                    boolean ok = resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() != Pebble.STATUS_ERR;
+                    interns.done(font_iid, ok, req.contains(Pebble.KEY_ATTRIBUTE_FONT));
+                    interns.done(text_iid, ok, req.contains(Pebble.KEY_ATTRIBUTE_TEXT));
+                    return;
+                }
+                done(n);
+                boolean ok = ok(pw, resp, "Apply failed: ");
+                interns.done(font_iid, ok, req.contains(Pebble.KEY_ATTRIBUTE_FONT));
+                interns.done(text_iid, ok, req.contains(Pebble.KEY_ATTRIBUTE_TEXT));
+                if (ok) {
+                    // only n's own answers move acked, so it's still was.
+                    n.acked = want.appliedTo(was);
+                    if (sent_text != null) {
+                        n.ackedText = sent_text;
+                    }
+                } else if (error(resp) == Pebble.ENOLAYER) {
+                    n.handle = -1;
+                    n.acked = null;
+                    n.ackedText = null;
+                } else if (sent_text != null) {
+                    // still differs, so it goes again, but whole.
+                    n.ackedText = null;
+                }
+                pw.updateStatus(ctx);
+            }
+        });
+    }
+
+    private void send(Context ctx, PebbleWindow pw, Node n, PebbleDictionary pd,
+                      Pebble.PebbleFinishedCallback done) {
+        if (!pw.hasHandle()) {
+            // send only asks for one; we're kicked again once there is.
+            pw.send(ctx, pd, done);
+            return;
+        }
+        n.busy = true;
+        outstanding++;
+        pw.send(ctx, pd, done);
+    }
+
+    private void send(Context ctx, PebbleWindow pw, ArrayList<Node> ns, PebbleDictionary pd,
+                      Pebble.PebbleFinishedCallback done) {
+        if (!pw.hasHandle()) {
+            pw.send(ctx, pd, done);
+            return;
+        }
+        for (Node n : ns) {
+            n.busy = true;
+        }
+        outstanding += ns.size();
+        pw.send(ctx, pd, done);
+    }
+
+    private void done(Node n) {
+        n.busy = false;
+        outstanding--;
+    }
+
+    private static int error(PebbleDictionary resp) {
+        if (!resp.contains(Pebble.KEY_ERROR_CODE)) {
+            return 0;
+        }
+        return resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue();
+    }
+
+    // Logs a failed call.  If the window's gone, so is every layer in it.
+    private boolean ok(PebbleWindow pw, PebbleDictionary resp, String what) {
+        if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() != Pebble.STATUS_ERR) {
+            backoff.succeeded();
+            return true;
+        }
+
+        int error = error(resp);
+        Log.e(TAG, what + error);
+        if (error == Pebble.ENOWINDOW) {
+            lostWindow(pw);
+        }
+        backoff.failed(pw, error);
+        return false;
+    }
+
+    private void lostWindow(PebbleWindow pw) {
+        for (Node n : nodes.values()) {
+            n.handle = -1;
+            n.acked = null;
+            n.ackedText = null;
+        }
+        spare.clear();
+        pw.lostHandle();
+    }
+}
@@ -0,0 +1,184 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Collects windows whose layers have changed and updates them at most once
+ * per frame.  Layers only ever hold their latest values, so however many
+ * times a layer changes between frames only the last value is sent.
+ */
+public class PebbleRenderScheduler {
+    public static final int DEFAULT_FRAME_RATE = 10;
+
+    // Where frames run and the clock they're timed by.
+    interface Host {
+        long uptimeMillis();
+        void postDelayed(Runnable r, long delayMillis);
+    }
+
+    // The main looper and its clock.  The Handler's made on first use so a
+    // Pebble can be built off the main thread.
+    private static class MainHost implements Host {
+        private Handler handler;
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMillis) {
+            if (handler == null) {
+                handler = new Handler(Looper.getMainLooper());
+            }
+            handler.postDelayed(r, delayMillis);
+        }
+    }
+
+    private final Pebble parent;
+    private final Host mainHost = new MainHost();
+    private Host host = mainHost;
+    private final LinkedHashSet<PebbleWindow> dirty = new LinkedHashSet<>();
+
+    private Context ctx;
+    private long frameInterval = 1000 / DEFAULT_FRAME_RATE;
+    private long lastFrame = 0;
+    private boolean scheduled = false;
+
+    private final Runnable frame = new Runnable() {
+        @Override
+        public void run() {
+            doFrame();
+        }
+    };
+
+    PebbleRenderScheduler(Pebble parent) {
+        this.parent = parent;
+    }
+
+    // Frames run on host instead of the main looper, with or without a
+    // context.  For running off Android.
+    void setHost(Host host) {
+        synchronized (dirty) {
+            this.host = host;
+        }
+    }
+
+    void setContext(Context ctx) {
+        synchronized (dirty) {
+            this.ctx = ctx;
+            if (!dirty.isEmpty()) {
+                scheduleFrame();
+            }
+        }
+    }
+
+    public void setFrameRate(int fps) {
+        if (fps < 1) {
+            fps = 1;
+        }
+
+        synchronized (dirty) {
+            frameInterval = 1000 / fps;
+        }
+    }
+
+    // The link's back: pick up whatever got dirty while it was down.
+    void resume() {
+        synchronized (dirty) {
+            if (!dirty.isEmpty()) {
+                scheduleFrame();
+            }
+        }
+    }
+
+    // Marks a window as needing an update on the next frame.
+    public void invalidate(PebbleWindow pw) {
+        synchronized (dirty) {
+            dirty.add(pw);
+            scheduleFrame();
+        }
+    }
+
+    // must be called with dirty locked.
+    private void scheduleFrame() {
+        // Until there's a context nothing can be sent, unless frames run
+        // on a host of our own.  setContext picks up whatever got dirty in
+        // the meantime.
+        if (scheduled || !canSend()) {
+            return;
+        }
+
+        scheduled = true;
+        // no faster than the link answers.
+        long delay = lastFrame + parent.frameInterval(frameInterval) - host.uptimeMillis();
+        host.postDelayed(frame, delay > 0 ? delay : 0);
+    }
+
+    // must be called with dirty locked.
+    private boolean canSend() {
+        return ctx != null || host != mainHost;
+    }
+
+    private void doFrame() {
+        ArrayList<PebbleWindow> windows;
+        Context c;
+        synchronized (dirty) {
+            scheduled = false;
+            lastFrame = host.uptimeMillis();
+            if (!canSend()) {
+                return;
+            }
+
+            // With the link down there's no point looking every frame;
+            // everything stays dirty until resume.
+            if (parent.isLinkDown()) {
+                return;
+            }
+
+            // If the link is still busy with the last frame, leave
+            // everything dirty and try again next frame instead of piling
+            // more work up behind it.
+            if (parent.isBusy()) {
+                scheduleFrame();
+                return;
+            }
+
+            windows = new ArrayList<>(dirty);
+            dirty.clear();
+            c = ctx;
+        }
+
+        for (PebbleWindow pw : windows) {
+            pw.update(c);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package org.biro.pebble;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Remembers the handles the watch gave us, and fingerprints of the
+ * attributes it acknowledged, across restarts of the phone app.  When the
+ * watch app is still running the same session, windows and layers pick
+ * their old handles back up instead of creating new ones and only send
+ * attributes that differ.
+ * <p/>
+ * The watch picks a new session id each time its app starts.  We ask for
+ * it when we have a cache to check (FUNC_GET_SESSION) and it's in every
+ * STATUS_STARTED; a different id throws everything away.  Until the watch
+ * has answered, nothing comes out of the cache.
+ * <p/>
+ * Entries are keyed by window cache key and layer key.  The file is a
+ * few bytes per entry and is written a little after the last change.
+ */
+class PebbleSessionCache {
+    private static final String TAG = "PebbleSessionCache: ";
+    private static final int MAGIC = 0x5042534e;
+    private static final int VERSION = 1;
+    public static final int NO_SESSION = 0;
+
+    // attribute slots.
+    public static final int ATTR_FG = 0;
+    public static final int ATTR_BG = 1;
+    public static final int ATTR_ALIGNMENT = 2;
+    public static final int ATTR_FONT = 3;
+    public static final int ATTR_TEXT = 4;
+    public static final int ATTRS = 5;
+
+    private static final int STATE_UNCHECKED = 0;
+    private static final int STATE_CHECKING = 1;
+    private static final int STATE_READY = 2;
+
+    static class Entry {
+        int handle = -1;
+        // bit i set when attrs[i] holds what the watch has.
+        int known = 0;
+        final int[] attrs = new int[ATTRS];
+
+        boolean matches(int attr, int fingerprint) {
+            return (known & (1 << attr)) != 0 && attrs[attr] == fingerprint;
+        }
+    }
+
+    private final File file;
+    private int sessionId = NO_SESSION;
+    private int state = STATE_UNCHECKED;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final ArrayList<Runnable> waiting = new ArrayList<>();
+    private boolean changed = false;
+
+    // file may be null to cache nothing.
+    PebbleSessionCache(File file) {
+        this.file = file;
+    }
+
+    synchronized void load() {
+        entries.clear();
+        sessionId = NO_SESSION;
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            int session = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Entry e = new Entry();
+                e.handle = in.readInt();
+                e.known = in.readInt();
+                for (int a = 0; a < ATTRS; a++) {
+                    e.attrs[a] = in.readInt();
+                }
+                entries.put(key, e);
+            }
+            sessionId = session;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Can't read " + file + ": " + ioe);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Writes the cache if it's changed since the last save.
+    void save() {
+        byte[] bytes;
+        synchronized (this) {
+            if (!changed || file == null || sessionId == NO_SESSION) {
+                return;
+            }
+            changed = false;
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sessionId);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                    Entry e = me.getValue();
+                    out.writeUTF(me.getKey());
+                    out.writeInt(e.handle);
+                    out.writeInt(e.known);
+                    for (int a = 0; a < ATTRS; a++) {
+                        out.writeInt(e.attrs[a]);
+                    }
+                }
+            } catch (IOException ioe) {
+                return;  // can't happen writing to memory.
+            }
+            bytes = buf.toByteArray();
+        }
+
+        // Write somewhere else and rename, so a crash can't leave half a file.
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.write(bytes);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Can't replace " + file);
+            }
+        } catch (IOException ioe) {
+            Log.e(TAG, "Can't write " + file + ": " + ioe);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // true when there's a session worth asking the watch about.
+    synchronized boolean needsCheck() {
+        return state == STATE_UNCHECKED && sessionId != NO_SESSION && !entries.isEmpty();
+    }
+
+    synchronized void checking() {
+        state = STATE_CHECKING;
+    }
+
+    // The watch answered FUNC_GET_SESSION with its session id, or
+    // NO_SESSION if it couldn't.  If we weren't checking, what's in the
+    // cache was made during this session.
+    void confirm(int session) {
+        synchronized (this) {
+            if (state == STATE_READY) {
+                return;  // STATUS_STARTED got here first.
+            }
+            if (session == NO_SESSION || (state == STATE_CHECKING && session != sessionId)) {
+                entries.clear();
+            }
+            setSession(session);
+        }
+        wake();
+    }
+
+    // The watch app has just started, so nothing we have is any good.
+    void restarted(int session) {
+        synchronized (this) {
+            entries.clear();
+            setSession(session);
+        }
+        wake();
+    }
+
+    // must be called with this locked.
+    private void setSession(int session) {
+        sessionId = session;
+        state = STATE_READY;
+        changed = true;
+    }
+
+    private void wake() {
+        ArrayList<Runnable> run;
+        synchronized (this) {
+            run = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+
+        for (Runnable r : run) {
+            r.run();
+        }
+    }
+
+    // true while we're waiting on the watch.  r is run once it answers.
+    synchronized boolean waitFor(Runnable r) {
+        if (state != STATE_CHECKING) {
+            return false;
+        }
+        if (!waiting.contains(r)) {
+            waiting.add(r);
+        }
+        return true;
+    }
+
+    // What we have for key in this session, or null.
+    synchronized Entry get(String key) {
+        if (state != STATE_READY || sessionId == NO_SESSION || key == null) {
+            return null;
+        }
+        return entries.get(key);
+    }
+
+    synchronized void putHandle(String key, int handle) {
+        if (key == null) {
+            return;
+        }
+
+        Entry e = entries.get(key);
+        if (e == null) {
+            e = new Entry();
+            entries.put(key, e);
+        }
+        if (e.handle != handle) {
+            e.handle = handle;
+            e.known = 0;
+            changed = true;
+        }
+    }
+
+    synchronized void putAttr(String key, int attr, int fingerprint) {
+        Entry e = key == null ? null : entries.get(key);
+        if (e == null) {
+            return;
+        }
+        if (!e.matches(attr, fingerprint)) {
+            e.attrs[attr] = fingerprint;
+            e.known |= 1 << attr;
+            changed = true;
+        }
+    }
+
+    synchronized void remove(String key) {
+        if (key != null && entries.remove(key) != null) {
+            changed = true;
+        }
+    }
+
+    synchronized boolean isChanged() {
+        return changed;
+    }
+}
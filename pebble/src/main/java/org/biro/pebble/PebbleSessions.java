@@ -0,0 +1,122 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * One Pebble per watch and watch app.  A session is made the first time
+ * it's asked for, with its own transport from the factory, and registered
+ * straight away.  Sessions share nothing, so each one's sends, retries and
+ * frames run at that watch's pace, and each keeps its handle cache and
+ * data log in files named for its device.
+ * <p/>
+ * PebbleKit's broadcasts can't address a device: whatever any watch sends
+ * a watch app goes to every receiver for its UUID.  Two PebbleKit sessions
+ * for one app would hear each other's responses, nacks and restarts, so
+ * there can only be one, and asking for a second under another device
+ * name fails.  Other transports can pick the watch by device name.
+ */
+public class PebbleSessions {
+    public interface TransportFactory {
+        PebbleTransport newTransport(String device, UUID appUuid);
+    }
+
+    private final TransportFactory factory;
+    private final HashMap<String, Pebble> sessions = new HashMap<>();
+    // The device of each app's PebbleKit session.
+    private final HashMap<UUID, String> pebbleKitDevices = new HashMap<>();
+
+    public PebbleSessions() {
+        this(new TransportFactory() {
+            @Override
+            public PebbleTransport newTransport(String device, UUID appUuid) {
+                return new PebbleKitTransport();
+            }
+        });
+    }
+
+    public PebbleSessions(TransportFactory factory) {
+        this.factory = factory;
+    }
+
+    private static String key(String device, UUID appUuid) {
+        return device + "/" + appUuid;
+    }
+
+    synchronized public Pebble get(Context ctx, String device, UUID appUuid)
+            throws PebbleException {
+        String k = key(device, appUuid);
+        Pebble p = sessions.get(k);
+        if (p == null) {
+            PebbleTransport transport = factory.newTransport(device, appUuid);
+            if (transport instanceof PebbleKitTransport) {
+                String other = pebbleKitDevices.get(appUuid);
+                if (other != null) {
+                    throw new PebbleException("PebbleKit can't tell " + device + " from "
+                            + other + " for " + appUuid);
+                }
+                pebbleKitDevices.put(appUuid, device);
+            }
+
+            p = newPebble(appUuid);
+            p.setDeviceName(device);
+            p.setTransport(transport);
+            p.registerHandlers(ctx);
+            sessions.put(k, p);
+        }
+        return p;
+    }
+
+    // A session before it's set up.  The tests give theirs an executor.
+    Pebble newPebble(UUID appUuid) {
+        return new Pebble(appUuid);
+    }
+
+    // The session, or null if there isn't one yet.
+    synchronized public Pebble find(String device, UUID appUuid) {
+        return sessions.get(key(device, appUuid));
+    }
+
+    // Drops the session and shuts it down, which unregisters its
+    // transport; see Pebble.shutdown.
+    synchronized public Pebble remove(String device, UUID appUuid) {
+        Pebble p = sessions.remove(key(device, appUuid));
+        if (p != null) {
+            if (p.getTransport() instanceof PebbleKitTransport) {
+                pebbleKitDevices.remove(appUuid);
+            }
+            p.shutdown();
+        }
+        return p;
+    }
+
+    synchronized public List<Pebble> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+}
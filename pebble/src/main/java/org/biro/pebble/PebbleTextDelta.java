@@ -0,0 +1,109 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Builds FUNC_APPLY_TEXT_DELTA calls: rather than the whole text, send the
+ * bytes that changed between the text the watch already has and the new
+ * text, found by trimming the common prefix and suffix.
+ * <p/>
+ * The call carries KEY_DELTA_OFFSET and KEY_DELTA_LENGTH, the span of the
+ * old text to replace, the replacement in KEY_ATTRIBUTE_TEXT, and
+ * KEY_DELTA_BASE, a fingerprint of the old text.  The watch only applies
+ * the delta if its text matches the fingerprint, and fails the call
+ * otherwise, so a resent delta is never applied twice.
+ */
+final class PebbleTextDelta {
+    // Tuple overhead a delta adds over sending the text whole: offset and
+    // length as uint16 and the base fingerprint as a uint32.
+    static final int OVERHEAD = (7 + 2) + (7 + 2) + (7 + 4);
+
+    private PebbleTextDelta() {
+    }
+
+    // FNV-1a over the bytes, cheap enough to redo on the watch.
+    static int fingerprint(byte[] b) {
+        int h = 0x811c9dc5;
+        for (byte x : b) {
+            h ^= (x & 0xff);
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    // Adds a delta from base to text to pd and returns true, or returns
+    // false without touching pd when the delta wouldn't be smaller than
+    // the whole text.
+    static boolean add(PebbleDictionary pd, byte[] base, byte[] text) {
+        int max = Math.min(base.length, text.length);
+        int prefix = 0;
+        while (prefix < max && base[prefix] == text[prefix]) {
+            prefix++;
+        }
+
+        max -= prefix;
+        int suffix = 0;
+        while (suffix < max
+                && base[base.length - 1 - suffix] == text[text.length - 1 - suffix]) {
+            suffix++;
+        }
+
+        int replace = text.length - prefix - suffix;
+        if (replace + OVERHEAD >= text.length || base.length > 0xffff) {
+            return false;
+        }
+
+        byte[] repl = new byte[replace];
+        System.arraycopy(text, prefix, repl, 0, replace);
+
+        pd.addUint16(Pebble.KEY_DELTA_OFFSET, (short) prefix);
+        pd.addUint16(Pebble.KEY_DELTA_LENGTH, (short) (base.length - prefix - suffix));
+        pd.addUint32(Pebble.KEY_DELTA_BASE, fingerprint(base));
+        pd.addBytes(Pebble.KEY_ATTRIBUTE_TEXT, repl);
+        return true;
+    }
+
+    // The watch side: base with the delta in pd applied, or null if pd's
+    // fingerprint says base isn't the text the delta was made against.
+    static byte[] apply(byte[] base, PebbleDictionary pd) {
+        if (pd.getUnsignedIntegerAsLong(Pebble.KEY_DELTA_BASE).intValue() != fingerprint(base)) {
+            return null;
+        }
+
+        int offset = pd.getUnsignedIntegerAsLong(Pebble.KEY_DELTA_OFFSET).intValue();
+        int length = pd.getUnsignedIntegerAsLong(Pebble.KEY_DELTA_LENGTH).intValue();
+        byte[] repl = pd.getBytes(Pebble.KEY_ATTRIBUTE_TEXT);
+        if (offset + length > base.length) {
+            return null;
+        }
+
+        byte[] out = new byte[base.length - length + repl.length];
+        System.arraycopy(base, 0, out, 0, offset);
+        System.arraycopy(repl, 0, out, offset, repl.length);
+        System.arraycopy(base, offset + length, out, offset + repl.length,
+                base.length - offset - length);
+        return out;
+    }
+}
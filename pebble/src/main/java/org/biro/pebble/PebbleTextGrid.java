@@ -0,0 +1,471 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * A table of text cells, rows by columns, laid out on a regular grid.  A
+ * list is one column.  All the cells' layers are made with one
+ * FUNC_NEW_TEXT_LAYERS call, which hands back a block of consecutive
+ * handles, and cells are updated by index.  Each changed cell is its own
+ * FUNC_APPLY_ATTRIBUTES, which the send queue packs into batches, so a
+ * whole screen of rows usually goes in a message or two.
+ * <p/>
+ * Watches older than API_VERSION_LAYER_BLOCK get one FUNC_NEW_TEXT_LAYER
+ * per cell instead.  Font, colors and alignment are shared by every cell.
+ * <p/>
+ * Cells can be moved off the grid, and cells marked as background are
+ * only sent once every other cell is up to date and the link has room,
+ * at background priority.  PebbleListLayer uses both to keep rows ready
+ * off screen.
+ */
+public class PebbleTextGrid implements PebbleLayer {
+    private static final String TAG = "PebbleTextGrid: ";
+
+    // what a cell still has to send.
+    private static final int DIRTY_TEXT = 1;
+    private static final int DIRTY_RECT = 2;
+    private static final int DIRTY_STYLE = 4;
+    private static final int DIRTY_ALL = DIRTY_TEXT | DIRTY_RECT | DIRTY_STYLE;
+
+    private final int rows;
+    private final int columns;
+    private final int cellWidth;
+    private final int cellHeight;
+
+    private final int[] cellX;
+    private final int[] cellY;
+    private final boolean[] background;
+    private final String[] text;
+    private final int[] dirty;
+    // -1 until the watch has made the cell's layer.
+    private final int[] handles;
+
+    private int fg = Pebble.COLOR_BLACK;
+    private int bg = Pebble.COLOR_WHITE;
+    private String font = "Raster Gothic 14-point Boldface";
+    private int alignment = Pebble.TEXT_ALIGNMENT_LEFT;
+
+    private volatile PebbleWindow window;
+    // requests we're waiting on.
+    private int outstanding = 0;
+    private boolean creating = false;
+    // bumped by release, so answers to what was sent before are ignored.
+    private int generation = 0;
+    private final PebbleBackoff backoff = new PebbleBackoff();
+
+    public PebbleTextGrid(int rows, int columns, int x, int y, int cellWidth, int cellHeight) {
+        this.rows = rows;
+        this.columns = columns;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+
+        int n = rows * columns;
+        cellX = new int[n];
+        cellY = new int[n];
+        background = new boolean[n];
+        text = new String[n];
+        dirty = new int[n];
+        handles = new int[n];
+        for (int i = 0; i < n; i++) {
+            cellX[i] = x + (i % columns) * cellWidth;
+            cellY[i] = y + (i / columns) * cellHeight;
+            text[i] = "";
+            // a new layer needs placing; its style is the watch default,
+            // which ours is too until it's set.
+            dirty[i] = DIRTY_RECT;
+            handles[i] = -1;
+        }
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public String getText(int row, int column) {
+        return text[row * columns + column];
+    }
+
+    // Changes are made on the window's executor once the grid is in one,
+    // so the setters can be called from any thread.
+    private void post(Runnable r) {
+        PebbleWindow pw = window;
+        if (pw == null) {
+            r.run();
+        } else {
+            pw.post(r);
+        }
+    }
+
+    public void setText(final int row, final int column, final String s) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                int i = row * columns + column;
+                if (text[i].equals(s)) {
+                    return;
+                }
+
+                text[i] = s;
+                mark(i, DIRTY_TEXT);
+            }
+        });
+    }
+
+    // Puts a cell's top left corner somewhere other than its place in
+    // the grid.
+    public void moveCell(final int row, final int column, final int x, final int y) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                int i = row * columns + column;
+                if (cellX[i] == x && cellY[i] == y) {
+                    return;
+                }
+
+                cellX[i] = x;
+                cellY[i] = y;
+                mark(i, DIRTY_RECT);
+            }
+        });
+    }
+
+    // Background cells wait for idle link time.
+    public void setBackground(final int row, final int column, final boolean bg) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                background[row * columns + column] = bg;
+            }
+        });
+    }
+
+    // For lists: the text of a one column grid's row.
+    public void setRowText(int row, String s) {
+        setText(row, 0, s);
+    }
+
+    public void setFont(final String font) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                PebbleTextGrid.this.font = font;
+                markAll(DIRTY_STYLE);
+            }
+        });
+    }
+
+    public void setColors(final int fg, final int bg) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                PebbleTextGrid.this.fg = fg;
+                PebbleTextGrid.this.bg = bg;
+                markAll(DIRTY_STYLE);
+            }
+        });
+    }
+
+    public void setAlignment(final int alignment) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                PebbleTextGrid.this.alignment = alignment;
+                markAll(DIRTY_STYLE);
+            }
+        });
+    }
+
+    private void mark(int i, int what) {
+        dirty[i] |= what;
+        backoff.changed();
+        if (window != null) {
+            window.invalidate(this);
+        }
+    }
+
+    private void markAll(int what) {
+        for (int i = 0; i < dirty.length; i++) {
+            dirty[i] |= what;
+        }
+        backoff.changed();
+        if (window != null) {
+            window.invalidate(this);
+        }
+    }
+
+    @Override
+    public boolean changed() {
+        if (backoff.gaveUp()) {
+            return false;
+        }
+        for (int i = 0; i < dirty.length; i++) {
+            if (dirty[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void setWindow(PebbleWindow pw) {
+        window = pw;
+    }
+
+    @Override
+    public void release(Context ctx, PebbleWindow pw, boolean destroy) {
+        generation++;
+        backoff.reset();
+        outstanding = 0;
+        creating = false;
+        for (int i = 0; i < handles.length; i++) {
+            if (destroy && handles[i] >= 0) {
+                pw.destroyLayer(ctx, handles[i]);
+            }
+            handles[i] = -1;
+            // a new layer has the watch's defaults, which may not be ours.
+            dirty[i] = DIRTY_ALL;
+        }
+    }
+
+    // A request for cell, or -1 for one making layers, failed.
+    private void failed(PebbleWindow pw, int cell, int error) {
+        lostHandle(pw, cell, error);
+        backoff.failed(pw, error);
+    }
+
+    // The watch doesn't have the cell's layer, or the whole window, most
+    // likely because its app restarted.  Make them again.
+    private void lostHandle(PebbleWindow pw, int cell, int error) {
+        if (error == Pebble.ENOWINDOW) {
+            pw.lostHandle();
+            for (int i = 0; i < handles.length; i++) {
+                handles[i] = -1;
+                dirty[i] = DIRTY_ALL;
+            }
+        } else if (error == Pebble.ENOLAYER && cell >= 0) {
+            handles[cell] = -1;
+            dirty[cell] = DIRTY_ALL;
+        }
+    }
+
+    // Layers made for a request that was outstanding when we were released.
+    private void orphaned(Context ctx, PebbleWindow pw, PebbleDictionary resp, int count) {
+        if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() == Pebble.STATUS_ERR) {
+            return;
+        }
+        int first = resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue();
+        for (int i = 0; i < count; i++) {
+            pw.destroyLayer(ctx, first + i);
+        }
+    }
+
+    // returns true when we started something and
+    // have to wait.
+    @Override
+    public boolean update(Context ctx, final PebbleWindow pw) {
+        if (outstanding > 0 || backoff.isWaiting()) {
+            return true;
+        }
+
+        if (creating || create(ctx, pw)) {
+            return true;
+        }
+
+        for (int i = 0; i < dirty.length; i++) {
+            if (dirty[i] != 0 && !background[i]) {
+                apply(ctx, pw, i);
+            }
+        }
+        if (outstanding > 0) {
+            return true;
+        }
+
+        // Everything else is current; use what room the link has.
+        for (int i = 0; i < dirty.length && !pw.getParent().isBusy(Pebble.PRIORITY_BACKGROUND); i++) {
+            if (dirty[i] != 0) {
+                apply(ctx, pw, i);
+            }
+        }
+        if (outstanding > 0) {
+            return true;
+        }
+
+        if (changed()) {
+            // Background cells left over for want of room; look again
+            // next frame.
+            pw.invalidate();
+            return true;
+        }
+        return false;
+    }
+
+    // Makes whatever cell layers don't exist yet.  Returns true if it
+    // had to.
+    private boolean create(Context ctx, final PebbleWindow pw) {
+        int missing = 0;
+        for (int h : handles) {
+            if (h < 0) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            return false;
+        }
+
+        Pebble parent = pw.getParent();
+        if (missing == handles.length && parent.supportsLayerBlocks()) {
+            PebbleDictionary pd = new PebbleDictionary();
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_TEXT_LAYERS);
+            pd.addUint16(Pebble.KEY_LAYER_COUNT, (short) handles.length);
+            creating = true;
+            outstanding++;
+            final int gen = generation;
+            pw.send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+                @Override
+                public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                            PebbleDictionary req) {
+                    if (gen != generation) {
+                        orphaned(ctx, pw, resp, handles.length);
+                        return;
+                    }
+                    outstanding--;
+                    creating = false;
+                    if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() == Pebble.STATUS_ERR) {
+                        int error = resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue();
+                        Log.e(TAG, "New layers failed: " + error);
+                        failed(pw, -1, error);
+                    } else {
+                        backoff.succeeded();
+                        int first = resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue();
+                        for (int i = 0; i < handles.length; i++) {
+                            handles[i] = first + i;
+                        }
+                    }
+                    pw.updateStatus(ctx);
+                }
+            });
+            return true;
+        }
+
+        // One at a time for older watches, or to fill in cells whose
+        // layer couldn't be made.  They still go out together.
+        creating = true;
+        final int gen = generation;
+        for (int i = 0; i < handles.length; i++) {
+            if (handles[i] >= 0) {
+                continue;
+            }
+
+            final int cell = i;
+            PebbleDictionary pd = new PebbleDictionary();
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_TEXT_LAYER);
+            outstanding++;
+            pw.send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+                @Override
+                public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                            PebbleDictionary req) {
+                    if (gen != generation) {
+                        orphaned(ctx, pw, resp, 1);
+                        return;
+                    }
+                    outstanding--;
+                    if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() == Pebble.STATUS_ERR) {
+                        int error = resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue();
+                        Log.e(TAG, "New layer failed: " + error);
+                        failed(pw, -1, error);
+                    } else {
+                        backoff.succeeded();
+                        handles[cell] = resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue();
+                    }
+                    if (outstanding == 0) {
+                        creating = false;
+                        pw.updateStatus(ctx);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    private void apply(Context ctx, final PebbleWindow pw, final int i) {
+        final int sent = dirty[i];
+        dirty[i] = 0;
+
+        final PebbleInternTable interns = pw.getParent().getInternTable();
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
+        pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, handles[i]);
+        if ((sent & DIRTY_RECT) != 0) {
+            pd.addBytes(Pebble.KEY_ATTRIBUTE_RECT,
+                    Pebble.encodeRect(cellX[i], cellY[i], cellWidth, cellHeight));
+        }
+        if ((sent & DIRTY_STYLE) != 0) {
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_FG_COLOR, fg);
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_BG_COLOR, bg);
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_ALIGNMENT, alignment);
+        }
+        // every cell shares the font, and grids tend to repeat short text.
+        final int font_iid = (sent & DIRTY_STYLE) != 0
+                ? interns.add(pd, Pebble.KEY_ATTRIBUTE_FONT, Pebble.KEY_FONT_ID, font, null, false)
+                : -1;
+        final int text_iid = (sent & DIRTY_TEXT) != 0
+                ? interns.add(pd, Pebble.KEY_ATTRIBUTE_TEXT, Pebble.KEY_TEXT_ID, text[i],
+                PebbleUtf8.encode(text[i]), true)
+                : -1;
+
+        outstanding++;
+        final int gen = generation;
+        pw.send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+            @Override
+            public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
+                                        PebbleDictionary req) {
+                boolean ok = resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() != Pebble.STATUS_ERR;
+                interns.done(font_iid, ok, req.contains(Pebble.KEY_ATTRIBUTE_FONT));
+                interns.done(text_iid, ok, req.contains(Pebble.KEY_ATTRIBUTE_TEXT));
+                if (gen != generation) {
+                    return;  // release has already stopped counting it.
+                }
+                outstanding--;
+                if (ok) {
+                    backoff.succeeded();
+                } else {
+                    // still needs sending.
+                    dirty[i] |= sent;
+                    failed(pw, i, resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue());
+                }
+                if (outstanding == 0) {
+                    pw.updateStatus(ctx);
+                }
+            }
+        }, background[i] ? Pebble.PRIORITY_BACKGROUND : Pebble.PRIORITY_VISIBLE);
+    }
+}
@@ -5,6 +5,8 @@ import android.util.Log;
 
 import com.getpebble.android.kit.util.PebbleDictionary;
 
+import java.util.Arrays;
+
 /**
  * AndroidRun, basic runner's android application. Calculates distance, speed
  * and other useful values taken from GPS device.
@@ -34,6 +36,18 @@ public class PebbleTextLayer implements PebbleLayer {
     private static final String TAG = "PebbleLayer: ";
     private int tlh = -1;
 
+    // set while a request for this layer is outstanding so we don't
+    // send a second one built from the same unacknowledged state.
+    private boolean inflight = false;
+    // the outstanding request is an attribute update, tid apply_tid, which
+    // can be superseded while it's still queued.
+    private boolean applying = false;
+    private int apply_tid;
+    // something changed since the last request was built.
+    private boolean stale = false;
+
+    private volatile PebbleWindow window;
+
     private int fg = Pebble.COLOR_BLACK;
     private boolean fg_changed = false;
 
@@ -49,7 +63,28 @@ public class PebbleTextLayer implements PebbleLayer {
     String text="";
     boolean text_changed = false;
 
-    private void updateChanged(PebbleDictionary pd) {
+    // text encoded as UTF-8, made once per distinct value of text and
+    // handed to the dictionary as is.  null until the next update needs it.
+    private byte[] encoded = null;
+    // the encoded text the watch last acknowledged, which text deltas are
+    // made against.  null when we aren't sure what the watch has.
+    private byte[] acked_text = null;
+    private boolean delta_enabled = true;
+    // our key among the window's layers in the handle cache; see
+    // setCacheKey.
+    private String cache_key = null;
+    private boolean given_key = false;
+    // intern ids the queued update uses, released if it's superseded.
+    private int font_iid = -1;
+    private int text_iid = -1;
+    // bumped by release, so answers to what was sent before are ignored.
+    private int generation = 0;
+    private final PebbleBackoff backoff = new PebbleBackoff();
+
+    // sent_text is the whole text the request set, which for a delta isn't
+    // what's in the dictionary.  Likewise sent_font, which may have gone
+    // as an intern id.
+    private void updateChanged(PebbleDictionary pd, String sent_font, byte[] sent_text) {
         if (pd.contains(Pebble.KEY_ATTRIBUTE_FG_COLOR)) {
             fg_changed = !(pd.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_FG_COLOR).intValue() == fg);
         }
@@ -62,29 +97,24 @@ public class PebbleTextLayer implements PebbleLayer {
             alignment_changed = !(pd.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_ALIGNMENT).intValue() == alignment);
         }
 
-        if (pd.contains(Pebble.KEY_ATTRIBUTE_FONT)) {
-            font_changed = !pd.getString(Pebble.KEY_ATTRIBUTE_FONT).equals(font);
+        if (sent_font != null) {
+            font_changed = !sent_font.equals(font);
         }
 
-        if (pd.contains(Pebble.KEY_ATTRIBUTE_TEXT)) {
-            try {
-                text_changed = !pd.getString(Pebble.KEY_ATTRIBUTE_TEXT).equals(text);
-            } catch (Exception e) {
-                Log.d(TAG, "Text comare exception: " + e.getMessage());
-            }
-            try {
-                byte[] bytes = pd.getBytes(Pebble.KEY_ATTRIBUTE_TEXT);
-                String s = new String(bytes, "UTF-8");
-                text_changed = !s.equals(text);
-            } catch (Exception e) {
-                Log.d(TAG, "Text comare exception2: " + e.getMessage());
-            }
+        if (sent_text != null) {
+            // sent_text is the very array we encoded, so while the text
+            // hasn't changed since, it's the same object as encoded.  The
+            // byte compare only runs when the text went away and came back.
+            acked_text = sent_text;
+            text_changed = !(sent_text == encoded
+                    || (encoded != null && Arrays.equals(sent_text, encoded)));
         }
     }
 
     @Override
     public boolean changed() {
-        return fg_changed || bg_changed || font_changed || alignment_changed || text_changed;
+        return !backoff.gaveUp()
+                && (fg_changed || bg_changed || font_changed || alignment_changed || text_changed);
     }
 
     // returns true when we started something and
@@ -92,27 +122,58 @@ public class PebbleTextLayer implements PebbleLayer {
     @Override
     public boolean update(Context ctx, final PebbleWindow pw) {
         PebbleDictionary pd;
-        if (tlh < 0) {
+        if (backoff.isWaiting()) {
+            return true;
+        }
+        if (inflight) {
+            // If our update hasn't gone out yet, a newer one can take its
+            // place rather than wait behind it.
+            if (!stale || !applying || !pw.isQueued(apply_tid)) {
+                return true;
+            }
+        } else if (tlh < 0 && !fromCache(pw)) {
+            if (pw.waitingForCache()) {
+                return true;
+            }
+
             pd = new PebbleDictionary();
             pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_TEXT_LAYER);
+            inflight = true;
+            final int gen = generation;
             pw.send(ctx, pd, new Pebble.PebbleFinishedCallback() {
                 @Override
                 public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
                                             PebbleDictionary req) {
-                    tlh = resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue();
+                    boolean ok = resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() != Pebble.STATUS_ERR;
+                    if (gen != generation) {
+                        // released meanwhile; nobody wants this one.
+                        if (ok) {
+                            pw.destroyLayer(ctx,
+                                    resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue());
+                        }
+                        return;
+                    }
+                    inflight = false;
+                    if (!ok) {
+                        int error = resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue();
+                        Log.e(TAG, "New layer failed: " + error);
+                        backoff.failed(pw, error);
+                    } else {
+                        backoff.succeeded();
+                        tlh = resp.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID).intValue();
+                        pw.getParent().getSessionCache().putHandle(cacheKey(pw), tlh);
+                        rememberUnchanged(pw);
+                    }
                     pw.updateStatus(ctx);
                 }
             });
             return true;
-        }
-
-        if (!changed()) {
+        } else if (!changed()) {
             return false;
         }
 
         pd = new PebbleDictionary();
         pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, tlh);
-        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
 
         if (fg_changed) {
             pd.addUint32(Pebble.KEY_ATTRIBUTE_FG_COLOR, fg);
@@ -122,41 +183,266 @@ public class PebbleTextLayer implements PebbleLayer {
             pd.addUint32(Pebble.KEY_ATTRIBUTE_BG_COLOR, bg);
         }
 
-        if (font_changed) {
-            pd.addString(Pebble.KEY_ATTRIBUTE_FONT, font);
-        }
+        final PebbleInternTable interns = pw.getParent().getInternTable();
+        final String sent_font = font_changed ? font : null;
+        final int sent_font_iid = font_changed
+                ? interns.add(pd, Pebble.KEY_ATTRIBUTE_FONT, Pebble.KEY_FONT_ID, font, null, false)
+                : -1;
 
         if (alignment_changed) {
             pd.addUint32(Pebble.KEY_ATTRIBUTE_ALIGNMENT, alignment);
         }
 
+        int method = Pebble.FUNC_APPLY_ATTRIBUTES;
+        final byte[] sent_text = text_changed ? encodedText() : null;
+        int iid = -1;
         if (text_changed) {
-            try {
-                byte[] b = text.getBytes("UTF-8");
-                pd.addBytes(Pebble.KEY_ATTRIBUTE_TEXT, b);
-            } catch (java.io.UnsupportedEncodingException e) {
-                Log.d(TAG, "UnsupportedIOEncodingException: " + e.getMessage());
+            if (delta_enabled && acked_text != null && pw.getParent().supportsTextDelta()
+                    && PebbleTextDelta.add(pd, acked_text, sent_text)) {
+                method = Pebble.FUNC_APPLY_TEXT_DELTA;
+            } else {
+                iid = interns.add(pd, Pebble.KEY_ATTRIBUTE_TEXT, Pebble.KEY_TEXT_ID, text, sent_text, true);
             }
         }
+        final int sent_text_iid = iid;
+        pd.addUint32(Pebble.KEY_METHOD_ID, method);
+        final int gen = generation;
 
-        pw.send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+        Pebble.PebbleFinishedCallback done = new Pebble.PebbleFinishedCallback() {
             @Override
             public void processIncoming(Context ctx, int tid,
                                         PebbleDictionary resp, PebbleDictionary req) {
-                updateChanged(req);
+                boolean ok = resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() != Pebble.STATUS_ERR;
+                interns.done(sent_font_iid, ok, req.contains(Pebble.KEY_ATTRIBUTE_FONT));
+                interns.done(sent_text_iid, ok, req.contains(Pebble.KEY_ATTRIBUTE_TEXT));
+                if (gen != generation) {
+                    return;
+                }
+                inflight = false;
+                applying = false;
+                // on failure everything we sent is still dirty, and we can't
+                // be sure what text the watch ended up with.
+                if (ok) {
+                    backoff.succeeded();
+                    updateChanged(req, sent_font, sent_text);
+                    remember(pw, req, sent_font, sent_text);
+                } else {
+                    if (sent_text != null) {
+                        acked_text = null;
+                    }
+                    int error = resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue();
+                    lostHandle(pw, error);
+                    backoff.failed(pw, error);
+                }
                 pw.updateStatus(ctx);
             }
-        });
+        };
 
+        stale = false;
+        if (inflight) {
+            if (!pw.supersede(ctx, apply_tid, pd, done)) {
+                stale = true;  // too late, it's on its way.
+                interns.release(sent_font_iid);
+                interns.release(sent_text_iid);
+                return true;
+            }
+            interns.release(font_iid);
+            interns.release(text_iid);
+        } else {
+            inflight = true;
+            applying = true;
+            apply_tid = pw.send(ctx, pd, done);
+        }
+        font_iid = sent_font_iid;
+        text_iid = sent_text_iid;
         return true;
     }
 
-    public void setText(String text) {
-        if (this.text == text) {
+    private String cacheKey(PebbleWindow pw) {
+        return pw.layerKey(cache_key);
+    }
+
+    // Names the layer in its window's handle cache entries.  Without one
+    // it's known by the order it was added to the window in, which only
+    // finds the same layer again if the app adds its layers the same way
+    // every time.  Keys of digits alone are taken by those.  Must be set
+    // before the layer is added.
+    public void setCacheKey(String key) {
+        cache_key = key;
+        given_key = false;
+    }
+
+    // Picks up the handle the watch gave this layer before the app
+    // restarted, if it's still good, and only marks the attributes that
+    // differ from what the watch has.
+    private boolean fromCache(PebbleWindow pw) {
+        PebbleSessionCache.Entry e = pw.getParent().getSessionCache().get(cacheKey(pw));
+        if (e == null || e.handle < 0) {
+            return false;
+        }
+
+        tlh = e.handle;
+        fg_changed = !e.matches(PebbleSessionCache.ATTR_FG, fg);
+        bg_changed = !e.matches(PebbleSessionCache.ATTR_BG, bg);
+        alignment_changed = !e.matches(PebbleSessionCache.ATTR_ALIGNMENT, alignment);
+        font_changed = !e.matches(PebbleSessionCache.ATTR_FONT, font.hashCode());
+        text_changed = !e.matches(PebbleSessionCache.ATTR_TEXT,
+                PebbleTextDelta.fingerprint(encodedText()));
+        return true;
+    }
+
+    // Records what the watch now has, for the next time the app starts.
+    private void remember(PebbleWindow pw, PebbleDictionary req, String sent_font,
+                          byte[] sent_text) {
+        String key = cacheKey(pw);
+        if (key == null) {
+            return;
+        }
+
+        PebbleSessionCache cache = pw.getParent().getSessionCache();
+        if (req.contains(Pebble.KEY_ATTRIBUTE_FG_COLOR)) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_FG,
+                    req.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_FG_COLOR).intValue());
+        }
+        if (req.contains(Pebble.KEY_ATTRIBUTE_BG_COLOR)) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_BG,
+                    req.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_BG_COLOR).intValue());
+        }
+        if (req.contains(Pebble.KEY_ATTRIBUTE_ALIGNMENT)) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_ALIGNMENT,
+                    req.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_ALIGNMENT).intValue());
+        }
+        if (sent_font != null) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_FONT, sent_font.hashCode());
+        }
+        if (sent_text != null) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_TEXT, PebbleTextDelta.fingerprint(sent_text));
+        }
+        pw.getParent().sessionCacheChanged();
+    }
+
+    // A new layer starts with the watch's defaults, which are what we have
+    // for anything that hasn't been changed.
+    private void rememberUnchanged(PebbleWindow pw) {
+        String key = cacheKey(pw);
+        if (key == null) {
+            return;
+        }
+
+        PebbleSessionCache cache = pw.getParent().getSessionCache();
+        if (!fg_changed) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_FG, fg);
+        }
+        if (!bg_changed) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_BG, bg);
+        }
+        if (!alignment_changed) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_ALIGNMENT, alignment);
+        }
+        if (!font_changed) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_FONT, font.hashCode());
+        }
+        if (!text_changed) {
+            cache.putAttr(key, PebbleSessionCache.ATTR_TEXT,
+                    PebbleTextDelta.fingerprint(encodedText()));
+        }
+        pw.getParent().sessionCacheChanged();
+    }
+
+    // A handle we got from the cache can turn out to be from a session the
+    // watch has since lost.  Start over with a new layer.
+    private void lostHandle(PebbleWindow pw, int error) {
+        if (error == Pebble.ENOWINDOW) {
+            pw.lostHandle();
+        } else if (error != Pebble.ENOLAYER) {
+            return;
+        }
+
+        tlh = -1;
+        acked_text = null;
+        fg_changed = bg_changed = font_changed = alignment_changed = text_changed = true;
+        pw.getParent().getSessionCache().remove(cacheKey(pw));
+        pw.getParent().sessionCacheChanged();
+    }
+
+    @Override
+    public void setWindow(PebbleWindow pw) {
+        window = pw;
+        if (pw == null) {
+            // the window's key means nothing to the next one.
+            if (given_key) {
+                cache_key = null;
+                given_key = false;
+            }
+        } else if (cache_key == null) {
+            cache_key = pw.newLayerKey();
+            given_key = true;
+        }
+    }
+
+    @Override
+    public void release(Context ctx, PebbleWindow pw, boolean destroy) {
+        if (destroy && tlh >= 0) {
+            pw.destroyLayer(ctx, tlh);
+        }
+
+        generation++;
+        backoff.reset();
+        tlh = -1;
+        inflight = false;
+        applying = false;
+        stale = false;
+        acked_text = null;
+        font_iid = -1;
+        text_iid = -1;
+        // a new layer has the watch's defaults, which may not be ours.
+        fg_changed = bg_changed = font_changed = alignment_changed = text_changed = true;
+        pw.getParent().getSessionCache().remove(cacheKey(pw));
+        pw.getParent().sessionCacheChanged();
+    }
+
+    // Text deltas are on by default whenever the watch supports them.
+    public void setDeltaText(boolean enabled) {
+        delta_enabled = enabled;
+    }
+
+    private byte[] encodedText() {
+        if (encoded == null) {
+            encoded = PebbleUtf8.encode(text);
+        }
+        return encoded;
+    }
+
+    public void setText(final String text) {
+        PebbleWindow pw = window;
+        if (pw == null) {
+            applyText(text);
+            return;
+        }
+        pw.post(new Runnable() {
+            @Override
+            public void run() {
+                applyText(text);
+            }
+        });
+    }
+
+    // null clears the layer, the same as "", so text is never null.
+    private void applyText(String text) {
+        if (text == null) {
+            text = "";
+        }
+        if (this.text.equals(text)) {
             return;
         }
 
         this.text = text;
         this.text_changed = true;
+        backoff.changed();
+        this.stale = true;
+        this.encoded = null;
+        if (window != null) {
+            window.invalidate(this);
+        }
     }
 }
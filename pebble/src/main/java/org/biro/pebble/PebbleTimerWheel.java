@@ -0,0 +1,167 @@
+package org.biro.pebble;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * A hashed timer wheel for transaction deadlines.  Every in-flight message
+ * has a deadline, and almost all of them are cancelled long before they
+ * expire, so instead of a timer per message there's one tick that walks a
+ * slot of the wheel.  Scheduling and cancelling are O(1); the resolution is
+ * one tick.
+ * <p/>
+ * The tick only runs while something is scheduled.  Tasks run on the
+ * wheel's own thread.
+ */
+class PebbleTimerWheel {
+    public static final long DEFAULT_TICK_MS = 50;
+    public static final int DEFAULT_SLOTS = 64;
+
+    static class Timeout {
+        private final Runnable task;
+        private int rounds;
+        private volatile boolean cancelled = false;
+
+        Timeout(Runnable task, int rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickMillis;
+    private final ArrayList<ArrayList<Timeout>> wheel;
+    private int cursor = 0;
+    private int count = 0;
+    private boolean shutdown = false;
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PebbleTimerWheel");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private ScheduledFuture<?> ticking;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    PebbleTimerWheel() {
+        this(DEFAULT_TICK_MS, DEFAULT_SLOTS);
+    }
+
+    PebbleTimerWheel(long tickMillis, int slots) {
+        this.tickMillis = tickMillis;
+        wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(new ArrayList<Timeout>());
+        }
+    }
+
+    // Runs task after roughly delayMillis, unless the returned Timeout is
+    // cancelled first.  Once the wheel's shut down the task never runs.
+    Timeout schedule(long delayMillis, Runnable task) {
+        long ticks = (delayMillis + tickMillis - 1) / tickMillis;
+        if (ticks < 1) {
+            ticks = 1;
+        }
+
+        synchronized (wheel) {
+            if (shutdown) {
+                Timeout t = new Timeout(task, 0);
+                t.cancel();
+                return t;
+            }
+
+            int slots = wheel.size();
+            Timeout t = new Timeout(task, (int) ((ticks - 1) / slots));
+            wheel.get((int) ((cursor + ticks) % slots)).add(t);
+            count++;
+
+            if (ticking == null) {
+                ticking = executor.scheduleAtFixedRate(tick, tickMillis, tickMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            return t;
+        }
+    }
+
+    private void tick() {
+        ArrayList<Timeout> expired = null;
+        synchronized (wheel) {
+            cursor = (cursor + 1) % wheel.size();
+            ArrayList<Timeout> slot = wheel.get(cursor);
+            for (int i = slot.size() - 1; i >= 0; i--) {
+                Timeout t = slot.get(i);
+                if (!t.cancelled && t.rounds > 0) {
+                    t.rounds--;
+                    continue;
+                }
+
+                slot.remove(i);
+                count--;
+                if (!t.cancelled) {
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(t);
+                }
+            }
+
+            if (count == 0 && ticking != null) {
+                ticking.cancel(false);
+                ticking = null;
+            }
+        }
+
+        // Run outside the lock; tasks usually schedule again.
+        if (expired != null) {
+            for (Timeout t : expired) {
+                t.task.run();
+            }
+        }
+    }
+
+    void shutdown() {
+        synchronized (wheel) {
+            shutdown = true;
+        }
+        executor.shutdownNow();
+    }
+}
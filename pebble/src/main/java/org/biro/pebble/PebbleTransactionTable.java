@@ -0,0 +1,151 @@
+package org.biro.pebble;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * The in-flight transaction table.  An open addressing hash table keyed by
+ * the entries' own int transaction ids, so there's no boxing and no node
+ * per entry, with every slot updated by compare and set.  The sender, the
+ * receiver thread and the retry timer all use it without taking a lock,
+ * though only one thread may put at a time.
+ * <p/>
+ * Transaction ids are handed out in sequence, so the low bits alone spread
+ * them evenly over the slots.  Removed entries leave a tombstone that a
+ * later put reuses, and the first put after the table empties clears them
+ * all, so looking up an id that isn't there doesn't end up walking every
+ * slot.  The table is sized well past the largest send window and never
+ * grows; put fails when it's full.
+ */
+class PebbleTransactionTable<V extends PebbleTransactionTable.Entry> {
+    interface Entry {
+        int transactionId();
+    }
+
+    private static final Object TOMBSTONE = new Object();
+
+    private final AtomicReferenceArray<Object> slots;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger tombstones = new AtomicInteger();
+
+    // capacity is rounded up to a power of two.
+    PebbleTransactionTable(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new AtomicReferenceArray<>(n);
+        mask = n - 1;
+    }
+
+    // One thread at a time.
+    boolean put(V v) {
+        if (size.get() == 0 && tombstones.get() > 0) {
+            sweep();
+        }
+
+        int start = v.transactionId() & mask;
+        for (int i = 0; i <= mask; i++) {
+            int idx = (start + i) & mask;
+            Object cur = slots.get(idx);
+            if ((cur == null || cur == TOMBSTONE) && slots.compareAndSet(idx, cur, v)) {
+                if (cur == TOMBSTONE) {
+                    tombstones.decrementAndGet();
+                }
+                size.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // put only, with the table empty.  There's no entry for a lookup to
+    // probe past the tombstones to, and no other put to race with, so they
+    // can all go back to empty.
+    private void sweep() {
+        for (int i = 0; i <= mask; i++) {
+            if (slots.get(i) == TOMBSTONE && slots.compareAndSet(i, TOMBSTONE, null)) {
+                tombstones.decrementAndGet();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int tid) {
+        int start = tid & mask;
+        for (int i = 0; i <= mask; i++) {
+            Object cur = slots.get((start + i) & mask);
+            if (cur == null) {
+                return null;
+            }
+            if (cur != TOMBSTONE && ((V) cur).transactionId() == tid) {
+                return (V) cur;
+            }
+        }
+        return null;
+    }
+
+    // Removes and returns the entry for tid.  Only one of any number of
+    // racing callers gets it; the rest get null.
+    @SuppressWarnings("unchecked")
+    V remove(int tid) {
+        int start = tid & mask;
+        for (int i = 0; i <= mask; i++) {
+            int idx = (start + i) & mask;
+            Object cur = slots.get(idx);
+            if (cur == null) {
+                return null;
+            }
+            if (cur != TOMBSTONE && ((V) cur).transactionId() == tid) {
+                if (slots.compareAndSet(idx, cur, TOMBSTONE)) {
+                    // counted before size drops, so an empty table's
+                    // tombstones are never missed.
+                    tombstones.incrementAndGet();
+                    size.decrementAndGet();
+                    return (V) cur;
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    int tombstones() {
+        return tombstones.get();
+    }
+
+    // For scanning: the entry in slot i, or null.
+    @SuppressWarnings("unchecked")
+    V at(int i) {
+        Object cur = slots.get(i);
+        return cur == TOMBSTONE ? null : (V) cur;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
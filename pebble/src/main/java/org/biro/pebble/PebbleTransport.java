@@ -0,0 +1,51 @@
+package org.biro.pebble;
+
+import android.content.Context;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.UUID;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * How Pebble talks to the watch.  The default goes through PebbleKit; other
+ * implementations let the protocol run without a phone or a watch.
+ * <p/>
+ * Implementations hand everything the watch sends back to the Pebble passed
+ * to register: responses through Pebble.receiveData and nacks through
+ * Pebble.receiveNack, until unregister.  Acks needn't be passed on; the
+ * response that follows one says more.
+ */
+public interface PebbleTransport {
+    void register(Context ctx, UUID appUuid, Pebble pebble);
+    void unregister(Context ctx);
+    boolean isConnected(Context ctx);
+
+    void sendData(Context ctx, UUID appUuid, PebbleDictionary data, int tid);
+    void sendAck(Context ctx, int tid);
+    void sendNack(Context ctx, int tid);
+
+    void startApp(Context ctx, UUID appUuid);
+    void stopApp(Context ctx, UUID appUuid);
+}
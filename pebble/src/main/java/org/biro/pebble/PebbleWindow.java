@@ -6,8 +6,9 @@ import android.util.Log;
 import com.getpebble.android.kit.util.PebbleDictionary;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * AndroidRun, basic runner's android application. Calculates distance, speed
@@ -38,158 +39,638 @@ public class PebbleWindow {
 
     private static final String TAG = "PebbleWindow: ";
 
-    private final int STATE_NONE = 0;
-    private final int STATE_UPDATING = 1;
-    private final int STATE_PUSH = 2;
-
+    // What's been asked of the window and not done yet.  Asking twice is
+    // the same as asking once.
+    private final int INTENT_UPDATE = 1;
+    private final int INTENT_PUSH = 2;
+
+    private int intents = 0;
+    // Layers that may have something to send, in the order they changed.
+    // Guarded by itself, as is intents.
+    private final LinkedHashSet<PebbleLayer> dirty = new LinkedHashSet<>();
+    // owned by the runner.
+    private final ArrayList<PebbleLayer> scratch = new ArrayList<>();
+
+    // How many times we've been kicked since the runner last looked.  Only
+    // whoever takes it from zero runs, so nothing recurses: a callback that
+    // arrives while we're running just makes us go round again.
+    private final AtomicInteger kicks = new AtomicInteger();
+    private volatile Context runCtx;
+
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                step(runCtx);
+                missed = kicks.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    };
 
-    private final Stack<Integer> stateStack = new Stack<>();
+    private final Runnable resume = new Runnable() {
+        @Override
+        public void run() {
+            kick(null);
+        }
+    };
 
     private int wh = -1;
-    private Pebble parent;
+    private boolean connecting = false;
+    // bumped by destroy, so answers to what was sent before are ignored.
+    private int generation = 0;
+    // A window that isn't the root makes nothing on the watch until it's
+    // first pushed; see setLazy.
+    private volatile boolean lazy = true;
+    private boolean pushed = false;
+    // made ahead of a push, at background priority; see preload.
+    private volatile boolean preloading = false;
+    // a push has been asked for and not answered yet.
+    private boolean pushing = false;
+    // run once the next push is answered.
+    private volatile Runnable onPushed = null;
+    // the FUNC_NEW_WINDOW waiting for an answer, so a push can hurry it.
+    private int connectTid;
+    private PebbleDictionary connectData;
+    private Pebble.PebbleFinishedCallback connectDone;
+    // See retain.
+    private final AtomicInteger refs = new AtomicInteger(1);
+    // names this window in the handle cache; null to not cache it.
+    private String cacheKey = null;
+    // the next key given to a layer that doesn't have one; see layerKey.
+    private int nextLayerKey = 0;
+    private volatile Pebble parent;
     private List<PebbleLayer> layers = new ArrayList<>();
+    // made the first time setLayout is called.
+    private PebbleReconciler reconciler = null;
 
     // get's a window handle.
     private void connect(Context ctx) {
-        if (wh >= 0) {
+        if (wh >= 0 || connecting || waitingForCache()) {
+            return;
+        }
+
+        PebbleSessionCache.Entry e = parent.getSessionCache().get(cacheKey);
+        if (e != null && e.handle >= 0) {
+            wh = e.handle;
+            kick(ctx);
             return;
         }
 
+        connecting = true;
+        final int gen = generation;
         PebbleDictionary data = new PebbleDictionary();
         data.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_WINDOW);
-        parent.sendMessage(ctx, new Pebble.PebbleFinishedCallback() {
-                    @Override
-                    public void processIncoming(Context ctx, int tid,
-                                                PebbleDictionary res, PebbleDictionary req) {
-                        int status = res.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue();
-                        if (status == Pebble.STATUS_ERR) {
-                            Log.e(TAG, "Call Failed" + res.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE));
-                            handleError(res.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE));
-                        } else {
-                            wh = res.getUnsignedIntegerAsLong(Pebble.KEY_WINDOW_ID).intValue();
-                            updateStatus(ctx);
-                        }
+        connectData = data;
+        connectDone = new Pebble.PebbleFinishedCallback() {
+            @Override
+            public void processIncoming(Context ctx, int tid,
+                                        PebbleDictionary res, PebbleDictionary req) {
+                int status = res.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue();
+                if (gen != generation) {
+                    // destroyed while we waited; nobody wants this one.
+                    if (status != Pebble.STATUS_ERR) {
+                        sendDestroy(ctx, res.getUnsignedIntegerAsLong(Pebble.KEY_WINDOW_ID).intValue());
                     }
-                }, data);
+                    return;
+                }
+                connecting = false;
+                if (status == Pebble.STATUS_ERR) {
+                    Log.e(TAG, "Call Failed" + res.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE));
+                    handleError(ctx, res.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue());
+                } else {
+                    wh = res.getUnsignedIntegerAsLong(Pebble.KEY_WINDOW_ID).intValue();
+                    parent.getSessionCache().putHandle(cacheKey, wh);
+                    parent.sessionCacheChanged();
+                    updateStatus(ctx);
+                }
+            }
+        };
+        connectTid = parent.sendMessage(ctx, connectDone, data, priority());
+    }
 
+    // A push wants the window now; a preload may have left asking for it
+    // at background priority.
+    private void hurryConnect(Context ctx) {
+        if (connecting && parent.isQueued(connectTid)) {
+            parent.supersede(ctx, connectTid, connectDone, connectData, Pebble.PRIORITY_PUSH);
+        }
     }
 
-    private int popState() {
-        synchronized (stateStack) {
-            if (stateStack.isEmpty()) {
-                return STATE_NONE;
-            }
-            return stateStack.pop();
+    private void addIntent(Context ctx, int intent) {
+        synchronized (dirty) {
+            intents |= intent;
         }
+        kick(ctx);
     }
 
-    private void pushState(int state) {
-        synchronized (stateStack) {
-            stateStack.push(state);
+    // Gets the runner going on the Pebble's executor, unless it's already
+    // going, in which case it'll take another look before it stops.
+    private void kick(Context ctx) {
+        if (ctx != null) {
+            runCtx = ctx;
+        }
+        if (kicks.getAndIncrement() == 0) {
+            parent.getExecutor().execute(runner);
         }
     }
 
-    public void addState(int state) {
-        synchronized (stateStack) {
-            stateStack.add(state);
+    // Use Pebble.getRootWindow(); each watch has its own.
+    void setHandle(int wh) {
+        this.wh = wh;
+    }
+
+    // Windows with a cache key keep their handle, and their layers'
+    // handles, across restarts of the phone app while the watch app stays
+    // up.  The key has to name the same window every time the app starts.
+    public void setCacheKey(String key) {
+        cacheKey = key;
+    }
+
+    // A key for a layer that hasn't been given one, made when it's added:
+    // the order it was added in, which stays put when other layers go.
+    String newLayerKey() {
+        return Integer.toString(nextLayerKey++);
+    }
+
+    // The handle cache's key for the layer keyed key, or null if it isn't
+    // cached.
+    String layerKey(String key) {
+        if (cacheKey == null || key == null) {
+            return null;
         }
+        return cacheKey + "/" + key;
     }
 
-    private static PebbleWindow root = null;
+    // true while the handle cache is being checked with the watch; we're
+    // kicked again when it's done.
+    boolean waitingForCache() {
+        return cacheKey != null && parent.getSessionCache().waitFor(resume);
+    }
 
-    synchronized public static PebbleWindow getRootWindow() {
-        if (root == null) {
-            root = new PebbleWindow();
-            root.wh = Pebble.ROOT_WINDOW_HANDLE;
+    // The watch says our handle is no good: a cached one from a session
+    // that's gone.  Get a new one.
+    void lostHandle() {
+        if (isRoot()) {
+            return;
         }
-        return root;
+        wh = -1;
+        parent.getSessionCache().remove(cacheKey);
+        parent.sessionCacheChanged();
+        update(null);
     }
 
-    private void handleError(long error) {
-        // can't do anything yet.
+    // Whatever was asked of us is still asked; this decides when to try
+    // again.  A message lost to the link waits for the link to come back,
+    // or if it never went, for the next frame.
+    private void handleError(Context ctx, int error) {
+        if (error == Pebble.ENOTCONN || error == Pebble.ETIMEDOUT) {
+            if (!parent.parkUntilLinkUp(resume)) {
+                invalidate();
+            }
+        }
     }
 
     // continues processing status after
     // something interrupted it.
     public void updateStatus(Context ctx) {
-        int cs = popState();
-        switch (cs) {
-            case STATE_NONE:
-                //nothing to do.
-                break;
-
-            case STATE_UPDATING:
-                update(ctx);
-                break;
-
-            case STATE_PUSH:
-                push(ctx);
-                break;
+        kick(ctx);
+    }
 
-            default:
-                Log.e(TAG, "Unknown state");
-                break;
+    // Does as much of what's been asked as the link has room for.  Whatever
+    // it can't do yet stays asked for, and the next completion kicks us.
+    private void step(Context ctx) {
+        int todo;
+        synchronized (dirty) {
+            todo = intents;
+        }
+        if (todo == 0) {
+            return;
         }
 
-    }
+        if ((todo & INTENT_PUSH) != 0) {
+            if (!pushing) {
+                pushing = true;
+                hurryConnect(ctx);
+            }
+            pushed = true;
+        } else if (lazy && !pushed && !preloading && !isRoot()) {
+            // Nobody can see it yet.  The layers keep their changes until
+            // it's pushed, and then it's all made in one go.
+            return;
+        }
 
-    public void update(Context ctx) {
-        if (parent.isBusy()) {
-            addState(STATE_UPDATING);
+        // With the link down whatever we sent would only queue up behind
+        // it.  Wait, and let the layers' changes pile up in the layers, so
+        // that when it's back each one sends just its latest state.
+        if (parent.parkUntilLinkUp(resume)) {
             return;
         }
 
         if (wh < 0) {
             connect(ctx);
-            addState(STATE_UPDATING);
             return;
         }
 
-        for (PebbleLayer pl: layers) {
-            if (pl.changed()) {
-                if (pl.update(ctx, this)) {
-                    addState(STATE_UPDATING);
-                    return; // did something, have to wait for a result.
+        if ((todo & INTENT_UPDATE) != 0 && updateLayers(ctx)) {
+            synchronized (dirty) {
+                if (dirty.isEmpty()) {
+                    intents &= ~INTENT_UPDATE;
                 }
             }
         }
 
-        updateStatus(ctx);
+        if ((todo & INTENT_PUSH) != 0) {
+            if (parent.isBusy(Pebble.PRIORITY_PUSH)) {
+                invalidate();
+                return;
+            }
+
+            synchronized (dirty) {
+                intents &= ~INTENT_PUSH;
+            }
+            sendPush(ctx);
+        }
+    }
+
+    // Starts an update for each dirty layer while the send window allows
+    // rather than waiting for each one to finish before the next.  Only
+    // dirty layers are looked at.  Returns false if the link filled up
+    // before we got through them.  A window that isn't on screen gets less
+    // of the link, and none while it's struggling.
+    private boolean updateLayers(Context ctx) {
+        synchronized (dirty) {
+            scratch.addAll(dirty);
+        }
+
+        int priority = priority();
+        boolean done = true;
+        for (int i = 0; i < scratch.size(); i++) {
+            if (parent.isBusy(priority)) {
+                done = false;
+                break;
+            }
+
+            PebbleLayer pl = scratch.get(i);
+            if (pl.changed() && pl.update(ctx, this)) {
+                continue;  // waiting on an answer; stays dirty.
+            }
+
+            synchronized (dirty) {
+                // a change that came in since we looked keeps it dirty.
+                if (!pl.changed()) {
+                    dirty.remove(pl);
+                }
+            }
+        }
+        scratch.clear();
+
+        if (!done) {
+            // Someone else's traffic may be what's filling the link, so
+            // don't count on our own completions to bring us back.
+            invalidate();
+        }
+        return done;
+    }
 
+    public void update(Context ctx) {
+        addIntent(ctx, INTENT_UPDATE);
     }
 
+    // Sends whatever the layers have waiting too, which for a lazy window
+    // is everything.
     public void push(Context ctx) {
+        addIntent(ctx, INTENT_PUSH | INTENT_UPDATE);
+    }
+
+    // As push, running then once the watch has the window on top, after
+    // whatever was already waiting for that.
+    void push(Context ctx, final Runnable then) {
+        final Runnable was = onPushed;
+        if (then != null) {
+            onPushed = was == null ? then : new Runnable() {
+                @Override
+                public void run() {
+                    was.run();
+                    then.run();
+                }
+            };
+        }
+        push(ctx);
+    }
+
+    // Makes the window and its layers on the watch without pushing it, at
+    // background priority and only while the link has room to spare, so
+    // that when it is pushed that's a single message.  Changes made in the
+    // meantime keep it up to date the same way.
+    public void preload(Context ctx) {
+        preloading = true;
+        addIntent(ctx, INTENT_UPDATE);
+    }
+
+    // Takes the window off the watch's stack, leaving it and its layers
+    // there for the next push.
+    void sendPop(Context ctx, Pebble.PebbleFinishedCallback done) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_POP_WINDOW);
+        pd.addUint32(Pebble.KEY_WINDOW_ID, wh);
+        parent.sendMessage(ctx, done, pd, Pebble.PRIORITY_PUSH);
+    }
+
+    // On by default.  Off, the window and its layers are made on the watch
+    // as soon as it's updated, pushed or not.
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    // A window starts with one reference, its creator's.  Anything else
+    // that holds on to it retains it, and everyone releases it when
+    // they're done; the last release destroys it.
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    public void release(Context ctx) {
+        int n = refs.decrementAndGet();
+        if (n == 0) {
+            destroy(ctx);
+        } else if (n < 0) {
+            refs.incrementAndGet();
+            Log.e(TAG, "Released more often than retained");
+        }
+    }
+
+    // Frees what the window has on the watch: the window and every layer
+    // in it.  Only watches with API_VERSION_DESTROY can.  The window can
+    // still be used, and pushing it again makes it all again.  The root
+    // window is never destroyed.
+    public void destroy(final Context ctx) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                destroyNow(ctx);
+            }
+        });
+    }
+
+    private void destroyNow(Context ctx) {
+        if (isRoot() || parent == null || !parent.supportsDestroy()) {
+            return;
+        }
+
+        // the watch takes the layers along with the window.
+        generation++;
+        for (PebbleLayer pl : layers) {
+            pl.release(ctx, this, false);
+        }
+        if (wh >= 0) {
+            sendDestroy(ctx, wh);
+        }
+
+        wh = -1;
+        connecting = false;
+        pushed = false;
+        pushing = false;
+        preloading = false;
+        onPushed = null;
+        synchronized (dirty) {
+            intents = 0;
+            // released layers have everything to send again.
+            dirty.addAll(layers);
+        }
+        parent.getSessionCache().remove(cacheKey);
+        parent.sessionCacheChanged();
+        parent.windowDestroyed(this);
+    }
+
+    // executor only.  The watch app has started again and what we had on
+    // it is gone.  Everything's made again on the next update, which
+    // Pebble asks for once it's dropped what was still on its way.  It
+    // pushes the windows that were on the watch's stack.
+    void restarted(Context ctx) {
+        for (PebbleLayer pl : layers) {
+            pl.release(ctx, this, false);
+        }
+        if (!isRoot()) {
+            // a connect still outstanding is answered by the new app.
+            wh = -1;
+        }
+        pushed = false;
+        synchronized (dirty) {
+            dirty.addAll(layers);
+        }
+    }
+
+    private void sendDestroy(Context ctx, int handle) {
         PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_DESTROY_WINDOW);
+        pd.addUint32(Pebble.KEY_WINDOW_ID, handle);
+        parent.sendMessage(ctx, logFailure, pd);
+    }
 
-        if (parent.isBusy()) {
-            addState(STATE_PUSH);
+    // Destroys layer tlh on the watch, if the watch can and the window's
+    // still there.  For layers' release.
+    void destroyLayer(Context ctx, int tlh) {
+        if (wh < 0 || !parent.supportsDestroy()) {
             return;
         }
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_DESTROY_LAYER);
+        pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, tlh);
+        send(ctx, pd, logFailure);
+    }
+
+    // Nothing's waiting on a destroy; a failure just means there was less
+    // to free than we thought.
+    private final Pebble.PebbleFinishedCallback logFailure = new Pebble.PebbleFinishedCallback() {
+        @Override
+        public void processIncoming(Context ctx, int tid, PebbleDictionary res, PebbleDictionary req) {
+            if (res.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() == Pebble.STATUS_ERR) {
+                Log.d(TAG, "Destroy failed: " + res.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE));
+            }
+        }
+    };
 
+    private void sendPush(Context ctx) {
+        PebbleDictionary pd = new PebbleDictionary();
         pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_PUSH_WINDOW);
-        if (wh < 0) {
-            addState(STATE_PUSH);
-            connect(ctx);
+        pd.addUint32(Pebble.KEY_WINDOW_ID, wh);
+        final int gen = generation;
+        parent.sendMessage(ctx, new Pebble.PebbleFinishedCallback() {
+            @Override
+            public void processIncoming(Context ctx, int tid,
+                                        PebbleDictionary res, PebbleDictionary req) {
+                if (gen != generation) {
+                    return;  // destroyed meanwhile.
+                }
+                pushing = false;
+                if (res.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() != Pebble.STATUS_ERR) {
+                    parent.setTopWindow(PebbleWindow.this);
+                    Runnable then = onPushed;
+                    onPushed = null;
+                    if (then != null) {
+                        then.run();
+                    }
+                    return;
+                }
+
+                int error = res.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue();
+                Log.e(TAG, "Push failed: " + error);
+                if (error == Pebble.ENOTCONN || error == Pebble.ETIMEDOUT
+                        || error == Pebble.ENOWINDOW) {
+                    // still wanted, onPushed and all.
+                    synchronized (dirty) {
+                        intents |= INTENT_PUSH;
+                    }
+                    if (error == Pebble.ENOWINDOW) {
+                        lostHandle();
+                    } else {
+                        handleError(ctx, error);
+                    }
+                } else {
+                    onPushed = null;
+                }
+            }
+        }, pd, Pebble.PRIORITY_PUSH);
+    }
+
+    // true when this is the window on the watch's screen.
+    public boolean isVisible() {
+        return parent != null && parent.isTopWindow(this);
+    }
+
+    // Updates to what's on screen, or about to be, go ahead of the rest.
+    private int priority() {
+        return isVisible() || pushing ? Pebble.PRIORITY_VISIBLE : Pebble.PRIORITY_BACKGROUND;
+    }
+
+    public void addLayer(final PebbleLayer pl) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                layers.add(pl);
+                pl.setWindow(PebbleWindow.this);
+                invalidate(pl);
+            }
+        });
+    }
+
+    // Describes the window's text layers all at once; see PebbleLayout.
+    // Call it again with a new layout whenever anything changes, and only
+    // the differences are sent.  Can be used alongside addLayer.
+    public void setLayout(final PebbleLayout layout) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (reconciler == null) {
+                    reconciler = new PebbleReconciler();
+                    layers.add(reconciler);
+                    reconciler.setWindow(PebbleWindow.this);
+                }
+                reconciler.render(layout);
+            }
+        });
+    }
+
+    // Takes pl out of the window, destroying its layers on the watch.
+    public void removeLayer(final Context ctx, final PebbleLayer pl) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!layers.contains(pl)) {
+                    return;
+                }
+                if (parent != null) {
+                    pl.release(ctx, PebbleWindow.this, true);
+                }
+                layers.remove(pl);
+                synchronized (dirty) {
+                    dirty.remove(pl);
+                }
+                pl.setWindow(null);
+                if (pl == reconciler) {
+                    reconciler = null;
+                }
+            }
+        });
+    }
+
+    // Runs r on the Pebble's executor, where the window does its work, or
+    // right away if the window isn't attached to a Pebble yet.  Layers make
+    // their changes through here so they can be changed from any thread.
+    void post(Runnable r) {
+        Pebble p = parent;
+        if (p == null) {
+            r.run();
             return;
         }
+        p.getExecutor().execute(r);
+    }
+
+    // Asks for an update on the next frame rather than right now.
+    public void invalidate() {
+        if (parent == null) {
+            return;
+        }
+        parent.getScheduler().invalidate(this);
+    }
 
-        send(ctx, pd, null);
+    // Layers call this when they change, so the next update knows to look
+    // at them.
+    public void invalidate(PebbleLayer pl) {
+        synchronized (dirty) {
+            dirty.add(pl);
+        }
+        invalidate();
     }
 
-    public void addLayer(PebbleLayer pl) {
-        layers.add(pl);
+    // Returns the transaction id, or -1 if there's no window handle yet.
+    public int send(Context ctx, PebbleDictionary pd, Pebble.PebbleFinishedCallback pfc) {
+        return send(ctx, pd, pfc, Pebble.PRIORITY_VISIBLE);
     }
 
-    public void send(Context ctx, PebbleDictionary pd, Pebble.PebbleFinishedCallback pfc) {
+    // As send, but no more urgent than priority.  Nothing goes ahead of
+    // the window's own priority.
+    public int send(Context ctx, PebbleDictionary pd, Pebble.PebbleFinishedCallback pfc,
+                    int priority) {
         if (wh < 0) {
             connect(ctx);
-            return;
+            return -1;
         }
         pd.addUint32(Pebble.KEY_WINDOW_ID, wh);
-        parent.sendMessage(ctx, pfc, pd);
+        return parent.sendMessage(ctx, pfc, pd, Math.max(priority, priority()));
+    }
+
+    // Replaces message tid, sent with send, if it's still queued.  See
+    // Pebble.supersede.
+    public boolean supersede(Context ctx, int tid, PebbleDictionary pd,
+                             Pebble.PebbleFinishedCallback pfc) {
+        pd.addUint32(Pebble.KEY_WINDOW_ID, wh);
+        return parent.supersede(ctx, tid, pfc, pd, priority());
+    }
+
+    boolean isQueued(int tid) {
+        return parent.isQueued(tid);
+    }
+
+    // Transaction ids can be anything, -1 included, so send's -1 can't
+    // be told apart from a real one; ask this first.
+    boolean hasHandle() {
+        return wh >= 0;
+    }
+
+    boolean isRoot() {
+        return wh == Pebble.ROOT_WINDOW_HANDLE;
+    }
+
+    Pebble getParent() {
+        return parent;
     }
 
     public void setParent(Pebble p) {
         parent = p;
+        if (p != null) {
+            p.attached(this);
+        }
     }
 }
@@ -0,0 +1,252 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * The windows on the watch's screen, over the root window, for apps that
+ * navigate between them.  Get it from Pebble.getWindowStack.
+ * <p/>
+ * The stack holds a reference to every window on it (see
+ * PebbleWindow.retain), and lets go when the window comes off, so a
+ * window nobody else holds is destroyed once it's popped or replaced.
+ * The reference is taken when push, replace or preload is called, so the
+ * caller can release its own straight away.
+ * Hold on to a window that's likely to come back to keep it on the watch.
+ * <p/>
+ * To make navigating quick, preload the window the user is likely to go to
+ * next.  It and its layers are made while the link is otherwise idle, and
+ * pushing it is then a single message.  A preloaded window that isn't
+ * wanted after all should be dropped with cancelPreload.
+ */
+public class PebbleWindowStack {
+    private static final String TAG = "PebbleWindowStack: ";
+
+    private final Pebble parent;
+    // Pushed windows, bottom first, and preloaded ones.  Changed only on
+    // the executor, and guarded by stack.
+    private final ArrayList<PebbleWindow> stack = new ArrayList<>();
+    private final ArrayList<PebbleWindow> preloaded = new ArrayList<>();
+
+    PebbleWindowStack(Pebble parent) {
+        this.parent = parent;
+    }
+
+    private void post(Runnable r) {
+        parent.getExecutor().execute(r);
+    }
+
+    public void push(final Context ctx, final PebbleWindow pw) {
+        pw.retain();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                pushNow(ctx, pw, null);
+            }
+        });
+    }
+
+    // Takes the top window off, uncovering the one below.
+    public void pop(final Context ctx) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                PebbleWindow top;
+                synchronized (stack) {
+                    if (stack.isEmpty()) {
+                        return;
+                    }
+                    top = stack.remove(stack.size() - 1);
+                }
+                remove(ctx, top, true);
+            }
+        });
+    }
+
+    // Puts pw in place of the top window.  The old one stays until pw is
+    // showing, so the one below is never seen in between.
+    public void replace(final Context ctx, final PebbleWindow pw) {
+        pw.retain();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final PebbleWindow old;
+                synchronized (stack) {
+                    old = stack.isEmpty() ? null : stack.remove(stack.size() - 1);
+                }
+                if (old == pw) {
+                    // already on top, with the stack's reference.
+                    pw.release(ctx);
+                }
+                if (old == null || old == pw) {
+                    pushNow(ctx, pw, null);
+                    return;
+                }
+                pushNow(ctx, pw, new Runnable() {
+                    @Override
+                    public void run() {
+                        remove(ctx, old, false);
+                    }
+                });
+            }
+        });
+    }
+
+    // Makes pw on the watch ahead of its push; see the class comment.
+    public void preload(final Context ctx, final PebbleWindow pw) {
+        pw.retain();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                attach(pw);
+                synchronized (stack) {
+                    if (stack.contains(pw) || preloaded.contains(pw)) {
+                        // it has the stack's reference already.
+                        pw.release(ctx);
+                        return;
+                    }
+                    preloaded.add(pw);
+                }
+                pw.preload(ctx);
+            }
+        });
+    }
+
+    public void cancelPreload(final Context ctx, final PebbleWindow pw) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                boolean was;
+                synchronized (stack) {
+                    was = preloaded.remove(pw);
+                }
+                if (was) {
+                    pw.release(ctx);
+                }
+            }
+        });
+    }
+
+    // The window on top, or null when it's the root window.
+    public PebbleWindow getTop() {
+        synchronized (stack) {
+            return stack.isEmpty() ? null : stack.get(stack.size() - 1);
+        }
+    }
+
+    public int size() {
+        synchronized (stack) {
+            return stack.size();
+        }
+    }
+
+    // executor only.  The watch app restarted with an empty stack; push
+    // ours again, bottom first, each once the one before is on top.
+    void replay(Context ctx) {
+        PebbleWindow[] windows;
+        synchronized (stack) {
+            windows = stack.toArray(new PebbleWindow[stack.size()]);
+        }
+        replayFrom(ctx, windows, 0);
+    }
+
+    private void replayFrom(final Context ctx, final PebbleWindow[] windows, final int i) {
+        if (i == windows.length) {
+            return;
+        }
+        windows[i].push(ctx, new Runnable() {
+            @Override
+            public void run() {
+                replayFrom(ctx, windows, i + 1);
+            }
+        });
+    }
+
+    private void attach(PebbleWindow pw) {
+        if (pw.getParent() == null) {
+            pw.setParent(parent);
+        }
+    }
+
+    // executor only.  pw has been retained for the stack by the caller.
+    private void pushNow(Context ctx, PebbleWindow pw, Runnable then) {
+        attach(pw);
+        synchronized (stack) {
+            // a preloaded window's reference, or the one it has from being
+            // further down, moves to the top; it doesn't need another.
+            if (preloaded.remove(pw) || stack.remove(pw)) {
+                pw.release(ctx);
+            }
+            stack.add(pw);
+        }
+        pw.push(ctx, then);
+    }
+
+    // executor only.  Takes pw off the watch's stack and lets go of it.
+    // When it was on top, the window below gets the screen back.
+    private void remove(final Context ctx, final PebbleWindow pw, final boolean wasTop) {
+        if (!pw.hasHandle()) {
+            // never made it to the watch; destroying it is all there is.
+            pw.release(ctx);
+            return;
+        }
+
+        if (!parent.supportsWindowStack()) {
+            // Older watches can't pop.  Pushing the window below covers it
+            // instead, and a destroy takes it off for good if we can.
+            if (wasTop) {
+                below().push(ctx);
+            }
+            pw.release(ctx);
+            return;
+        }
+
+        pw.sendPop(ctx, new Pebble.PebbleFinishedCallback() {
+            @Override
+            public void processIncoming(Context ctx, int tid, PebbleDictionary res,
+                                        PebbleDictionary req) {
+                if (res.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() == Pebble.STATUS_ERR) {
+                    Log.e(TAG, "Pop failed: " + res.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE));
+                }
+                if (wasTop && parent.isTopWindow(pw)) {
+                    parent.setTopWindow(getTop());
+                    // it's been updating at background priority while
+                    // covered; what it's held back goes now.
+                    below().update(ctx);
+                }
+                pw.release(ctx);
+            }
+        });
+    }
+
+    private PebbleWindow below() {
+        PebbleWindow top = getTop();
+        return top != null ? top : parent.getRootWindow();
+    }
+}